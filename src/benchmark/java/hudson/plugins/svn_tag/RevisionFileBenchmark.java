@@ -0,0 +1,63 @@
+package hudson.plugins.svn_tag;
+
+import hudson.Util;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+
+
+/**
+ * Measures reading the revision file of a build, parsed from scratch and
+ * from the cache of {@link RevisionIndex}.
+ */
+@State(Scope.Benchmark)
+public class RevisionFileBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int entries;
+
+    private String content;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < entries; i++) {
+            buf.append("http://svn.example.com/repo/trunk/module").append(i)
+                    .append('/').append(1000 + i).append('\n');
+        }
+        content = buf.toString();
+        file = File.createTempFile("revision", ".txt");
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Util.deleteFile(file);
+    }
+
+    @Benchmark
+    public RevisionIndex parse() throws IOException {
+        return RevisionIndex.parse(new BufferedReader(new StringReader(content)));
+    }
+
+    @Benchmark
+    public RevisionIndex cached() throws IOException {
+        return RevisionIndex.of(file);
+    }
+}
@@ -0,0 +1,158 @@
+package hudson.plugins.svn_tag;
+
+import hudson.Util;
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+import hudson.util.NullStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.tmatesoft.svn.core.SVNCommitInfo;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.io.ISVNEditor;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.io.diff.SVNDeltaGenerator;
+import org.tmatesoft.svn.core.wc.SVNWCUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Measures a full tag cycle against a local <tt>file://</tt> repository, so
+ * that no network is involved: one delete and copy per module location, and
+ * one commit for all module locations.
+ * <p>
+ * Every invocation alternates between two source revisions, so that no tag
+ * is ever found to be up to date.
+ */
+@State(Scope.Benchmark)
+public class TagCycleBenchmark {
+
+    private static final BuildListener LISTENER =
+            new StreamBuildListener(new NullStream(), Charset.forName("UTF-8"));
+
+    private static final SvnSessionPool.AuthenticationFactory AUTHENTICATION =
+            new SvnSessionPool.AuthenticationFactory() {
+                public ISVNAuthenticationManager create() {
+                    return SVNWCUtil.createDefaultAuthenticationManager();
+                }
+            };
+
+    @Param({"1", "10"})
+    public int modules;
+
+    private File dir;
+
+    private final List<SVNURL> sources = new ArrayList<SVNURL>();
+
+    private final List<SVNURL> tags = new ArrayList<SVNURL>();
+
+    private final RevisionGate gate = new RevisionGate(0, false);
+
+    private long invocations;
+
+    @Setup
+    public void setUp() throws IOException, SVNException {
+        FSRepositoryFactory.setup();
+        dir = Util.createTempDir();
+        SVNURL root = SVNRepositoryFactory.createLocalRepository(dir, true, false);
+        SVNRepository repository = SVNRepositoryFactory.create(root);
+        try {
+            // r1: the module locations and the tags directory, r2: one more file per module location
+            ISVNEditor editor = repository.getCommitEditor("benchmark", null);
+            editor.openRoot(-1);
+            editor.addDir("tags", null, -1);
+            editor.closeDir();
+            editor.addDir("trunk", null, -1);
+            for (int i = 0; i < modules; i++) {
+                String module = "trunk/module" + i;
+                editor.addDir(module, null, -1);
+                addFile(editor, module + "/pom.xml");
+                editor.closeDir();
+                sources.add(root.appendPath(module, false));
+                tags.add(root.appendPath("tags/module" + i, false));
+            }
+            editor.closeDir();
+            editor.closeDir();
+            editor.closeEdit();
+
+            editor = repository.getCommitEditor("benchmark", null);
+            editor.openRoot(-1);
+            editor.openDir("trunk", -1);
+            for (int i = 0; i < modules; i++) {
+                String module = "trunk/module" + i;
+                editor.openDir(module, -1);
+                addFile(editor, module + "/README");
+                editor.closeDir();
+            }
+            editor.closeDir();
+            editor.closeDir();
+            editor.closeEdit();
+        } finally {
+            repository.closeSession();
+        }
+    }
+
+    private static void addFile(ISVNEditor editor, String path) throws SVNException {
+        editor.addFile(path, null, -1);
+        editor.applyTextDelta(path, null);
+        String checksum = new SVNDeltaGenerator().sendDelta(path,
+                new ByteArrayInputStream(path.getBytes()), editor, true);
+        editor.closeFile(path, checksum);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Util.deleteRecursive(dir);
+    }
+
+    private long nextRevision() {
+        return ++invocations % 2 + 1;
+    }
+
+    @Benchmark
+    public boolean deleteAndCopy() throws SVNException, InterruptedException {
+        long revision = nextRevision();
+        boolean success = true;
+        for (int i = 0; i < modules; i++) {
+            TagTarget target = new TagTarget(null, sources.get(i), revision, tags.get(i),
+                    "tag", "delete", "benchmark");
+            SvnSessionPool.Session session =
+                    SvnSessionPool.get().acquire("benchmark", target.getSourceURL(), AUTHENTICATION);
+            try {
+                success &= SvnTagPlugin.tag(session, LISTENER, target, null, gate);
+            } finally {
+                SvnSessionPool.get().release(session, true);
+            }
+        }
+        return success;
+    }
+
+    @Benchmark
+    public SVNCommitInfo atomic() throws SVNException {
+        long revision = nextRevision();
+        SvnSessionPool.Session session =
+                SvnSessionPool.get().acquire("benchmark", sources.get(0), AUTHENTICATION);
+        try {
+            TagTransaction transaction = new TagTransaction(session.getRepository());
+            for (int i = 0; i < modules; i++) {
+                transaction.add(tags.get(i), sources.get(i), revision);
+            }
+            return transaction.commit("tag");
+        } finally {
+            SvnSessionPool.get().release(session, true);
+        }
+    }
+}
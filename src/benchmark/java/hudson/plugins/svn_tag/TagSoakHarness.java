@@ -0,0 +1,476 @@
+package hudson.plugins.svn_tag;
+
+import hudson.Util;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleProject;
+import hudson.model.StreamBuildListener;
+import hudson.scm.SubversionSCM;
+import hudson.util.NullStream;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.io.ISVNEditor;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.io.diff.SVNDeltaGenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Stress and soak test of the tagging path against a local <tt>file://</tt>
+ * repository.
+ * <p>
+ * Hundreds of simulated builds tag concurrently for a given duration, each
+ * with a random number of module locations. Some tags are shared by all
+ * builds, like a <tt>latest</tt> tag, so that builds contend for them; the
+ * others belong to a build number and are replaced once the numbers wrap, so
+ * that the repository does not slow the run down by growing without bound.
+ * Every simulated build tags its module locations through
+ * {@link SvnTagPlugin#tag(String, hudson.model.Job, SubversionSCM, BuildListener,
+ * List, int, boolean, boolean, int)}, as the publisher does once it resolved
+ * the templates, for a project of a Jenkins started by the test harness: the
+ * {@link TagDeduplicator}, the probe of the existing tags, the
+ * {@link ParallelTagger}, the {@link TagCoalescer}, the {@link SvnThrottle}
+ * with its retries, and the sessions of the {@link SvnSessionPool}. The
+ * claims of a build are forgotten once it is done, as when it is finalized.
+ * <p>
+ * The harness reports tags per second and build latency percentiles, and
+ * samples threads, open file handles, heap after GC and Metaspace. It fails
+ * when a build failed, when sessions or in-flight operations are left over,
+ * when resources grew past the allowed limits between the end of the warm-up
+ * and the end of the run, or when the throughput dropped below the stored
+ * baseline. Run it with
+ * <pre>
+ * mvn -Pbenchmark,soak test-compile exec:exec -Dsoak.args="builds=200 minutes=180"
+ * </pre>
+ * and keep a <tt>target/soak-result.properties</tt> as the baseline of later
+ * runs with <tt>baseline=FILE</tt>. Arguments are <tt>key=value</tt> pairs,
+ * see {@link #main(String[])}.
+ */
+public final class TagSoakHarness {
+
+    private static final BuildListener LISTENER =
+            new StreamBuildListener(new NullStream(), Charset.forName("UTF-8"));
+
+    /**
+     * latencies are counted per millisecond up to this bound, longer ones in the last slot.
+     */
+    private static final int MAX_LATENCY_MILLIS = 600000;
+
+    private final Properties args;
+
+    private final int builds;
+
+    private final int modules;
+
+    private final int maxModulesPerBuild;
+
+    private final double sharedRatio;
+
+    private final int buildNumbers;
+
+    private final long warmupMillis;
+
+    private final long durationMillis;
+
+    private final long sampleMillis;
+
+    private final int parallelism;
+
+    private final List<SVNURL> sources = new ArrayList<SVNURL>();
+
+    private SVNURL root;
+
+    private FreeStyleProject project;
+
+    private SubversionSCM scm;
+
+    private final AtomicLong buildCount = new AtomicLong();
+
+    private final AtomicLong tagCount = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLongArray latencies = new AtomicLongArray(MAX_LATENCY_MILLIS + 1);
+
+    private final List<Sample> samples = new ArrayList<Sample>();
+
+    private TagSoakHarness(Properties args) {
+        this.args = args;
+        this.builds = Integer.parseInt(args.getProperty("builds", "200"));
+        this.modules = Integer.parseInt(args.getProperty("modules", "20"));
+        this.maxModulesPerBuild = Integer.parseInt(args.getProperty("maxModulesPerBuild", "10"));
+        this.sharedRatio = Double.parseDouble(args.getProperty("sharedRatio", "0.2"));
+        this.buildNumbers = Integer.parseInt(args.getProperty("buildNumbers", "1000"));
+        this.warmupMillis = TimeUnit.MINUTES.toMillis(Long.parseLong(args.getProperty("warmupMinutes", "1")));
+        this.durationMillis = TimeUnit.MINUTES.toMillis(Long.parseLong(args.getProperty("minutes", "10")));
+        this.sampleMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(args.getProperty("sampleSeconds", "30")));
+        this.parallelism = Integer.parseInt(args.getProperty("parallelism", "1"));
+    }
+
+    /**
+     * Runs the harness. Arguments, as <tt>key=value</tt>:
+     * <dl>
+     * <dt>builds</dt><dd>concurrent simulated builds, 200</dd>
+     * <dt>modules</dt><dd>module locations in the repository, 20</dd>
+     * <dt>maxModulesPerBuild</dt><dd>most module locations a build tags, 10</dd>
+     * <dt>sharedRatio</dt><dd>share of tags contended by all builds, 0.2</dd>
+     * <dt>buildNumbers</dt><dd>build numbers before tags are replaced, 1000</dd>
+     * <dt>warmupMinutes</dt><dd>minutes before resources are compared, 1</dd>
+     * <dt>minutes</dt><dd>duration of the run including the warm-up, 10</dd>
+     * <dt>sampleSeconds</dt><dd>interval of resource samples, 30</dd>
+     * <dt>parallelism</dt><dd>module locations a build tags concurrently, 1</dd>
+     * <dt>baseline</dt><dd>result of an earlier run to compare the throughput with</dd>
+     * <dt>maxThroughputDrop</dt><dd>allowed throughput drop against the baseline, 0.2</dd>
+     * <dt>maxThreadGrowth, maxFileHandleGrowth</dt><dd>allowed growth, 10 and 50</dd>
+     * <dt>maxHeapGrowthMB, maxMetaspaceGrowthMB</dt><dd>allowed growth, 64 and 16</dd>
+     * <dt>result</dt><dd>file to write the result to, target/soak-result.properties</dd>
+     * </dl>
+     *
+     * @param argv arguments
+     * @throws Throwable when the repository or Jenkins cannot be set up
+     */
+    public static void main(String[] argv) throws Throwable {
+        Properties args = new Properties();
+        for (String arg : argv) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                args.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        }
+        // the run outlasts the timeout the test harness sets for a test
+        if (System.getProperty("jenkins.test.timeout") == null) {
+            System.setProperty("jenkins.test.timeout", "0");
+        }
+        List<String> problems = new TagSoakHarness(args).run();
+        for (String problem : problems) {
+            System.err.println("FAILED: " + problem);
+        }
+        System.exit(problems.isEmpty() ? 0 : 1);
+    }
+
+    private List<String> run() throws Throwable {
+        FSRepositoryFactory.setup();
+        File dir = Util.createTempDir();
+        try {
+            createRepository(dir);
+            final List<String> problems = new ArrayList<String>();
+            TestJenkins.run(new TestJenkins.Body() {
+                public void run(JenkinsRule j) throws Exception {
+                    scm = new SubversionSCM(sources.get(0).toString());
+                    project = j.createFreeStyleProject("soak");
+                    project.setScm(scm);
+                    problems.addAll(drive());
+                }
+            });
+            return problems;
+        } finally {
+            Util.deleteRecursive(dir);
+        }
+    }
+
+    /**
+     * Creates the module locations at r1 and changes each of them at r2.
+     */
+    private void createRepository(File dir) throws SVNException {
+        root = SVNRepositoryFactory.createLocalRepository(dir, true, false);
+        SVNRepository repository = SVNRepositoryFactory.create(root);
+        try {
+            for (int revision = 1; revision <= 2; revision++) {
+                ISVNEditor editor = repository.getCommitEditor("soak", null);
+                editor.openRoot(-1);
+                if (revision == 1) {
+                    editor.addDir("tags", null, -1);
+                    editor.closeDir();
+                    editor.addDir("trunk", null, -1);
+                } else {
+                    editor.openDir("trunk", -1);
+                }
+                for (int i = 0; i < modules; i++) {
+                    String module = "trunk/module" + i;
+                    if (revision == 1) {
+                        editor.addDir(module, null, -1);
+                    } else {
+                        editor.openDir(module, -1);
+                    }
+                    addFile(editor, module + "/file" + revision);
+                    editor.closeDir();
+                    if (revision == 1) {
+                        sources.add(root.appendPath(module, false));
+                    }
+                }
+                editor.closeDir();
+                editor.closeDir();
+                editor.closeEdit();
+            }
+        } finally {
+            repository.closeSession();
+        }
+    }
+
+    private static void addFile(ISVNEditor editor, String path) throws SVNException {
+        editor.addFile(path, null, -1);
+        editor.applyTextDelta(path, null);
+        String checksum = new SVNDeltaGenerator().sendDelta(path,
+                new ByteArrayInputStream(path.getBytes()), editor, true);
+        editor.closeFile(path, checksum);
+    }
+
+    private List<String> drive() throws InterruptedException, IOException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(builds);
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < builds; i++) {
+            final Random random = new Random(i);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (!stop.get()) {
+                            runBuild(random, buildCount.incrementAndGet());
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "soak build " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Sample warm = null;
+        long afterWarmupTags = 0;
+        long afterWarmup = 0;
+        while (System.currentTimeMillis() - start < durationMillis) {
+            Thread.sleep(Math.min(sampleMillis, durationMillis));
+            long elapsed = System.currentTimeMillis() - start;
+            Sample sample = Sample.take(elapsed, tagCount.get());
+            samples.add(sample);
+            System.out.println(sample + " builds=" + buildCount.get() + " failures=" + failures.get()
+                    + " " + SvnSessionPool.get());
+            if (warm == null && elapsed >= warmupMillis) {
+                warm = sample;
+                afterWarmupTags = tagCount.get();
+                afterWarmup = System.currentTimeMillis();
+            }
+        }
+        stop.set(true);
+        done.await();
+        long end = System.currentTimeMillis();
+
+        Sample last = Sample.take(end - start, tagCount.get());
+        if (warm == null) {
+            warm = samples.isEmpty() ? last : samples.get(0);
+            afterWarmupTags = 0;
+            afterWarmup = start;
+        }
+        double tagsPerSecond = (tagCount.get() - afterWarmupTags) * 1000.0 / Math.max(1, end - afterWarmup);
+        return report(warm, last, tagsPerSecond);
+    }
+
+    /**
+     * Tags the module locations of one simulated build.
+     */
+    private void runBuild(Random random, long number) {
+        long start = System.nanoTime();
+        long revision = 1 + random.nextInt(2);
+        int count = 1 + random.nextInt(Math.min(maxModulesPerBuild, modules));
+        List<TagTarget> targets = new ArrayList<TagTarget>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                int module = random.nextInt(modules);
+                String tag = random.nextDouble() < sharedRatio
+                        ? "tags/latest/module" + module : "tags/b" + number % buildNumbers + "/module" + module;
+                SVNURL source = sources.get(module);
+                targets.add(new TagTarget(new SubversionSCM.ModuleLocation(source.toString(), null,
+                        ".", "infinity", false), source, revision, root.appendPath(tag, false),
+                        "soak", "soak", "soak #" + number));
+            }
+        } catch (SVNException e) {
+            failures.incrementAndGet();
+            return;
+        }
+        String buildKey = project.getFullName() + '#' + number;
+        boolean success;
+        try {
+            success = SvnTagPlugin.tag(buildKey, project, scm, LISTENER, targets, 0, false, false,
+                    parallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            TagDeduplicator.get().forget(buildKey);
+        }
+        for (TagTarget target : targets) {
+            if (target.getCommitRevision() >= 0) {
+                tagCount.incrementAndGet();
+            }
+        }
+        if (!success) {
+            failures.incrementAndGet();
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        latencies.incrementAndGet((int) Math.min(millis, MAX_LATENCY_MILLIS));
+    }
+
+    private List<String> report(Sample warm, Sample last, double tagsPerSecond) throws IOException {
+        List<String> problems = new ArrayList<String>();
+        Properties result = new Properties();
+        result.setProperty("builds", Long.toString(buildCount.get()));
+        result.setProperty("tags", Long.toString(tagCount.get()));
+        result.setProperty("failures", Long.toString(failures.get()));
+        result.setProperty("tagsPerSecond", String.format("%.2f", tagsPerSecond));
+        for (double p : new double[]{0.5, 0.95, 0.99, 1}) {
+            result.setProperty("latencyMillis.p" + (int) (p * 100), Long.toString(percentile(p)));
+        }
+        result.setProperty("threadGrowth", Long.toString(last.threads - warm.threads));
+        result.setProperty("fileHandleGrowth", Long.toString(last.fileHandles - warm.fileHandles));
+        result.setProperty("heapGrowthMB", Long.toString((last.heap - warm.heap) >> 20));
+        result.setProperty("metaspaceGrowthMB", Long.toString((last.metaspace - warm.metaspace) >> 20));
+        result.setProperty("sessionsActive", Long.toString(SvnSessionPool.get().getActiveCount()));
+        result.setProperty("inFlight", Integer.toString(TagMetrics.get().getInFlight()));
+
+        File file = new File(args.getProperty("result", "target/soak-result.properties"));
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            result.store(out, "soak result");
+        } finally {
+            out.close();
+        }
+        result.list(System.out);
+
+        if (failures.get() > 0) {
+            problems.add(failures.get() + " builds failed to tag");
+        }
+        if (SvnSessionPool.get().getActiveCount() != 0) {
+            problems.add(SvnSessionPool.get().getActiveCount() + " sessions were not released");
+        }
+        if (TagMetrics.get().getInFlight() != 0) {
+            problems.add(TagMetrics.get().getInFlight() + " operations are still in flight");
+        }
+        checkGrowth(problems, "threads", last.threads - warm.threads, "maxThreadGrowth", 10);
+        if (warm.fileHandles >= 0 && last.fileHandles >= 0) {
+            checkGrowth(problems, "file handles", last.fileHandles - warm.fileHandles,
+                    "maxFileHandleGrowth", 50);
+        }
+        checkGrowth(problems, "heap MB", (last.heap - warm.heap) >> 20, "maxHeapGrowthMB", 64);
+        checkGrowth(problems, "Metaspace MB", (last.metaspace - warm.metaspace) >> 20,
+                "maxMetaspaceGrowthMB", 16);
+
+        String baseline = args.getProperty("baseline");
+        if (baseline != null) {
+            Properties expected = new Properties();
+            InputStream in = new FileInputStream(baseline);
+            try {
+                expected.load(in);
+            } finally {
+                in.close();
+            }
+            double expectedRate = Double.parseDouble(expected.getProperty("tagsPerSecond"));
+            double maxDrop = Double.parseDouble(args.getProperty("maxThroughputDrop", "0.2"));
+            if (tagsPerSecond < expectedRate * (1 - maxDrop)) {
+                problems.add(String.format("%.2f tags per second, baseline %.2f", tagsPerSecond, expectedRate));
+            }
+        }
+        return problems;
+    }
+
+    private void checkGrowth(List<String> problems, String what, long growth, String limitKey, long limit) {
+        long max = Long.parseLong(args.getProperty(limitKey, Long.toString(limit)));
+        if (growth > max) {
+            problems.add(what + " grew by " + growth + ", at most " + max + " allowed");
+        }
+    }
+
+    private long percentile(double p) {
+        long total = 0;
+        for (int i = 0; i < latencies.length(); i++) {
+            total += latencies.get(i);
+        }
+        long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < latencies.length(); i++) {
+            seen += latencies.get(i);
+            if (seen >= rank && seen > 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Resource usage at one point in time.
+     */
+    private static final class Sample {
+        private final long elapsed;
+        private final long tags;
+        private final int threads;
+        private final long fileHandles;
+        private final long heap;
+        private final long metaspace;
+
+        private Sample(long elapsed, long tags, int threads, long fileHandles, long heap, long metaspace) {
+            this.elapsed = elapsed;
+            this.tags = tags;
+            this.threads = threads;
+            this.fileHandles = fileHandles;
+            this.heap = heap;
+            this.metaspace = metaspace;
+        }
+
+        static Sample take(long elapsed, long tags) {
+            System.gc();
+            long metaspace = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getName().contains("Metaspace") || pool.getName().contains("Perm Gen")) {
+                    metaspace += pool.getUsage().getUsed();
+                }
+            }
+            return new Sample(elapsed, tags, ManagementFactory.getThreadMXBean().getThreadCount(),
+                    openFileHandles(), ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(),
+                    metaspace);
+        }
+
+        /**
+         * @return open file handles of the JVM, or -1 where the platform does not tell
+         */
+        private static long openFileHandles() {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            try {
+                Method method = os.getClass().getMethod("getOpenFileDescriptorCount");
+                method.setAccessible(true);
+                return ((Number) method.invoke(os)).longValue();
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%6ds tags=%d threads=%d files=%d heap=%dMB metaspace=%dMB",
+                    elapsed / 1000, tags, threads, fileHandles, heap >> 20, metaspace >> 20);
+        }
+    }
+}
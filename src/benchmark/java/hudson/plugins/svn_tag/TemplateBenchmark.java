@@ -0,0 +1,64 @@
+package hudson.plugins.svn_tag;
+
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Measures the evaluation of tag URL and comment templates.
+ */
+@State(Scope.Benchmark)
+public class TemplateBenchmark {
+
+    private static final Map<String, String> TEMPLATES = new HashMap<String, String>();
+
+    static {
+        TEMPLATES.put("simple", "http://svn.example.com/repo/tags/${env['BUILD_NUMBER']}");
+        TEMPLATES.put("env", "Tagged by Jenkins ${env['JOB_NAME']} #${env['BUILD_NUMBER']}"
+                + " on ${env['NODE_NAME']} from ${env['SVN_URL']}@${env['SVN_REVISION']}"
+                + " for ${env['BUILD_USER']}");
+        TEMPLATES.put("repoURL", "${repoURL[0]}//${repoURL[1]}/${repoURL[2]}/tags/"
+                + "${repoURL[4]}-${env['BUILD_NUMBER']}");
+    }
+
+    @Param({"simple", "env", "repoURL"})
+    public String template;
+
+    private String text;
+
+    private Map<String, String> env;
+
+    private List<String> locationPathElements;
+
+    @Setup
+    public void setUp() {
+        text = TEMPLATES.get(template);
+        // a build environment is typically about a hundred variables
+        env = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) {
+            env.put("VARIABLE_" + i, "value-" + i);
+        }
+        env.put("JOB_NAME", "benchmark");
+        env.put("BUILD_NUMBER", "42");
+        env.put("NODE_NAME", "master");
+        env.put("SVN_URL", "http://svn.example.com/repo/trunk/module");
+        env.put("SVN_REVISION", "1234");
+        env.put("BUILD_USER", "jenkins");
+        locationPathElements = Arrays.asList(StringUtils.split(
+                "http://svn.example.com/repo/trunk/module", "/"));
+    }
+
+    @Benchmark
+    public String evaluate() {
+        return SvnTagPlugin.evalGroovyExpression(env, text, locationPathElements);
+    }
+}
@@ -0,0 +1,214 @@
+package hudson.plugins.svn_tag;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bounded cache of the Groovy script classes compiled from tag URL and
+ * comment templates, and of the templates parsed into a {@link SimpleTemplate}
+ * that need no Groovy at all.
+ * <p>
+ * Every template is compiled once into a {@link Script} class by its own
+ * {@link GroovyShell}, so that evicting an entry releases the class and its
+ * class loader. A fresh script instance with a fresh {@link Binding} is
+ * created for every evaluation, hence cached classes are never shared
+ * between concurrent callers.
+ */
+final class GroovyTemplateCache {
+
+    /**
+     * Default number of compiled templates kept in the cache.
+     */
+    static final int DEFAULT_MAX_SIZE = 256;
+
+    private final int maxSize;
+
+    /**
+     * template text -> {@link SimpleTemplate} or compiled script class.
+     */
+    private final Map<String, Object> scripts;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong literals = new AtomicLong();
+
+    private final AtomicLong simple = new AtomicLong();
+
+    /**
+     * Creates a new GroovyTemplateCache object.
+     *
+     * @param maxSize maximum number of compiled templates to keep
+     */
+    GroovyTemplateCache(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        this.scripts = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                if (size() > GroovyTemplateCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Evaluates the template as the body of a Groovy string.
+     *
+     * @param evalText template text
+     * @param binding  variables visible to the template
+     * @return the evaluated value, or null if the template evaluates to null
+     * @throws CompilationFailedException when the template is not a valid GString
+     */
+    Object evaluate(String evalText, Binding binding) throws CompilationFailedException {
+        if (isLiteral(evalText)) {
+            literals.incrementAndGet();
+            return evalText;
+        }
+        Class<? extends Script> scriptClass = getScriptClass(evalText);
+        return InvokerHelper.createScript(scriptClass, binding).run();
+    }
+
+    /**
+     * Returns the template parsed for rendering without Groovy.
+     *
+     * @param evalText template text
+     * @return the template, or null if the template needs Groovy
+     */
+    SimpleTemplate getSimpleTemplate(String evalText) {
+        Object cached;
+        synchronized (scripts) {
+            cached = scripts.get(evalText);
+        }
+        if (cached == null) {
+            SimpleTemplate template = SimpleTemplate.parse(evalText);
+            if (template == null) {
+                return null;    // compiled on evaluation
+            }
+            synchronized (scripts) {
+                scripts.put(evalText, template);
+            }
+            cached = template;
+        }
+        if (cached instanceof SimpleTemplate) {
+            simple.incrementAndGet();
+            return (SimpleTemplate) cached;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Class<? extends Script> getScriptClass(String evalText) {
+        synchronized (scripts) {
+            Object cached = scripts.get(evalText);
+            if (cached instanceof Class) {
+                hits.incrementAndGet();
+                return (Class<? extends Script>) cached;
+            }
+        }
+        misses.incrementAndGet();
+        // compile outside of the lock; a concurrent miss on the same template just compiles twice.
+        GroovyShell shell = new GroovyShell(new CompilerConfiguration());
+        Class<? extends Script> scriptClass =
+                shell.parse("return \"" + evalText + "\"").getClass();
+        synchronized (scripts) {
+            scripts.put(evalText, scriptClass);
+        }
+        return scriptClass;
+    }
+
+    /**
+     * True if the template evaluates to itself, i.e. it contains nothing that
+     * a Groovy double quoted string would interpret.
+     *
+     * @param evalText template text
+     * @return true if Groovy can be skipped for the template
+     */
+    static boolean isLiteral(String evalText) {
+        for (int i = 0; i < evalText.length(); i++) {
+            switch (evalText.charAt(i)) {
+                case '$':
+                case '\\':
+                case '"':
+                case '\n':
+                case '\r':
+                    return false;
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops all compiled templates.
+     */
+    void clear() {
+        synchronized (scripts) {
+            scripts.clear();
+        }
+    }
+
+    int size() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns how many evaluations took the fast path and skipped Groovy.
+     *
+     * @return number of literal templates evaluated
+     */
+    long getLiterals() {
+        return literals.get();
+    }
+
+    /**
+     * Returns how many evaluations were rendered by a {@link SimpleTemplate}.
+     *
+     * @return number of templates rendered without Groovy
+     */
+    long getSimple() {
+        return simple.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GroovyTemplateCache[size=" + size() + "/" + maxSize
+                + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + ", literals=" + getLiterals()
+                + ", simple=" + getSimple() + "]";
+    }
+}
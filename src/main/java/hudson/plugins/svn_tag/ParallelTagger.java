@@ -0,0 +1,168 @@
+package hudson.plugins.svn_tag;
+
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Runs independent tagging tasks on a pool shared by all builds and bounded
+ * by {@link #MAX_THREADS}. The build thread takes part in its own run, so a
+ * run uses at most <tt>parallelism - 1</tt> threads of the pool.
+ * <p>
+ * Each task logs into its own buffer, which is copied to the build log in
+ * the order the tasks were added once the task is done, so that the output
+ * of a module location is never interleaved with another one.
+ */
+final class ParallelTagger {
+
+    /**
+     * Unit of work, typically tagging one module location.
+     */
+    interface Task {
+        /**
+         * Performs the task.
+         *
+         * @param listener listener to log to
+         * @return true if the operation was successful
+         * @throws InterruptedException when interrupted
+         */
+        boolean run(BuildListener listener) throws InterruptedException;
+    }
+
+    /**
+     * Maximum number of threads tagging concurrently on behalf of all builds,
+     * besides the threads of the builds themselves.
+     */
+    static final int MAX_THREADS =
+            Integer.getInteger(ParallelTagger.class.getName() + ".maxThreads", 8);
+
+    private static final ExecutorService EXECUTOR = createExecutor(MAX_THREADS);
+
+    private final List<String> labels = new ArrayList<String>();
+
+    private final List<Task> tasks = new ArrayList<Task>();
+
+    private static ExecutorService createExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.max(1, threads),
+                Math.max(1, threads), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), ParallelTagger.class.getName()));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Adds a task.
+     *
+     * @param label name of the task used in the summary
+     * @param task  the task
+     */
+    void add(String label, Task task) {
+        labels.add(label);
+        tasks.add(task);
+    }
+
+    /**
+     * Runs all tasks with at most the given number of them at a time. When run
+     * one at a time, the tasks log directly and the first failure stops.
+     *
+     * @param buildListener build listener
+     * @param parallelism   maximum number of tasks run concurrently
+     * @return true if all tasks were successful
+     * @throws InterruptedException when interrupted. Tasks run by the pool are interrupted as well.
+     */
+    boolean run(BuildListener buildListener, int parallelism) throws InterruptedException {
+        if (parallelism <= 1 || tasks.size() <= 1) {
+            for (Task task : tasks) {
+                if (!task.run(buildListener)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        PrintStream logger = buildListener.getLogger();
+        int threads = Math.min(parallelism, tasks.size());
+        logger.println(Messages.ParallelTagging(tasks.size(), threads));
+        final int size = tasks.size();
+        final List<ByteArrayOutputStream> logs = new ArrayList<ByteArrayOutputStream>(size);
+        final List<BuildListener> listeners = new ArrayList<BuildListener>(size);
+        for (int i = 0; i < size; i++) {
+            ByteArrayOutputStream log = new ByteArrayOutputStream();
+            logs.add(log);
+            listeners.add(new StreamBuildListener(log));
+        }
+        final boolean[] results = new boolean[size];
+        final Throwable[] errors = new Throwable[size];
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(size);
+        Runnable worker = new Runnable() {
+            public void run() {
+                for (int i = next.getAndIncrement(); i < size; i = next.getAndIncrement()) {
+                    BuildListener listener = listeners.get(i);
+                    try {
+                        results[i] = tasks.get(i).run(listener);
+                    } catch (Throwable t) {
+                        errors[i] = t;
+                    } finally {
+                        listener.getLogger().flush();
+                        done.countDown();
+                    }
+                }
+            }
+        };
+
+        // the calling thread works as well, so that every run makes progress even when
+        // the shared pool is busy with tasks waiting for a tag this run holds.
+        List<Future<?>> helpers = new ArrayList<Future<?>>();
+        try {
+            for (int i = 1; i < threads; i++) {
+                helpers.add(EXECUTOR.submit(worker));
+            }
+            worker.run();
+            done.await();
+        } finally {
+            for (Future<?> helper : helpers) {
+                helper.cancel(true);
+            }
+        }
+
+        List<String> failed = new ArrayList<String>();
+        for (int i = 0; i < size; i++) {
+            try {
+                logs.get(i).writeTo(logger);
+            } catch (IOException e) {
+                // PrintStream never throws
+            }
+            if (errors[i] instanceof InterruptedException) {
+                throw (InterruptedException) errors[i];
+            }
+            if (errors[i] != null) {
+                errors[i].printStackTrace(buildListener.error(Messages.Copy_Failed()));
+            }
+            if (!results[i]) {
+                failed.add(labels.get(i));
+            }
+        }
+
+        logger.println(Messages.TaggingSummary(size - failed.size(), size));
+        for (String label : failed) {
+            logger.println(Messages.TaggingFailedFor(label));
+        }
+        return failed.isEmpty();
+    }
+}
@@ -0,0 +1,157 @@
+package hudson.plugins.svn_tag;
+
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Implements <tt>waitBeforeTagging</tt> once per repository for all module
+ * locations tagged by a build.
+ * <p>
+ * In the fixed mode, the first module location of a repository sleeps for the
+ * configured time, and the others proceed immediately unless they need a
+ * revision committed after the sleep started. In the polling mode,
+ * the latest revision of the repository is polled with exponential backoff
+ * until the required revision is visible, with the configured time as the
+ * ceiling. A revision once seen is never polled again.
+ */
+final class RevisionGate {
+
+    /**
+     * First delay between two polls in milliseconds.
+     */
+    static final long INITIAL_DELAY = 250;
+
+    /**
+     * Maximum delay between two polls in milliseconds.
+     */
+    static final long MAX_DELAY = 8000;
+
+    private final int waitBeforeTagging;
+
+    private final boolean poll;
+
+    /**
+     * repository root -> latest revision known to be visible.
+     */
+    private final Map<SVNURL, Long> visible = new HashMap<SVNURL, Long>();
+
+    /**
+     * repository root -> lock serializing the waits for the repository.
+     */
+    private final Map<SVNURL, Object> locks = new HashMap<SVNURL, Object>();
+
+    /**
+     * Creates a new RevisionGate object.
+     *
+     * @param waitBeforeTagging wait time, or the ceiling when polling, in seconds
+     * @param poll              true to poll for the revision instead of sleeping
+     */
+    RevisionGate(int waitBeforeTagging, boolean poll) {
+        this.waitBeforeTagging = waitBeforeTagging;
+        this.poll = poll;
+    }
+
+    /**
+     * Waits until the revision is visible through the session.
+     *
+     * @param session  session to the repository
+     * @param revision revision required
+     * @param logger   build log
+     * @throws InterruptedException when interrupted
+     */
+    void await(SvnSessionPool.Session session, long revision, PrintStream logger)
+            throws InterruptedException {
+        if (waitBeforeTagging <= 0) {
+            return;
+        }
+        SVNURL root = session.getRoot();
+        synchronized (lockFor(root)) {
+            Long known;
+            synchronized (visible) {
+                known = visible.get(root);
+            }
+            if (known != null && known >= revision) {
+                return;
+            }
+            if (!poll) {
+                // the sleep covers the revisions committed before it started, not those after
+                long covered = revision;
+                try {
+                    covered = Math.max(covered, session.getRepository().getLatestRevision());
+                } catch (SVNException e) {
+                    // then only the revision required is covered
+                }
+                logger.println(Messages.WaitBeforeTagging(waitBeforeTagging));
+                Thread.sleep(waitBeforeTagging * 1000L);
+                markVisible(root, covered);
+                return;
+            }
+
+            logger.println(Messages.WaitingForRevision(revision, root));
+            long start = System.currentTimeMillis();
+            long deadline = start + waitBeforeTagging * 1000L;
+            long delay = INITIAL_DELAY;
+            while (true) {
+                long latest;
+                try {
+                    latest = session.getRepository().getLatestRevision();
+                } catch (SVNException e) {
+                    // let the tagging itself report the problem
+                    logger.println(Messages.FailedPollingRevision(root, e.getLocalizedMessage()));
+                    return;
+                }
+                if (latest >= revision) {
+                    markVisible(root, latest);
+                    logger.println(Messages.RevisionVisible(revision,
+                            (System.currentTimeMillis() - start) / 1000.0));
+                    return;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    logger.println(Messages.RevisionNotVisible(revision, waitBeforeTagging));
+                    return;
+                }
+                Thread.sleep(Math.min(delay, remaining));
+                delay = Math.min(delay * 2, MAX_DELAY);
+            }
+        }
+    }
+
+    private Object lockFor(SVNURL root) {
+        synchronized (locks) {
+            Object lock = locks.get(root);
+            if (lock == null) {
+                lock = new Object();
+                locks.put(root, lock);
+            }
+            return lock;
+        }
+    }
+
+    private void markVisible(SVNURL root, long revision) {
+        synchronized (visible) {
+            Long known = visible.get(root);
+            if (known == null || known < revision) {
+                visible.put(root, revision);
+            }
+        }
+    }
+
+    /**
+     * Returns the latest revision of the repository known to be visible.
+     *
+     * @param root repository root
+     * @return the revision, or -1 if none is known yet
+     */
+    long getVisible(SVNURL root) {
+        synchronized (visible) {
+            Long known = visible.get(root);
+            return known == null ? -1 : known;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package hudson.plugins.svn_tag;
+
+import hudson.model.AbstractBuild;
+import hudson.scm.SubversionSCM;
+
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Immutable index from canonical Subversion URL to revision, built from the
+ * <tt>revision.txt</tt> file of a build.
+ * <p>
+ * Indexes are cached by file path and validated against the modification
+ * time and length of the file, so that tagging a build again, e.g. from a
+ * promotion, does not parse the file again. URLs are kept interned in a
+ * sorted array with the revisions in a parallel <tt>long</tt> array.
+ */
+final class RevisionIndex {
+
+    /**
+     * Revision returned for an URL that is not in the index.
+     */
+    static final long NONE = -1;
+
+    static final RevisionIndex EMPTY = new RevisionIndex(new String[0], new long[0], 0, 0);
+
+    private static final int CACHE_SIZE =
+            Integer.getInteger(RevisionIndex.class.getName() + ".cacheSize", 64);
+
+    private static final Map<String, RevisionIndex> CACHE =
+            new LinkedHashMap<String, RevisionIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, RevisionIndex> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private final String[] urls;
+
+    private final long[] revisions;
+
+    private final long lastModified;
+
+    private final long length;
+
+    private RevisionIndex(String[] urls, long[] revisions, long lastModified, long length) {
+        this.urls = urls;
+        this.revisions = revisions;
+        this.lastModified = lastModified;
+        this.length = length;
+    }
+
+    /**
+     * Returns the index of the revision file of the build.
+     *
+     * @param build build object
+     * @return the index, empty if the build has no revision file
+     * @throws IOException thrown when the file cannot be read
+     */
+    static RevisionIndex of(AbstractBuild<?, ?> build) throws IOException {
+        return of(SubversionSCM.getRevisionFile(build));
+    }
+
+    /**
+     * Returns the index of the revision file, from the cache if the file did not change.
+     *
+     * @param file revision file
+     * @return the index, empty if the file does not exist
+     * @throws IOException thrown when the file cannot be read
+     */
+    static RevisionIndex of(File file) throws IOException {
+        if (!file.exists()) {
+            return EMPTY;
+        }
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (CACHE) {
+            RevisionIndex index = CACHE.get(key);
+            if (index != null && index.lastModified == lastModified && index.length == length) {
+                return index;
+            }
+        }
+
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        RevisionIndex index;
+        try {
+            index = parse(br, lastModified, length);
+        } finally {
+            br.close();
+        }
+        synchronized (CACHE) {
+            CACHE.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Parses lines of the form <tt>URL/revision</tt>. Invalid lines are ignored,
+     * and the last line wins for an URL listed twice.
+     *
+     * @param br reader of the revision file
+     * @return the index
+     * @throws IOException thrown when reading failed
+     */
+    static RevisionIndex parse(BufferedReader br) throws IOException {
+        return parse(br, 0, 0);
+    }
+
+    @SuppressWarnings({"NestedAssignment"})
+    private static RevisionIndex parse(BufferedReader br, long lastModified, long length)
+            throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        String line;
+        while ((line = br.readLine()) != null) {
+            int index = line.lastIndexOf('/');
+            if (index < 0) {
+                continue;   // invalid line?
+            }
+            try {
+                long revision = Long.parseLong(line.substring(index + 1));
+                String url = SVNURL.parseURIEncoded(line.substring(0, index)).toString();
+                entries.add(new Entry(url.intern(), revision, entries.size()));
+            } catch (NumberFormatException e) {
+                // perhaps a corrupted line. ignore
+            } catch (SVNException e) {
+                // perhaps a corrupted line. ignore
+            }
+        }
+        Collections.sort(entries);
+
+        String[] urls = new String[entries.size()];
+        long[] revisions = new long[entries.size()];
+        int n = 0;
+        for (Entry entry : entries) {
+            if (n > 0 && urls[n - 1].equals(entry.url)) {
+                n--;    // sorted by line within the same URL, so the later line replaces
+            }
+            urls[n] = entry.url;
+            revisions[n] = entry.revision;
+            n++;
+        }
+        return new RevisionIndex(Arrays.copyOf(urls, n), Arrays.copyOf(revisions, n),
+                lastModified, length);
+    }
+
+    /**
+     * Returns the revision of the URL.
+     *
+     * @param url canonical URL, as returned by {@link SVNURL#toString()}
+     * @return the revision, or {@link #NONE} if the URL is not in the index
+     */
+    long get(String url) {
+        int i = Arrays.binarySearch(urls, url);
+        return i < 0 ? NONE : revisions[i];
+    }
+
+    int size() {
+        return urls.length;
+    }
+
+    /**
+     * Returns the URLs in the index.
+     *
+     * @return canonical URLs, sorted
+     */
+    List<String> getURLs() {
+        return Collections.unmodifiableList(Arrays.asList(urls));
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        private final String url;
+        private final long revision;
+        private final int line;
+
+        private Entry(String url, long revision, int line) {
+            this.url = url;
+            this.revision = revision;
+            this.line = line;
+        }
+
+        public int compareTo(Entry o) {
+            int c = url.compareTo(o.url);
+            return c != 0 ? c : (line < o.line ? -1 : (line == o.line ? 0 : 1));
+        }
+    }
+}
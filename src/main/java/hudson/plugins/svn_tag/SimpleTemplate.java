@@ -0,0 +1,201 @@
+package hudson.plugins.svn_tag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Template rendered without Groovy.
+ * <p>
+ * Most templates only substitute variables, e.g.
+ * <tt>${env['JOB_NAME']}-${env['BUILD_NUMBER']}</tt> or <tt>${repoURL[3]}</tt>.
+ * Such templates are parsed once into literal and lookup segments and
+ * rendered with a single {@link StringBuilder}. The supported expressions are
+ * <tt>env['KEY']</tt>, <tt>env.KEY</tt>, <tt>sys['key']</tt>, <tt>sys.key</tt>
+ * and <tt>repoURL[n]</tt>, which render exactly as the same GString would.
+ * Anything else is left to Groovy.
+ */
+final class SimpleTemplate {
+
+    private static final int LITERAL = 0;
+
+    private static final int ENV = 1;
+
+    private static final int SYS = 2;
+
+    private static final int REPO_URL = 3;
+
+    private final int[] kinds;
+
+    /**
+     * literal text, or the key to look up.
+     */
+    private final String[] values;
+
+    private final int[] indexes;
+
+    private final int sizeHint;
+
+    private SimpleTemplate(int[] kinds, String[] values, int[] indexes, int sizeHint) {
+        this.kinds = kinds;
+        this.values = values;
+        this.indexes = indexes;
+        this.sizeHint = sizeHint;
+    }
+
+    /**
+     * Parses the template.
+     *
+     * @param text template text, as the body of a Groovy string
+     * @return the template, or null if the template needs Groovy
+     */
+    static SimpleTemplate parse(String text) {
+        List<Integer> kinds = new ArrayList<Integer>();
+        List<String> values = new ArrayList<String>();
+        List<Integer> indexes = new ArrayList<Integer>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                case '\n':
+                case '\r':
+                    return null;
+                case '$':
+                    int end = text.indexOf('}', i + 2);
+                    if (i + 1 >= text.length() || text.charAt(i + 1) != '{' || end < 0) {
+                        return null;
+                    }
+                    if (literal.length() > 0) {
+                        kinds.add(LITERAL);
+                        values.add(literal.toString());
+                        indexes.add(0);
+                        literal.setLength(0);
+                    }
+                    if (!parseLookup(text.substring(i + 2, end).trim(), kinds, values, indexes)) {
+                        return null;
+                    }
+                    i = end + 1;
+                    break;
+                default:
+                    literal.append(c);
+                    i++;
+                    break;
+            }
+        }
+        if (literal.length() > 0) {
+            kinds.add(LITERAL);
+            values.add(literal.toString());
+            indexes.add(0);
+        }
+
+        int[] kindArray = new int[kinds.size()];
+        int[] indexArray = new int[kinds.size()];
+        for (int n = 0; n < kindArray.length; n++) {
+            kindArray[n] = kinds.get(n);
+            indexArray[n] = indexes.get(n);
+        }
+        return new SimpleTemplate(kindArray, values.toArray(new String[values.size()]), indexArray,
+                text.length() + 16);
+    }
+
+    private static boolean parseLookup(String expression, List<Integer> kinds,
+                                       List<String> values, List<Integer> indexes) {
+        int kind;
+        String rest;
+        if (expression.startsWith("env")) {
+            kind = ENV;
+            rest = expression.substring(3);
+        } else if (expression.startsWith("sys")) {
+            kind = SYS;
+            rest = expression.substring(3);
+        } else if (expression.startsWith("repoURL")) {
+            kind = REPO_URL;
+            rest = expression.substring(7);
+        } else {
+            return false;
+        }
+
+        if (kind == REPO_URL) {
+            if (!rest.startsWith("[") || !rest.endsWith("]") || rest.length() < 3) {
+                return false;
+            }
+            String index = rest.substring(1, rest.length() - 1).trim();
+            for (int n = index.startsWith("-") ? 1 : 0; n < index.length(); n++) {
+                if (!Character.isDigit(index.charAt(n))) {
+                    return false;
+                }
+            }
+            if (index.length() == 0 || index.equals("-") || index.length() > 9) {
+                return false;
+            }
+            kinds.add(kind);
+            values.add(null);
+            indexes.add(Integer.parseInt(index));
+            return true;
+        }
+
+        String key;
+        if (rest.startsWith("['") && rest.endsWith("']") && rest.length() >= 4) {
+            key = rest.substring(2, rest.length() - 2);
+            if (key.indexOf('\'') >= 0) {
+                return false;
+            }
+        } else if (rest.startsWith(".") && isIdentifier(rest.substring(1))) {
+            key = rest.substring(1);
+        } else {
+            return false;
+        }
+        kinds.add(kind);
+        values.add(key);
+        indexes.add(0);
+        return true;
+    }
+
+    private static boolean isIdentifier(String s) {
+        if (s.length() == 0 || !Character.isJavaIdentifierStart(s.charAt(0))) {
+            return false;
+        }
+        for (int n = 1; n < s.length(); n++) {
+            if (!Character.isJavaIdentifierPart(s.charAt(n))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Renders the template. Missing values render as <tt>null</tt>, like in a GString.
+     * A negative index before the first path element fails as in Groovy.
+     *
+     * @param env     environment variables
+     * @param sys     system properties
+     * @param repoURL path elements of the module location URL
+     * @return the rendered template
+     */
+    String render(Map<?, ?> env, Map<?, ?> sys, List<?> repoURL) {
+        StringBuilder buf = new StringBuilder(sizeHint);
+        for (int n = 0; n < kinds.length; n++) {
+            switch (kinds[n]) {
+                case LITERAL:
+                    buf.append(values[n]);
+                    break;
+                case ENV:
+                    buf.append(env.get(values[n]));
+                    break;
+                case SYS:
+                    buf.append(sys.get(values[n]));
+                    break;
+                default:
+                    // like Groovy: negative indexes count from the end, indexes past the end are null
+                    int index = indexes[n] < 0 ? indexes[n] + repoURL.size() : indexes[n];
+                    buf.append(index < repoURL.size() ? repoURL.get(index) : null);
+                    break;
+            }
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,407 @@
+package hudson.plugins.svn_tag;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+import org.tmatesoft.svn.core.SVNCancelException;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.wc.SVNClientManager;
+import org.tmatesoft.svn.core.wc.SVNWCUtil;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Pool of authenticated SVN sessions on the controller, shared by all module
+ * locations of a build and by subsequent builds.
+ * <p>
+ * A session is an {@link SVNClientManager} that keeps its connections open,
+ * bound to one repository root and one credential identity. Sessions are
+ * borrowed exclusively by one thread at a time and returned with
+ * {@link #release(Session, boolean)}. Idle sessions are closed after
+ * {@link #IDLE_TIMEOUT} and at most {@link #MAX_IDLE} of them are kept.
+ * <p>
+ * At most {@link #MAX_ACTIVE_PER_ROOT} sessions of one repository are
+ * borrowed at a time, whatever the host limit of the {@link SvnThrottle},
+ * which does not cover sessions held by the preparation, the pruning or the
+ * configuration checks. A thread that already holds a session never waits,
+ * so that no two threads wait for each other's sessions.
+ */
+final class SvnSessionPool {
+
+    private static final Logger LOGGER = Logger.getLogger(SvnSessionPool.class.getName());
+
+    /**
+     * Milliseconds after which an idle session is closed.
+     */
+    static final long IDLE_TIMEOUT = Long.getLong(SvnSessionPool.class.getName() + ".idleTimeout",
+            TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * Maximum number of idle sessions kept.
+     */
+    static final int MAX_IDLE = Integer.getInteger(SvnSessionPool.class.getName() + ".maxIdle", 16);
+
+    /**
+     * Maximum number of sessions of one repository borrowed at a time, 0 for no limit.
+     */
+    static final int MAX_ACTIVE_PER_ROOT =
+            Integer.getInteger(SvnSessionPool.class.getName() + ".maxActivePerRoot", 16);
+
+    private static final SvnSessionPool INSTANCE =
+            new SvnSessionPool(MAX_IDLE, IDLE_TIMEOUT, MAX_ACTIVE_PER_ROOT);
+
+    /**
+     * Creates the authentication manager of a new session.
+     */
+    interface AuthenticationFactory {
+        /**
+         * @return the authentication manager, or null if none is available.
+         */
+        ISVNAuthenticationManager create();
+    }
+
+    private final int maxIdle;
+
+    private final long idleTimeout;
+
+    private final int maxActivePerRoot;
+
+    /**
+     * idle sessions, the most recently used first.
+     */
+    private final LinkedList<Session> idle = new LinkedList<Session>();
+
+    /**
+     * repository roots seen so far, to find the root of a URL without a round trip.
+     */
+    private final Set<SVNURL> roots = new HashSet<SVNURL>();
+
+    /**
+     * sessions borrowed, including those still being opened.
+     */
+    private final List<Session> borrowed = new ArrayList<Session>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong opens = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong active = new AtomicLong();
+
+    SvnSessionPool(int maxIdle, long idleTimeout, int maxActivePerRoot) {
+        this.maxIdle = maxIdle;
+        this.idleTimeout = idleTimeout;
+        this.maxActivePerRoot = maxActivePerRoot;
+    }
+
+    /**
+     * Returns the pool shared by all builds.
+     *
+     * @return the pool
+     */
+    static SvnSessionPool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Borrows a session for the repository the URL belongs to.
+     *
+     * @param credentialKey identity of the credentials, sessions are never shared across identities
+     * @param url           any URL within the repository
+     * @param factory       creates the authentication manager if a new session is needed
+     * @return the session, or null if the factory provided no authentication manager
+     * @throws SVNException when the repository root cannot be determined, or
+     *                      {@link SVNCancelException} when interrupted while waiting
+     */
+    Session acquire(String credentialKey, SVNURL url, AuthenticationFactory factory)
+            throws SVNException {
+        // reserves the slot of the session to be opened
+        Session slot = new Session(credentialKey, null, null);
+        synchronized (this) {
+            slot.root = findRoot(url);
+            if (slot.root != null) {
+                awaitSlot(slot.root);
+                for (Iterator<Session> it = idle.iterator(); it.hasNext();) {
+                    Session session = it.next();
+                    if (session.root.equals(slot.root) && session.credentialKey.equals(credentialKey)) {
+                        it.remove();
+                        session.owner = Thread.currentThread();
+                        borrowed.add(session);
+                        hits.incrementAndGet();
+                        active.incrementAndGet();
+                        return session;
+                    }
+                }
+            }
+            // the root of a repository never seen is not known before the session is open
+            slot.owner = Thread.currentThread();
+            borrowed.add(slot);
+        }
+
+        boolean opened = false;
+        try {
+            ISVNAuthenticationManager sam = factory.create();
+            if (sam == null) {
+                return null;
+            }
+            SVNClientManager clientManager =
+                    SVNClientManager.newInstance(SVNWCUtil.createDefaultOptions(true), sam);
+            opens.incrementAndGet();
+            if (slot.root == null) {
+                SVNURL root;
+                try {
+                    root = clientManager.createRepository(url, true).getRepositoryRoot(true);
+                } catch (SVNException e) {
+                    clientManager.dispose();
+                    throw e;
+                }
+                synchronized (this) {
+                    roots.add(root);
+                    slot.root = root;
+                }
+            }
+            slot.clientManager = clientManager;
+            active.incrementAndGet();
+            opened = true;
+            return slot;
+        } finally {
+            if (!opened) {
+                synchronized (this) {
+                    borrowed.remove(slot);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until fewer than the maximum sessions of the repository are
+     * borrowed, unless the current thread holds a session.
+     */
+    private void awaitSlot(SVNURL root) throws SVNCancelException {
+        while (maxActivePerRoot > 0) {
+            int n = 0;
+            for (Session session : borrowed) {
+                if (session.owner == Thread.currentThread()) {
+                    return;
+                }
+                if (root.equals(session.root)) {
+                    n++;
+                }
+            }
+            if (n < maxActivePerRoot) {
+                return;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SVNCancelException();
+            }
+        }
+    }
+
+    /**
+     * Returns a session to the pool.
+     *
+     * @param session  the session
+     * @param reusable false to close the session instead, e.g. after a connection failure
+     */
+    void release(Session session, boolean reusable) {
+        if (session == null) {
+            return;
+        }
+        active.decrementAndGet();
+        List<Session> closing = new ArrayList<Session>();
+        synchronized (this) {
+            borrowed.remove(session);
+            session.owner = null;
+            notifyAll();
+            if (reusable) {
+                session.lastUsed = System.currentTimeMillis();
+                idle.addFirst(session);
+            } else {
+                closing.add(session);
+            }
+            while (idle.size() > maxIdle) {
+                closing.add(idle.removeLast());
+                evictions.incrementAndGet();
+            }
+        }
+        close(closing);
+    }
+
+    /**
+     * Closes sessions idle for longer than the idle timeout.
+     */
+    void evictIdle() {
+        long threshold = System.currentTimeMillis() - idleTimeout;
+        List<Session> closing = new ArrayList<Session>();
+        synchronized (this) {
+            for (Iterator<Session> it = idle.iterator(); it.hasNext();) {
+                Session session = it.next();
+                if (session.lastUsed < threshold) {
+                    it.remove();
+                    closing.add(session);
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+        close(closing);
+    }
+
+    private static void close(List<Session> sessions) {
+        for (Session session : sessions) {
+            try {
+                session.clientManager.dispose();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Failed to close the session to " + session.root, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the root of the repository of the URL if a session to it was
+     * ever opened, without a round trip.
+     *
+     * @param url any URL within the repository
+     * @return the root, or null if not known yet
+     */
+    synchronized SVNURL getKnownRoot(SVNURL url) {
+        return findRoot(url);
+    }
+
+    private SVNURL findRoot(SVNURL url) {
+        SVNURL found = null;
+        for (SVNURL root : roots) {
+            // the longest match, in case repositories are served from nested paths
+            if (TagTransaction.relativePath(root, url) != null
+                    && (found == null || root.getPath().length() > found.getPath().length())) {
+                found = root;
+            }
+        }
+        return found;
+    }
+
+    synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Returns the number of sessions of the repository borrowed right now.
+     *
+     * @param root repository root
+     * @return sessions in use
+     */
+    synchronized int getActiveCount(SVNURL root) {
+        int n = 0;
+        for (Session session : borrowed) {
+            if (root.equals(session.root)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    long getActiveCount() {
+        return active.get();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns how many sessions were opened, i.e. the pool misses.
+     *
+     * @return number of sessions opened
+     */
+    long getOpens() {
+        return opens.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SvnSessionPool[idle=" + getIdleCount() + "/" + maxIdle + ", active=" + getActiveCount()
+                + ", hits=" + getHits() + ", opens=" + getOpens()
+                + ", evictions=" + getEvictions() + "]";
+    }
+
+    /**
+     * Authenticated connection to one repository root.
+     */
+    static final class Session {
+        private final String credentialKey;
+        private SVNURL root;
+        private SVNClientManager clientManager;
+        private long lastUsed;
+        /**
+         * thread that borrowed the session, null while idle.
+         */
+        private Thread owner;
+
+        private Session(String credentialKey, SVNURL root, SVNClientManager clientManager) {
+            this.credentialKey = credentialKey;
+            this.root = root;
+            this.clientManager = clientManager;
+        }
+
+        SVNURL getRoot() {
+            return root;
+        }
+
+        String getCredentialKey() {
+            return credentialKey;
+        }
+
+        SVNClientManager getClientManager() {
+            return clientManager;
+        }
+
+        /**
+         * Returns a repository located at the root, reusing the open connection.
+         *
+         * @return the repository
+         * @throws SVNException when the repository cannot be created
+         */
+        SVNRepository getRepository() throws SVNException {
+            SVNRepository repository = clientManager.createRepository(root, true);
+            repository.setLocation(root, false);
+            return repository;
+        }
+    }
+
+    /**
+     * Closes idle sessions periodically.
+     */
+    @Extension
+    public static final class IdleSessionEvictor extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            get().evictIdle();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package hudson.plugins.svn_tag;
+
+import hudson.model.Action;
+
+
+/**
+ * Shows the outcome of the tagging of a build that was tagged in the
+ * background by the {@link TagService}.
+ */
+public class SvnTagAction implements Action {
+
+    /**
+     * State of the tagging.
+     */
+    public enum Status {
+        PENDING, RUNNING, SUCCESS, FAILURE;
+
+        /**
+         * Returns the status as a sentence.
+         *
+         * @return the description of the status
+         */
+        public String getDescription() {
+            switch (this) {
+                case PENDING:
+                    return Messages.SvnTagAction_Status_PENDING();
+                case RUNNING:
+                    return Messages.SvnTagAction_Status_RUNNING();
+                case SUCCESS:
+                    return Messages.SvnTagAction_Status_SUCCESS();
+                default:
+                    return Messages.SvnTagAction_Status_FAILURE();
+            }
+        }
+    }
+
+    private volatile Status status = Status.PENDING;
+
+    private volatile String log = "";
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the console output of the background tagging.
+     *
+     * @return the output, empty until the tagging is done
+     */
+    public String getLog() {
+        return log;
+    }
+
+    void started() {
+        this.status = Status.RUNNING;
+    }
+
+    void finished(boolean success, String log) {
+        this.log = log;
+        this.status = success ? Status.SUCCESS : Status.FAILURE;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.SvnTagAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "svnTag";
+    }
+}
@@ -1,18 +1,22 @@
 package hudson.plugins.svn_tag;
 
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
 import hudson.EnvVars;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
-import hudson.model.Run;
 import hudson.model.BuildListener;
+import hudson.model.Job;
 import hudson.model.Result;
+import hudson.scm.CredentialsSVNAuthenticationProviderImpl;
 import hudson.scm.SubversionSCM;
+import hudson.security.ACL;
 
 import org.apache.commons.lang.StringUtils;
-import org.codehaus.groovy.control.CompilerConfiguration;
 import org.tmatesoft.svn.core.*;
 import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
 import org.tmatesoft.svn.core.auth.ISVNAuthenticationProvider;
@@ -21,7 +25,10 @@ import org.tmatesoft.svn.core.wc.*;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -37,6 +44,21 @@ import java.util.Map;
                 "MethodParameterOfConcreteClass", "InstanceofInterfaces"})
 public class SvnTagPlugin {
 
+    /**
+     * path elements of the URL templates are checked against.
+     */
+    private static final List<String> EXAMPLE_REPO_URL = Collections.unmodifiableList(
+            Arrays.asList(StringUtils.split(
+                    "http://svn.example.com/path1/path2/path3/path4/path5/path6/path7/path8/path9/path10",
+                    "/")));
+
+    /**
+     * Compiled tag URL and comment templates shared by all builds.
+     */
+    private static final GroovyTemplateCache TEMPLATE_CACHE = new GroovyTemplateCache(
+            Integer.getInteger(GroovyTemplateCache.class.getName() + ".maxSize",
+                    GroovyTemplateCache.DEFAULT_MAX_SIZE));
+
     /**
      * Creates a new SvnTagPlugin object.
      */
@@ -57,13 +79,77 @@ public class SvnTagPlugin {
      * @throws InterruptedException 
      * @throws IOException 
      */
+    public static boolean perform(AbstractBuild<?,?> abstractBuild,
+                                  Launcher launcher,
+                                  BuildListener buildListener,
+                                  String tagBaseURLStr, String tagComment,
+                                  String tagDeleteComment, int waitBeforeTagging)
+                                          throws IOException, InterruptedException {
+        return perform(abstractBuild, launcher, buildListener, tagBaseURLStr, tagComment,
+                tagDeleteComment, waitBeforeTagging, false, false, 1, false);
+    }
+
+    /**
+     * True if the operation was successful.
+     *
+     * @param abstractBuild build
+     * @param launcher      launcher
+     * @param buildListener build listener
+     * @param tagBaseURLStr tag base URL string
+     * @param tagComment    tag comment
+     * @param tagDeleteComment tag delete comment
+     * @param waitBeforeTagging wait time before tagging in seconds
+     * @param pollForRevision true to poll until the revision is visible, with
+     *                        <tt>waitBeforeTagging</tt> as the ceiling
+     * @param atomicTagging true to tag all module locations of a repository in one commit
+     * @param parallelism maximum number of module locations or repositories tagged concurrently
+     * @param asynchronous true to only queue the tagging in the {@link TagService}
+     * @return true if the operation was successful
+     * @throws InterruptedException 
+     * @throws IOException 
+     */
+    public static boolean perform(AbstractBuild<?,?> abstractBuild,
+                                  Launcher launcher,
+                                  BuildListener buildListener,
+                                  String tagBaseURLStr, String tagComment,
+                                  final String tagDeleteComment, int waitBeforeTagging,
+                                  boolean pollForRevision, boolean atomicTagging,
+                                  int parallelism, boolean asynchronous)
+                                          throws IOException, InterruptedException {
+        return perform(abstractBuild, launcher, buildListener, tagBaseURLStr, tagComment,
+                tagDeleteComment, waitBeforeTagging, pollForRevision, atomicTagging, parallelism,
+                asynchronous, TagLayout.FLAT);
+    }
+
+    /**
+     * True if the operation was successful.
+     *
+     * @param abstractBuild build
+     * @param launcher      launcher
+     * @param buildListener build listener
+     * @param tagBaseURLStr tag base URL string
+     * @param tagComment    tag comment
+     * @param tagDeleteComment tag delete comment
+     * @param waitBeforeTagging wait time before tagging in seconds
+     * @param pollForRevision true to poll until the revision is visible, with
+     *                        <tt>waitBeforeTagging</tt> as the ceiling
+     * @param atomicTagging true to tag all module locations of a repository in one commit
+     * @param parallelism maximum number of module locations or repositories tagged concurrently
+     * @param asynchronous true to only queue the tagging in the {@link TagService}
+     * @param tagLayout places the tags into bucket directories
+     * @return true if the operation was successful
+     * @throws InterruptedException 
+     * @throws IOException 
+     */
     @SuppressWarnings({"FeatureEnvy", "UnusedDeclaration", "TypeMayBeWeakened",
             "LocalVariableOfConcreteClass"})
     public static boolean perform(AbstractBuild<?,?> abstractBuild,
                                   Launcher launcher,
                                   BuildListener buildListener,
                                   String tagBaseURLStr, String tagComment,
-                                  String tagDeleteComment, int waitBeforeTagging)
+                                  final String tagDeleteComment, int waitBeforeTagging,
+                                  boolean pollForRevision, boolean atomicTagging,
+                                  int parallelism, boolean asynchronous, TagLayout tagLayout)
                                           throws IOException, InterruptedException {
         PrintStream logger = buildListener.getLogger();
         logger.println("Starting to tag");
@@ -85,7 +171,7 @@ public class SvnTagPlugin {
         }
 
         SubversionSCM scm = SubversionSCM.class.cast(rootProject.getScm());
-        EnvVars envVars = rootBuild.getEnvironment(buildListener);
+        final EnvVars envVars = rootBuild.getEnvironment(buildListener);
 
         // Let SubversionSCM fill revision number.
         // It is guaranteed for getBuilds() return the latest build (i.e.
@@ -97,7 +183,8 @@ public class SvnTagPlugin {
 
         // environment variable "SVN_REVISION" doesn't contain revision number when multiple modules are
         // specified. Instead, parse revision.txt and obtain the corresponding revision numbers.
-        Map<String, Long> revisions;
+        RevisionIndex revisions;
+        long revisionFileStart = System.nanoTime();
         try {
             revisions = parseRevisionFile(rootBuild);
         } catch (IOException e) {
@@ -105,127 +192,830 @@ public class SvnTagPlugin {
             		Messages.FailedParsingRevisionFile(e.getLocalizedMessage()));
             return false;
         }
+        long revisionFileNanos = System.nanoTime() - revisionFileStart;
+        TagMetrics.get().record(TagPhase.REVISION_FILE, revisionFileNanos);
 
+        List<TagTarget> targets = new ArrayList<TagTarget>();
         for (SubversionSCM.ModuleLocation ml : scm.getLocations(envVars, rootBuild)) {
-			String mlUrl;
-        	URI repoURI;
-			try {
-				mlUrl = ml.getSVNURL().toString();
-                logger.println("Tagging " + mlUrl);
-				repoURI = new URI(mlUrl);
-			} catch (SVNException e) {
-        		logger.println(
-        				Messages.FailedParsingRepositoryURL(ml.remote, e.getLocalizedMessage()));
-        		return false;
-			} catch (URISyntaxException e) {
-        		logger.println(
-        				Messages.FailedParsingRepositoryURL(ml.remote, e.getLocalizedMessage()));
-        		return false;
-        	}
-            Long revision = revisions.get(mlUrl);
-            if (revision == null) {
+            SVNURL sourceURL;
+            try {
+                sourceURL = ml.getSVNURL();
+            } catch (SVNException e) {
+                logger.println(
+                        Messages.FailedParsingRepositoryURL(ml.remote, e.getLocalizedMessage()));
+                return false;
+            }
+            String mlUrl = sourceURL.toString();
+            logger.println("Tagging " + mlUrl);
+            long revision = revisions.get(mlUrl);
+            if (revision == RevisionIndex.NONE) {
                 // this can happen for example if the project configuration changes since this build.
                 logger.println(Messages.RevisionNotAvailable(mlUrl));
                 continue;
             }
 
-        	logger.println(Messages.RemoteModuleLocation(mlUrl+'@'+revision));
+            logger.println(Messages.RemoteModuleLocation(mlUrl+'@'+revision));
+
+            TagTarget target = createTarget(ml, sourceURL, revision, envVars, tagBaseURLStr,
+                    tagComment, tagDeleteComment, tagLayout, rootBuild.getTimeInMillis(),
+                    abstractBuild.getFullDisplayName(), logger);
+            if (target == null) {
+                return false;
+            }
+            targets.add(target);
+        }
+
+        if (asynchronous) {
+            TagRequest request = new TagRequest(abstractBuild, targets, waitBeforeTagging,
+                    pollForRevision, atomicTagging, parallelism);
+            abstractBuild.addAction(new SvnTagAction());
+            TagService.get().submit(request);
+            logger.println(Messages.TaggingQueued(targets.size()));
+            return true;
+        }
+
+        int prepared = TagPreparation.get().apply(rootBuild, targets);
+        if (prepared > 0) {
+            logger.println(Messages.TagsPrepared(prepared));
+        }
+        boolean success = tag(rootBuild, scm, buildListener, targets, waitBeforeTagging,
+                pollForRevision, atomicTagging, parallelism);
+        abstractBuild.addAction(new TagTimingAction(revisionFileNanos, targets));
+        abstractBuild.addAction(new TagRecordAction(targets));
+        TagHistory.record(rootProject, rootBuild.getNumber(), targets);
+        return success;
+    }
+
+    /**
+     * Evaluates the tag URL and comment templates for one module location.
+     *
+     * @param location         module location the source belongs to
+     * @param sourceURL        URL of the module location
+     * @param revision         revision to tag
+     * @param env              environment variables the templates see
+     * @param tagBaseURLStr    tag base URL template
+     * @param tagComment       tag comment template
+     * @param tagDeleteComment tag delete comment template, evaluated when needed
+     * @param tagLayout        places the tag into a bucket directory, null to keep it as evaluated
+     * @param timestamp        time of the build in milliseconds since the epoch
+     * @param requester        display name of the build requesting the tag
+     * @param logger           logger to report to
+     * @return the target, or null if an URL cannot be parsed
+     */
+    static TagTarget createTarget(SubversionSCM.ModuleLocation location, SVNURL sourceURL,
+                                  long revision, final Map<String, String> env,
+                                  String tagBaseURLStr, String tagComment,
+                                  final String tagDeleteComment, TagLayout tagLayout,
+                                  long timestamp, String requester, PrintStream logger) {
+        long templateStart = System.nanoTime();
+        String mlUrl = sourceURL.toString();
+        URI repoURI;
+        try {
+            repoURI = new URI(mlUrl);
+        } catch (URISyntaxException e) {
+            logger.println(
+                    Messages.FailedParsingRepositoryURL(location.remote, e.getLocalizedMessage()));
+            return null;
+        }
+        final List<String> locationPathElements = Arrays.asList(StringUtils.split(mlUrl, "/"));
+        String evaledTagBaseURLStr = evalGroovyExpression(
+                env, tagBaseURLStr, locationPathElements);
+
+        SVNURL logicalTagURL;
+        SVNURL parsedTagBaseURL;
+        try {
+            logicalTagURL = SVNURL.parseURIDecoded(
+                    repoURI.resolve(evaledTagBaseURLStr).toString());
+            parsedTagBaseURL = tagLayout == null
+                    ? logicalTagURL : tagLayout.apply(logicalTagURL, timestamp);
+            logger.println(Messages.TagBaseURL(parsedTagBaseURL.toString()));
+        } catch (SVNException e) {
+            logger.println(Messages.FailedParsingTagBaseURL(
+                    evaledTagBaseURLStr, e.getLocalizedMessage()));
+            return null;
+        }
+
+        TagTarget target = new TagTarget(location, sourceURL, revision, parsedTagBaseURL,
+                evalGroovyExpression(env, tagComment, locationPathElements),
+                new TagTarget.Comment() {
+                    public String evaluate() {
+                        return evalGroovyExpression(env, tagDeleteComment,
+                                locationPathElements);
+                    }
+                },
+                requester);
+        target.setLogicalTagURL(logicalTagURL);
+        target.addTime(TagPhase.TEMPLATE, System.nanoTime() - templateStart);
+        return target;
+    }
+
+    /**
+     * Tags the resolved module locations of a root build, unless another
+     * build of the same root build tags them already.
+     *
+     * @param rootBuild         build holding the revisions, whose project holds the SCM configuration
+     * @param scm               SCM of the root project
+     * @param buildListener     listener to log to
+     * @param targets           module locations to tag
+     * @param waitBeforeTagging wait time before tagging in seconds
+     * @param pollForRevision   true to poll until the revision is visible
+     * @param atomicTagging     true to tag all module locations of a repository in one commit
+     * @param parallelism       maximum number of module locations or repositories tagged concurrently
+     * @return true if the operation was successful
+     * @throws InterruptedException when interrupted
+     */
+    static boolean tag(AbstractBuild<?, ?> rootBuild, SubversionSCM scm,
+                       BuildListener buildListener, List<TagTarget> targets,
+                       int waitBeforeTagging, boolean pollForRevision,
+                       boolean atomicTagging, int parallelism)
+            throws InterruptedException {
+        return tag(TagDeduplicator.key(rootBuild), rootBuild.getProject(), scm, buildListener,
+                targets, waitBeforeTagging, pollForRevision, atomicTagging, parallelism);
+    }
+
+    /**
+     * Tags the resolved module locations of the root build with the key,
+     * unless another build of the same root build tags them already.
+     *
+     * @param buildKey          key of the root build, see {@link TagDeduplicator#key}
+     * @param rootProject       job holding the SCM configuration, the context of the credentials
+     * @param scm               SCM of the root project
+     * @param buildListener     listener to log to
+     * @param targets           module locations to tag
+     * @param waitBeforeTagging wait time before tagging in seconds
+     * @param pollForRevision   true to poll until the revision is visible
+     * @param atomicTagging     true to tag all module locations of a repository in one commit
+     * @param parallelism       maximum number of module locations or repositories tagged concurrently
+     * @return true if the operation was successful
+     * @throws InterruptedException when interrupted
+     */
+    static boolean tag(String buildKey, final Job<?, ?> rootProject, final SubversionSCM scm,
+                       final BuildListener buildListener, List<TagTarget> targets,
+                       final int waitBeforeTagging, final boolean pollForRevision,
+                       final boolean atomicTagging, final int parallelism)
+            throws InterruptedException {
+        return TagDeduplicator.get().tag(buildKey, targets,
+                buildListener.getLogger(), new TagDeduplicator.Tagger() {
+                    public boolean tag(List<TagTarget> claimed) throws InterruptedException {
+                        return SvnTagPlugin.tag(rootProject, scm, buildListener,
+                                claimed, waitBeforeTagging, pollForRevision, atomicTagging,
+                                parallelism);
+                    }
+                });
+    }
+
+    /**
+     * Tags the resolved module locations.
+     *
+     * @param rootProject       job holding the SCM configuration, the context of the credentials
+     * @param scm               SCM providing the credentials, null to look them up by credentials ID
+     * @param buildListener     listener to log to
+     * @param targets           module locations to tag
+     * @param waitBeforeTagging wait time before tagging in seconds
+     * @param pollForRevision   true to poll until the revision is visible
+     * @param atomicTagging     true to tag all module locations of a repository in one commit
+     * @param parallelism       maximum number of module locations or repositories tagged concurrently
+     * @return true if the operation was successful
+     * @throws InterruptedException when interrupted
+     */
+    static boolean tag(Job<?, ?> rootProject, SubversionSCM scm,
+                       BuildListener buildListener, List<TagTarget> targets,
+                       int waitBeforeTagging, boolean pollForRevision,
+                       boolean atomicTagging, int parallelism) throws InterruptedException {
+        // register all targets up front, so that they can supersede older requests right away.
+        TagCoalescer coalescer = TagCoalescer.get();
+        for (TagTarget target : targets) {
+            coalescer.enqueue(target);
+        }
+        try {
+            return tagTargets(rootProject, scm, buildListener, targets,
+                    new RevisionGate(waitBeforeTagging, pollForRevision), atomicTagging, parallelism);
+        } finally {
+            for (TagTarget target : targets) {
+                coalescer.withdraw(target.ticket);
+            }
+        }
+    }
+
+    private static boolean tagTargets(final Job<?, ?> rootProject,
+                                      final SubversionSCM scm, BuildListener buildListener,
+                                      List<TagTarget> targets, final RevisionGate gate,
+                                      boolean atomicTagging, int parallelism)
+            throws InterruptedException {
+        if (atomicTagging) {
+            return tagAtomically(rootProject, scm, buildListener, targets, gate, parallelism);
+        }
+
+        final Map<TagTarget, Boolean> tagExists;
+        try {
+            tagExists = probeTags(rootProject, scm, targets);
+        } catch (SVNException e) {
+            e.printStackTrace(buildListener.error(Messages.FailedProbingTags()));
+            return false;
+        }
+
+        // tags nested in each other must be created one after another, everything else may run concurrently.
+        ParallelTagger tagger = new ParallelTagger();
+        for (final List<TagTarget> chain : chainOverlappingTags(targets)) {
+            tagger.add(chain.get(0).getSourceURL().toString(), new ParallelTagger.Task() {
+                public boolean run(BuildListener listener) throws InterruptedException {
+                    for (TagTarget target : chain) {
+                        if (!tag(rootProject, scm, listener, target,
+                                tagExists.get(target), gate)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            });
+        }
+        return tagger.run(buildListener, parallelism);
+    }
+
+    /**
+     * Splits the targets into chains such that targets in different chains
+     * have no tag inside the tag of the other.
+     */
+    private static List<List<TagTarget>> chainOverlappingTags(List<TagTarget> targets) {
+        List<List<TagTarget>> chains = new ArrayList<List<TagTarget>>();
+        for (TagTarget target : targets) {
+            String tag = target.getTagURL().toDecodedString() + '/';
+            List<TagTarget> found = null;
+            for (List<TagTarget> chain : chains) {
+                for (TagTarget t : chain) {
+                    String other = t.getTagURL().toDecodedString() + '/';
+                    if (tag.startsWith(other) || other.startsWith(tag)) {
+                        found = chain;
+                        break;
+                    }
+                }
+                if (found != null) {
+                    break;
+                }
+            }
+            if (found == null) {
+                found = new ArrayList<TagTarget>();
+                chains.add(found);
+            }
+            found.add(target);
+        }
+        return chains;
+    }
+
+    /**
+     * Probes which tags exist, sharing one session per repository and credentials.
+     * Probes taken while the build was running are used if their repository did
+     * not change since.
+     *
+     * @return whether the tag exists per target. Targets whose tag is not in the
+     *         repository of their source are left out.
+     */
+    private static Map<TagTarget, Boolean> probeTags(Job<?, ?> rootProject,
+                                                     SubversionSCM scm, List<TagTarget> targets)
+            throws SVNException {
+        Map<TagTarget, Boolean> tagExists = new HashMap<TagTarget, Boolean>();
+        List<SvnSessionPool.Session> sessions = new ArrayList<SvnSessionPool.Session>();
+        Map<SVNURL, Long> heads = new HashMap<SVNURL, Long>();
+        boolean success = false;
+        try {
+            for (TagTarget target : targets) {
+                String credentialKey = credentialKey(rootProject, target);
+                SvnSessionPool.Session session = null;
+                for (SvnSessionPool.Session s : sessions) {
+                    if (s.getCredentialKey().equals(credentialKey)
+                            && TagTransaction.relativePath(s.getRoot(), target.getSourceURL()) != null) {
+                        session = s;
+                        break;
+                    }
+                }
+                if (session == null) {
+                    session = acquireSession(rootProject, scm, target);
+                    if (session == null) {
+                        continue;   // reported when tagging
+                    }
+                    sessions.add(session);
+                }
+                TagPreparation.Probe prepared = target.getPrepared();
+                if (prepared != null && prepared.isCurrent(session, heads)) {
+                    tagExists.put(target, prepared.exists());
+                    continue;
+                }
+                target.setPrepared(null);
+                Boolean exists = probeTag(session, target);
+                if (exists != null) {
+                    tagExists.put(target, exists);
+                }
+            }
+            success = true;
+            return tagExists;
+        } finally {
+            for (SvnSessionPool.Session session : sessions) {
+                SvnSessionPool.get().release(session, success);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the tag of the target exists, or null if the tag is not
+     * in the repository of the session.
+     */
+    private static Boolean probeTag(SvnSessionPool.Session session, TagTarget target)
+            throws SVNException {
+        String tagPath = TagTransaction.relativePath(session.getRoot(), target.getTagURL());
+        if (tagPath == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            return session.getRepository().checkPath(tagPath, -1) != SVNNodeKind.NONE;
+        } catch (SVNException e) {
+            failed(target, e.getErrorMessage());
+            throw e;
+        } finally {
+            target.addTime(TagPhase.PROBE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Tags one module location with a delete commit followed by a copy commit,
+     * unless a newer request for the same tag URL supersedes it meanwhile.
+     *
+     * @param tagExists whether the tag was found to exist, null if unknown
+     * @return true if the operation was successful
+     */
+    private static boolean tag(Job<?, ?> rootProject, SubversionSCM scm,
+                               BuildListener buildListener, TagTarget target,
+                               Boolean tagExists, RevisionGate gate) throws InterruptedException {
+        TagCoalescer coalescer = TagCoalescer.get();
+        TagCoalescer.Ticket ticket = coalescer.enqueue(target);
+        if (!coalescer.begin(ticket)) {
+            logSuperseded(buildListener.getLogger(), ticket);
+            return true;
+        }
+        try {
+            // another build may have changed the tag while this one was waiting
+            return tagExclusively(rootProject, scm, buildListener, target,
+                    ticket.hasWaited() ? null : tagExists, gate);
+        } finally {
+            coalescer.end(ticket);
+        }
+    }
 
-            List<String> locationPathElements = Arrays.asList(StringUtils.split(mlUrl, "/"));
-            String evaledTagBaseURLStr = evalGroovyExpression(
-            		envVars, tagBaseURLStr, locationPathElements);
+    private static void logSuperseded(PrintStream logger, TagCoalescer.Ticket ticket) {
+        TagTarget newer = ticket.getSupersededBy().getTarget();
+        logger.println(Messages.TagSuperseded(ticket.getTarget().getTagURL(),
+                newer.getRequester(), newer.getRevision()));
+    }
 
-            SVNURL parsedTagBaseURL = null;
+    /**
+     * Tags one module location within the limits of the {@link SvnThrottle},
+     * retrying transient failures.
+     */
+    private static boolean tagExclusively(Job<?, ?> rootProject, SubversionSCM scm,
+                                          BuildListener buildListener, TagTarget target,
+                                          Boolean tagExists, RevisionGate gate)
+            throws InterruptedException {
+        PrintStream logger = buildListener.getLogger();
+        SvnThrottle throttle = SvnThrottle.get();
+        for (int attempt = 0; ; attempt++) {
+            target.setError(null);
+            SvnThrottle.Permit permit = throttle.acquire(target.getSourceURL(),
+                    SvnSessionPool.get().getKnownRoot(target.getSourceURL()), logger);
+            boolean success = false;
             try {
-                parsedTagBaseURL = SVNURL.parseURIDecoded(
-                        repoURI.resolve(evaledTagBaseURLStr).toString());
-                logger.println(Messages.TagBaseURL(parsedTagBaseURL.toString()));
-            } catch (SVNException e) {
-                logger.println(Messages.FailedParsingTagBaseURL(
-           				evaledTagBaseURLStr, e.getLocalizedMessage()));
+                success = tagOnce(rootProject, scm, buildListener, target, tagExists, gate);
+            } finally {
+                throttle.release(permit, success ? null : target.getError());
+            }
+            if (success || attempt >= throttle.getMaxRetries()
+                    || !SvnThrottle.isTransient(target.getError())) {
+                return success;
             }
+            throttle.backoff(attempt, logger, target.getTagURL(), target.getError());
+            // the failed attempt may have changed the tag before the connection broke
+            tagExists = null;
+        }
+    }
 
-            ISVNAuthenticationProvider sap = scm.createAuthenticationProvider(rootProject, ml);
+    private static boolean tagOnce(Job<?, ?> rootProject, SubversionSCM scm,
+                                   BuildListener buildListener, TagTarget target,
+                                   Boolean tagExists, RevisionGate gate)
+            throws InterruptedException {
+        PrintStream logger = buildListener.getLogger();
+        SvnSessionPool.Session session;
+        try {
+            session = acquireSession(rootProject, scm, target);
+        } catch (SVNException e) {
+            e.printStackTrace(buildListener.error(Messages.Copy_Failed()));
+            return false;
+        }
+        if (session == null) {
+            logger.println(Messages.NoSVNAuthProvider());
+            return false;
+        }
 
-            if (sap == null) {
-                logger.println(Messages.NoSVNAuthProvider());
+        boolean success = false;
+        TagMetrics.get().begin();
+        try {
+            success = tag(session, buildListener, target, tagExists, gate);
+            return success;
+        } finally {
+            TagMetrics.get().end();
+            // a failed copy may have left the connection in an unknown state
+            SvnSessionPool.get().release(session, success);
+        }
+    }
+
+    /**
+     * Replaces the tag of one module location through a borrowed session.
+     *
+     * @param tagExists whether the tag was found to exist, null if unknown
+     * @return true if the operation was successful
+     */
+    static boolean tag(SvnSessionPool.Session session, BuildListener buildListener,
+                       TagTarget target, Boolean tagExists, RevisionGate gate)
+            throws InterruptedException {
+        PrintStream logger = buildListener.getLogger();
+        // a prepared probe holds only as long as the tag was not probed again
+        TagPreparation.Probe prepared = tagExists != null ? target.getPrepared() : null;
+        if (tagExists == null) {
+            try {
+                tagExists = probeTag(session, target);
+            } catch (SVNException e) {
+                e.printStackTrace(buildListener.error(Messages.FailedProbingTags()));
                 return false;
             }
+        }
+        long probeStart = System.nanoTime();
+        boolean upToDate = Boolean.TRUE.equals(tagExists)
+                && (prepared != null ? prepared.isUpToDate() : isUpToDate(session, target));
+        target.addTime(TagPhase.PROBE, System.nanoTime() - probeStart);
+        if (upToDate) {
+            logger.println(Messages.TagUpToDate(target.getTagURL()));
+            target.setCommitRevision(session.getRoot(), 0);
+            return true;
+        }
 
-            ISVNAuthenticationManager sam = SubversionSCM.createSvnAuthenticationManager(sap);
-            sam.setAuthenticationProvider(sap);
-
-            SVNCommitClient commitClient = new SVNCommitClient(sam, null);
+        SVNClientManager clientManager = session.getClientManager();
+        long requiredRevision = target.getRevision();
+        if (Boolean.FALSE.equals(tagExists)) {
+            logger.println(Messages.NoOldTag(target.getTagURL()));
+        } else {
+            SVNCommitClient commitClient = clientManager.getCommitClient();
+            String deleteComment = target.getDeleteComment();
+            SvnThrottle.get().awaitCommit(target.getTagURL());
+            long deleteStart = System.nanoTime();
             try {
-                String evalDeleteComment = evalGroovyExpression(
-                		envVars, tagDeleteComment, locationPathElements);
                 SVNCommitInfo deleteInfo =
-                        commitClient.doDelete(new SVNURL[]{parsedTagBaseURL},
-                                evalDeleteComment);
+                        commitClient.doDelete(new SVNURL[]{target.getTagURL()}, deleteComment);
                 SVNErrorMessage deleteErrMsg = deleteInfo.getErrorMessage();
 
                 if (null != deleteErrMsg) {
-                    logger.println(deleteErrMsg.getMessage());
+                    failed(target, deleteErrMsg);
+                    logger.println(Messages.FailedToDeleteOldTag(target.getTagURL()));
+                    logger.println(deleteErrMsg.getFullMessage());
+                    return false;
                 } else {
-                    logger.println(Messages.DeleteOldTag(evaledTagBaseURLStr));
+                    TagMetrics.get().committed();
+                    logger.println(Messages.DeleteOldTag(target.getTagURL()));
+                    requiredRevision = Math.max(requiredRevision, deleteInfo.getNewRevision());
                 }
-
             } catch (SVNException e) {
-                logger.println(Messages.NoOldTag(evaledTagBaseURLStr));
+                if (tagExists == null) {
+                    // the tag is in another repository and could not be probed
+                    logger.println(Messages.NoOldTag(target.getTagURL()));
+                } else {
+                    failed(target, e.getErrorMessage());
+                    e.printStackTrace(buildListener.error(Messages.FailedToDeleteOldTag(
+                            target.getTagURL())));
+                    return false;
+                }
+            } finally {
+                target.addTime(TagPhase.DELETE, System.nanoTime() - deleteStart);
             }
+        }
 
-            if(waitBeforeTagging > 0 ) {
-                logger.println(Messages.WaitBeforeTagging(waitBeforeTagging));
-                Thread.sleep(waitBeforeTagging*1000);
-            }
+        long waitStart = System.nanoTime();
+        gate.await(session, requiredRevision, logger);
+        target.addTime(TagPhase.WAIT, System.nanoTime() - waitStart);
 
-            SVNCopyClient copyClient = new SVNCopyClient(sam, null);
+        SVNCopyClient copyClient = clientManager.getCopyClient();
 
-            try {
-                String evalComment = evalGroovyExpression(
-                        envVars, tagComment, locationPathElements);
+        SvnThrottle.get().awaitCommit(target.getTagURL());
+        long copyStart = System.nanoTime();
+        try {
+            SVNRevision rev = SVNRevision.create(target.getRevision());
 
-                SVNRevision rev = SVNRevision.create(revision);
+            SVNCommitInfo commitInfo =
+                    copyClient.doCopy(new SVNCopySource[] {
+                                new SVNCopySource(rev, rev, target.getSourceURL()) },
+                            target.getTagURL(), false,
+                            true, true, target.getComment(), new SVNProperties());
+            SVNErrorMessage errorMsg = commitInfo.getErrorMessage();
 
-                SVNCommitInfo commitInfo =
-                        copyClient.doCopy(new SVNCopySource[] {
-                                    new SVNCopySource(rev, rev, 
-                                    		SVNURL.parseURIEncoded(mlUrl)) },
-                                parsedTagBaseURL, false,
-                                true, false, evalComment, new SVNProperties());
-                SVNErrorMessage errorMsg = commitInfo.getErrorMessage();
+            if (null != errorMsg) {
+                failed(target, errorMsg);
+                logger.println(Messages.FailedToTag(errorMsg.getFullMessage()));
+                return false;
+            } else {
+                TagMetrics.get().committed();
+                logger.println(Messages.Tagged(commitInfo.getNewRevision()));
+                target.setCommitRevision(session.getRoot(), commitInfo.getNewRevision());
+            }
+        } catch (SVNException e) {
+            failed(target, e.getErrorMessage());
+            e.printStackTrace(buildListener.error(Messages.Copy_Failed()));
+            return false;
+        } finally {
+            target.addTime(TagPhase.COPY, System.nanoTime() - copyStart);
+        }
+        return true;
+    }
 
-                if (null != errorMsg) {
-                    logger.println(Messages.FailedToTag(errorMsg.getFullMessage()));
-                    return false;
+    /**
+     * True if the existing tag is a copy of the target's source and revision.
+     * Any failure of the check means the tag is not known to be up to date.
+     */
+    private static boolean isUpToDate(SvnSessionPool.Session session, TagTarget target) {
+        String tagPath = TagTransaction.relativePath(session.getRoot(), target.getTagURL());
+        String sourcePath = TagTransaction.relativePath(session.getRoot(), target.getSourceURL());
+        if (tagPath == null || sourcePath == null) {
+            return false;
+        }
+        try {
+            return TagProbe.isUpToDate(session.getRepository(), tagPath, sourcePath,
+                    target.getRevision());
+        } catch (SVNException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Tags all module locations with one commit per repository. Module locations
+     * whose tags overlap each other are committed separately.
+     *
+     * @return true if the operation was successful
+     */
+    private static boolean tagAtomically(Job<?, ?> rootProject, SubversionSCM scm,
+                                         BuildListener buildListener, List<TagTarget> targets,
+                                         final RevisionGate gate, int parallelism)
+            throws InterruptedException {
+        PrintStream logger = buildListener.getLogger();
+        List<TagTransaction> transactions = new ArrayList<TagTransaction>();
+        final Map<TagTransaction, String> comments = new HashMap<TagTransaction, String>();
+        final Map<TagTransaction, SvnSessionPool.Session> transactionSessions =
+                new HashMap<TagTransaction, SvnSessionPool.Session>();
+        final Map<TagTransaction, List<TagTarget>> transactionTargets =
+                new HashMap<TagTransaction, List<TagTarget>>();
+        List<SvnSessionPool.Session> sessions = new ArrayList<SvnSessionPool.Session>();
+        // claim the tag URLs in a global order, so that concurrent builds cannot deadlock.
+        List<TagTarget> sorted = new ArrayList<TagTarget>(targets);
+        Collections.sort(sorted, new Comparator<TagTarget>() {
+            public int compare(TagTarget o1, TagTarget o2) {
+                return o1.getTagURL().toString().compareTo(o2.getTagURL().toString());
+            }
+        });
+        TagCoalescer coalescer = TagCoalescer.get();
+        List<TagCoalescer.Ticket> claimed = new ArrayList<TagCoalescer.Ticket>();
+        boolean success = false;
+        try {
+            for (TagTarget target : sorted) {
+                TagCoalescer.Ticket ticket = coalescer.enqueue(target);
+                if (coalescer.begin(ticket)) {
+                    claimed.add(ticket);
                 } else {
-                    logger.println(Messages.Tagged(commitInfo.getNewRevision()));
+                    logSuperseded(logger, ticket);
                 }
-            } catch (SVNException e) {
-                e.printStackTrace(buildListener.error(Messages.Copy_Failed()));
-                return false;
+            }
+            for (TagCoalescer.Ticket ticket : claimed) {
+                TagTarget target = ticket.getTarget();
+                TagTransaction transaction = null;
+                for (TagTransaction t : transactions) {
+                    if (t.add(target.getTagURL(), target.getSourceURL(), target.getRevision())) {
+                        transaction = t;
+                        transactionTargets.get(t).add(target);
+                        break;
+                    }
+                }
+                if (transaction == null) {
+                    SvnSessionPool.Session session = acquireSession(rootProject, scm, target);
+                    if (session == null) {
+                        logger.println(Messages.NoSVNAuthProvider());
+                        return false;
+                    }
+                    sessions.add(session);
+                    transaction = new TagTransaction(session.getRepository());
+                    transactions.add(transaction);
+                    transactionSessions.put(transaction, session);
+                    if (!transaction.add(target.getTagURL(), target.getSourceURL(),
+                            target.getRevision())) {
+                        logger.println(Messages.FailedToTag(Messages.NotInRepository(
+                                target.getTagURL(), transaction.getRoot())));
+                        return false;
+                    }
+                    // the first module location of a repository provides the commit message
+                    comments.put(transaction, target.getComment());
+                    transactionTargets.put(transaction, new ArrayList<TagTarget>(
+                            Collections.singletonList(target)));
+                }
+            }
+
+            ParallelTagger tagger = new ParallelTagger();
+            for (final TagTransaction transaction : transactions) {
+                tagger.add(transaction.getRoot().toString(), new ParallelTagger.Task() {
+                    public boolean run(BuildListener listener) throws InterruptedException {
+                        PrintStream logger = listener.getLogger();
+                        // one commit serves all module locations of the transaction, so each is accounted the whole time
+                        List<TagTarget> committed = transactionTargets.get(transaction);
+                        long waitStart = System.nanoTime();
+                        gate.await(transactionSessions.get(transaction),
+                                transaction.getMaxRevision(), logger);
+                        addTime(committed, TagPhase.WAIT, System.nanoTime() - waitStart);
+                        logger.println(Messages.AtomicTagging(transaction.size(),
+                                transaction.getRoot()));
+                        SvnThrottle throttle = SvnThrottle.get();
+                        for (int attempt = 0; ; attempt++) {
+                            SVNErrorMessage errorMsg = null;
+                            SvnThrottle.Permit permit = throttle.acquire(transaction.getRoot(),
+                                    transaction.getRoot(), logger);
+                            long commitStart = System.nanoTime();
+                            TagMetrics.get().begin();
+                            try {
+                                throttle.awaitCommit(transaction.getRoot());
+                                // probes the tags again, so a retry finds what a lost commit did
+                                SVNCommitInfo commitInfo = transaction.commit(comments.get(transaction));
+                                for (SVNURL tag : transaction.getUpToDate()) {
+                                    logger.println(Messages.TagUpToDate(tag));
+                                }
+                                if (commitInfo == null) {
+                                    setCommitRevision(committed, transaction, 0);
+                                    return true;
+                                }
+                                errorMsg = commitInfo.getErrorMessage();
+                                if (null != errorMsg) {
+                                    TagMetrics.get().failed(errorMsg);
+                                    logger.println(Messages.FailedToTag(errorMsg.getFullMessage()));
+                                    return false;
+                                }
+                                TagMetrics.get().committed();
+                                logger.println(Messages.Tagged(commitInfo.getNewRevision()));
+                                setCommitRevision(committed, transaction, commitInfo.getNewRevision());
+                                return true;
+                            } catch (SVNException e) {
+                                errorMsg = e.getErrorMessage();
+                                TagMetrics.get().failed(errorMsg);
+                                if (attempt >= throttle.getMaxRetries()
+                                        || !SvnThrottle.isTransient(errorMsg)) {
+                                    e.printStackTrace(listener.error(Messages.Copy_Failed()));
+                                    return false;
+                                }
+                            } finally {
+                                TagMetrics.get().end();
+                                throttle.release(permit, errorMsg);
+                                addTime(committed, TagPhase.COPY, System.nanoTime() - commitStart);
+                            }
+                            throttle.backoff(attempt, logger, transaction.getRoot(), errorMsg);
+                        }
+                    }
+                });
+            }
+            success = tagger.run(buildListener, parallelism);
+            return success;
+        } catch (SVNException e) {
+            e.printStackTrace(buildListener.error(Messages.Copy_Failed()));
+            return false;
+        } finally {
+            for (SvnSessionPool.Session session : sessions) {
+                SvnSessionPool.get().release(session, success);
+            }
+            for (TagCoalescer.Ticket ticket : claimed) {
+                coalescer.end(ticket);
             }
         }
+    }
 
-        return true;
+    /**
+     * Borrows a pooled session for the repository of the target. Sessions are
+     * shared per project and credentials ID, since credentials may be scoped to
+     * the project.
+     *
+     * @return the session, or null if no authentication provider is available
+     */
+    static SvnSessionPool.Session acquireSession(final Job<?, ?> rootProject,
+                                                 final SubversionSCM scm,
+                                                 final TagTarget target)
+            throws SVNException {
+        long start = System.nanoTime();
+        try {
+            return SvnSessionPool.get().acquire(credentialKey(rootProject, target),
+                    target.getSourceURL(), new SvnSessionPool.AuthenticationFactory() {
+                        public ISVNAuthenticationManager create() {
+                            return createAuthenticationManager(rootProject, scm, target);
+                        }
+                    });
+        } catch (SVNException e) {
+            failed(target, e.getErrorMessage());
+            throw e;
+        } finally {
+            target.addTime(TagPhase.SESSION, System.nanoTime() - start);
+        }
+    }
+
+    private static void setCommitRevision(List<TagTarget> targets, TagTransaction transaction,
+                                          long revision) {
+        for (TagTarget target : targets) {
+            target.setCommitRevision(transaction.getRoot(),
+                    transaction.getUpToDate().contains(target.getTagURL())
+                    ? 0 : revision);
+        }
+    }
+
+    private static void failed(TagTarget target, SVNErrorMessage error) {
+        TagMetrics.get().failed(error);
+        target.setError(error);
+    }
+
+    private static void addTime(List<TagTarget> targets, TagPhase phase, long nanos) {
+        targets.get(0).addTime(phase, nanos);
+        for (TagTarget target : targets.subList(1, targets.size())) {
+            target.shareTime(phase, nanos);
+        }
+    }
+
+    static String credentialKey(Job<?, ?> rootProject, TagTarget target) {
+        return rootProject.getFullName() + '|' + target.getLocation().credentialsId;
+    }
+
+    /**
+     * Creates the authentication manager of a module location.
+     *
+     * @param rootProject job the credentials are looked up for
+     * @param scm         SCM providing the credentials, or null to look them up
+     *                    by the credentials ID of the module location
+     * @param target      the module location
+     * @return the manager, or null if no credentials are available; the
+     *         credentials cached on the controller are never used
+     */
+    static ISVNAuthenticationManager createAuthenticationManager(
+            Job<?, ?> rootProject, SubversionSCM scm, TagTarget target) {
+        ISVNAuthenticationProvider sap;
+        if (scm != null) {
+            sap = scm.createAuthenticationProvider(rootProject, target.getLocation());
+        } else {
+            String credentialsId = target.getLocation().credentialsId;
+            if (credentialsId == null) {
+                return null;
+            }
+            StandardCredentials credentials = CredentialsMatchers.firstOrNull(
+                    CredentialsProvider.lookupCredentials(StandardCredentials.class, rootProject,
+                            ACL.SYSTEM, URIRequirementBuilder.fromUri(
+                                    target.getSourceURL().toString()).build()),
+                    CredentialsMatchers.withId(credentialsId));
+            sap = credentials != null ? new CredentialsSVNAuthenticationProviderImpl(credentials) : null;
+        }
+        if (sap == null) {
+            return null;
+        }
+        ISVNAuthenticationManager sam = SubversionSCM.createSvnAuthenticationManager(sap);
+        sam.setAuthenticationProvider(sap);
+        return sam;
+    }
+
+    /**
+     * Returns the cache of compiled templates, e.g. to report its hit ratio.
+     *
+     * @return the template cache
+     */
+    static GroovyTemplateCache getTemplateCache() {
+        return TEMPLATE_CACHE;
+    }
+
+    /**
+     * True if the template needs Groovy, false if it is rendered by a {@link SimpleTemplate}.
+     *
+     * @param evalText template text
+     * @return true if the template is evaluated by Groovy
+     */
+    static boolean needsGroovy(String evalText) {
+        return TEMPLATE_CACHE.getSimpleTemplate(String.valueOf(evalText)) == null;
     }
 
     @SuppressWarnings({"StaticMethodOnlyUsedInOneClass", "TypeMayBeWeakened"})
     static String evalGroovyExpression(Map<String, String> env, String evalText,
                                        List locationPathElements) {
-        Binding binding = new Binding();
-        binding.setVariable("env", env);
-        binding.setVariable("sys", System.getProperties());
-        if (locationPathElements == null) {
-            binding.setVariable("repoURL", Arrays.asList(StringUtils.split(
-                    "http://svn.example.com/path1/path2/path3/path4/path5/path6/path7/path8/path9/path10"),
-                    "/"));
+        String text = String.valueOf(evalText);
+        List repoURL = locationPathElements == null ? EXAMPLE_REPO_URL : locationPathElements;
+        Object result;
+        SimpleTemplate template = TEMPLATE_CACHE.getSimpleTemplate(text);
+        if (template != null) {
+            result = template.render(env, System.getProperties(), repoURL);
         } else {
-            binding.setVariable("repoURL", locationPathElements);
+            Binding binding = new Binding();
+            binding.setVariable("env", env);
+            binding.setVariable("sys", System.getProperties());
+            binding.setVariable("repoURL", repoURL);
+            result = TEMPLATE_CACHE.evaluate(text, binding);
         }
-        CompilerConfiguration config = new CompilerConfiguration();
-        GroovyShell shell = new GroovyShell(binding, config);
-        Object result = shell.evaluate("return \"" + evalText + "\"");
         if (result == null) {
             return "";
         } else {
@@ -238,43 +1028,12 @@ public class SvnTagPlugin {
      * Reads the revision file of the specified build.
      *
      * @param build build object
-     * @return map from Subversion URL to its revision.
+     * @return index from Subversion URL to its revision.
      * @throws java.io.IOException thrown when operation failed
      */
     /*package*/
-    @SuppressWarnings({"NestedAssignment"})
-    static Map<String, Long> parseRevisionFile(AbstractBuild build)
+    static RevisionIndex parseRevisionFile(AbstractBuild<?, ?> build)
             throws IOException {
-        Map<String, Long> revisions =
-                new HashMap<String, Long>(); // module -> revision
-        // read the revision file of the last build
-        File file = SubversionSCM.getRevisionFile((Run) build);
-        if (!file.exists()) // nothing to compare against
-        {
-            return revisions;
-        }
-
-        BufferedReader br = new BufferedReader(new FileReader(file));
-        try {
-            String line;
-            while ((line = br.readLine()) != null) {
-                int index = line.lastIndexOf('/');
-                if (index < 0) {
-                    continue;   // invalid line?
-                }
-                try {
-                	revisions.put(SVNURL.parseURIEncoded(line.substring(0, index)).toString(),
-                			Long.parseLong(line.substring(index + 1)));
-                } catch (NumberFormatException e) {
-                    // perhaps a corrupted line. ignore
-                } catch(SVNException e) {
-                	// perhaps a corrupted line. ignore
-                }
-            }
-        } finally {
-            br.close();
-        }
-
-        return revisions;
+        return RevisionIndex.of(build);
     }
 }
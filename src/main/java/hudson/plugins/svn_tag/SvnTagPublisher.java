@@ -3,7 +3,6 @@ package hudson.plugins.svn_tag;
 import hudson.tasks.BuildStepMonitor;
 
 import java.io.IOException;
-import java.util.HashMap;
 
 import hudson.Extension;
 import hudson.Launcher;
@@ -11,13 +10,14 @@ import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Item;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
 import hudson.util.FormValidation;
 import net.sf.json.JSONObject;
 
-import org.codehaus.groovy.control.CompilationFailedException;
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -47,12 +47,90 @@ public class SvnTagPublisher extends Notifier {
 
     private int waitBeforeTagging = 0;
 
+    private boolean pollForRevision = false;
+
+    private boolean atomicTagging = false;
+
+    /**
+     * maximum number of locations tagged concurrently, 0 to use the global setting.
+     */
+    private int parallelism = 0;
+
+    private boolean asynchronous = false;
+
+    /**
+     * number of most recent builds whose tags are kept, 0 to keep all.
+     */
+    private int keepLastTags = 0;
+
+    /**
+     * days after which tags are deleted, 0 to keep them forever.
+     */
+    private int maxTagAgeDays = 0;
+
+    private boolean pruneTagsOfDeletedBuilds = false;
+
+    /**
+     * bucket directories the tags are placed into, null for the evaluated tag URL.
+     */
+    private TagLayout tagLayout = null;
+
     @DataBoundConstructor
-    public SvnTagPublisher(String tagBaseURL, String tagComment, String tagDeleteComment, int waitBeforeTagging) {
+    public SvnTagPublisher(String tagBaseURL, String tagComment, String tagDeleteComment,
+                           int waitBeforeTagging, boolean pollForRevision,
+                           boolean atomicTagging, int parallelism, boolean asynchronous,
+                           int keepLastTags, int maxTagAgeDays, boolean pruneTagsOfDeletedBuilds,
+                           TagLayout tagLayout) {
         this.tagBaseURL = tagBaseURL;
         this.tagComment = tagComment;
         this.tagDeleteComment = tagDeleteComment;
         this.waitBeforeTagging = waitBeforeTagging;
+        this.pollForRevision = pollForRevision;
+        this.atomicTagging = atomicTagging;
+        this.parallelism = parallelism;
+        this.asynchronous = asynchronous;
+        this.keepLastTags = keepLastTags;
+        this.maxTagAgeDays = maxTagAgeDays;
+        this.pruneTagsOfDeletedBuilds = pruneTagsOfDeletedBuilds;
+        this.tagLayout = tagLayout == TagLayout.FLAT ? null : tagLayout;
+    }
+
+    public SvnTagPublisher(String tagBaseURL, String tagComment, String tagDeleteComment,
+                           int waitBeforeTagging, boolean pollForRevision,
+                           boolean atomicTagging, int parallelism, boolean asynchronous,
+                           int keepLastTags, int maxTagAgeDays, boolean pruneTagsOfDeletedBuilds) {
+        this(tagBaseURL, tagComment, tagDeleteComment, waitBeforeTagging, pollForRevision,
+                atomicTagging, parallelism, asynchronous, keepLastTags, maxTagAgeDays,
+                pruneTagsOfDeletedBuilds, null);
+    }
+
+    public SvnTagPublisher(String tagBaseURL, String tagComment, String tagDeleteComment,
+                           int waitBeforeTagging, boolean pollForRevision,
+                           boolean atomicTagging, int parallelism, boolean asynchronous) {
+        this(tagBaseURL, tagComment, tagDeleteComment, waitBeforeTagging, pollForRevision,
+                atomicTagging, parallelism, asynchronous, 0, 0, false);
+    }
+
+    public SvnTagPublisher(String tagBaseURL, String tagComment, String tagDeleteComment,
+                           int waitBeforeTagging, boolean pollForRevision,
+                           boolean atomicTagging, int parallelism) {
+        this(tagBaseURL, tagComment, tagDeleteComment, waitBeforeTagging, pollForRevision,
+                atomicTagging, parallelism, false);
+    }
+
+    public SvnTagPublisher(String tagBaseURL, String tagComment, String tagDeleteComment,
+                           int waitBeforeTagging, boolean atomicTagging, int parallelism) {
+        this(tagBaseURL, tagComment, tagDeleteComment, waitBeforeTagging, false,
+                atomicTagging, parallelism);
+    }
+
+    public SvnTagPublisher(String tagBaseURL, String tagComment, String tagDeleteComment,
+                           int waitBeforeTagging, boolean atomicTagging) {
+        this(tagBaseURL, tagComment, tagDeleteComment, waitBeforeTagging, atomicTagging, 0);
+    }
+
+    public SvnTagPublisher(String tagBaseURL, String tagComment, String tagDeleteComment, int waitBeforeTagging) {
+        this(tagBaseURL, tagComment, tagDeleteComment, waitBeforeTagging, false);
     }
 
     public SvnTagPublisher(String tagBaseURL, String tagComment, String tagDeleteComment) {
@@ -85,6 +163,99 @@ public class SvnTagPublisher extends Notifier {
         return this.waitBeforeTagging;
     }
 
+    /**
+     * Returns whether to poll until the revision to tag is visible, with
+     * {@link #getWaitBeforeTagging()} as the ceiling, instead of sleeping.
+     *
+     * @return true to poll for the revision
+     */
+    public boolean isPollForRevision() {
+        return this.pollForRevision;
+    }
+
+    /**
+     * Returns whether all module locations of a repository are tagged in a single commit.
+     *
+     * @return true if all module locations of a repository are tagged in a single commit
+     */
+    public boolean isAtomicTagging() {
+        return this.atomicTagging;
+    }
+
+    /**
+     * Returns the maximum number of locations tagged concurrently, 0 if the
+     * global setting applies.
+     *
+     * @return the maximum number of locations tagged concurrently
+     */
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    /**
+     * Returns whether the tagging is handed over to the background tagging
+     * service instead of occupying the executor of the build.
+     *
+     * @return true to tag in the background
+     */
+    public boolean isAsynchronous() {
+        return this.asynchronous;
+    }
+
+    /**
+     * Returns the number of most recent builds whose tags are kept.
+     *
+     * @return the number of builds, 0 to keep the tags of all builds
+     */
+    public int getKeepLastTags() {
+        return this.keepLastTags;
+    }
+
+    /**
+     * Returns the number of days after which tags are deleted.
+     *
+     * @return the number of days, 0 to keep tags forever
+     */
+    public int getMaxTagAgeDays() {
+        return this.maxTagAgeDays;
+    }
+
+    /**
+     * Returns whether the tags of builds that were deleted are deleted too.
+     *
+     * @return true to keep only the tags of retained builds
+     */
+    public boolean isPruneTagsOfDeletedBuilds() {
+        return this.pruneTagsOfDeletedBuilds;
+    }
+
+    /**
+     * Returns the bucket directories the tags are placed into.
+     *
+     * @return the tag layout
+     */
+    public TagLayout getTagLayout() {
+        return this.tagLayout != null ? this.tagLayout : TagLayout.FLAT;
+    }
+
+    /**
+     * Returns whether the {@link TagPruner} deletes any tags of this project.
+     *
+     * @return true if a retention policy is set
+     */
+    boolean hasTagRetention() {
+        return this.keepLastTags > 0 || this.maxTagAgeDays > 0 || this.pruneTagsOfDeletedBuilds;
+    }
+
+    /**
+     * Returns the parallelism in effect for this publisher.
+     *
+     * @return the maximum number of locations tagged concurrently
+     */
+    int getEffectiveParallelism() {
+        return this.parallelism > 0 ? this.parallelism : getDescriptor().getParallelism();
+    }
+
     public BuildStepMonitor getRequiredMonitorService() {
         return BuildStepMonitor.BUILD;
     }
@@ -96,7 +267,9 @@ public class SvnTagPublisher extends Notifier {
             throws InterruptedException, IOException {
         return SvnTagPlugin.perform(abstractBuild, launcher, buildListener,
                 this.getTagBaseURL(), this.getTagComment(),
-                this.getTagDeleteComment(), this.getWaitBeforeTagging());
+                this.getTagDeleteComment(), this.getWaitBeforeTagging(),
+                this.isPollForRevision(), this.isAtomicTagging(), this.getEffectiveParallelism(),
+                this.isAsynchronous(), this.getTagLayout());
     }
 
     @Override
@@ -129,6 +302,28 @@ public class SvnTagPublisher extends Notifier {
 
         private int waitBeforeTagging;
 
+        private int parallelism;
+
+        private int keepLastTags;
+
+        private int maxTagAgeDays;
+
+        private boolean pruneTagsOfDeletedBuilds;
+
+        private int maxConcurrentPerHost;
+
+        private double commitsPerSecond;
+
+        private int maxRetries;
+
+        private int breakerThreshold;
+
+        private int breakerCooldown;
+
+        private boolean checkTagLocation;
+
+        private boolean prepareTagging;
+
         /**
          * Creates a new SvnTagDescriptorImpl object.
          */
@@ -137,7 +332,12 @@ public class SvnTagPublisher extends Notifier {
             this.tagComment = Messages.DefaultTagComment();
             this.tagDeleteComment = Messages.DefaultTagDeleteComment();
             this.waitBeforeTagging = 0;
+            this.parallelism = 1;
+            this.maxRetries = 3;
+            this.breakerThreshold = 5;
+            this.breakerCooldown = 60;
             load();
+            applyThrottle();
         }
 
         /**
@@ -155,25 +355,37 @@ public class SvnTagPublisher extends Notifier {
                 throws FormException {
             req.bindJSON(this, formData);
             save();
+            applyThrottle();
 
             return super.configure(req, formData);
         }
 
-        public FormValidation doCheckTagBaseURL(@QueryParameter final String value) {
+        public FormValidation doCheckTagBaseURL(@AncestorInPath final AbstractProject<?, ?> project,
+                                                @QueryParameter final String value,
+                                                @QueryParameter final String tagLayout)
+                throws InterruptedException {
             if (Util.fixEmptyAndTrim(value) == null) {
                 return FormValidation.error(Messages.MissingURL());
             }
+            FormValidation result = TemplateCheck.get().check(value);
+            if (result.kind != FormValidation.Kind.OK || !this.checkTagLocation || project == null
+                    || !project.hasPermission(Item.CONFIGURE)) {
+                return result;
+            }
+            TagLayout layout = TagLayout.FLAT;
             try {
-                SvnTagPlugin.evalGroovyExpression(
-                        new HashMap<String, String>(), value, null);
-                return FormValidation.ok();
-            } catch (CompilationFailedException e) {
-                return FormValidation.error(Messages.BadGroovy(e.getMessage()));
+                if (Util.fixEmptyAndTrim(tagLayout) != null) {
+                    layout = TagLayout.valueOf(tagLayout.trim());
+                }
+            } catch (IllegalArgumentException e) {
+                // checked against the evaluated URL
             }
+            return TagLocationCheck.get().check(project, value, layout);
         }
 
-        public FormValidation doCheckDefaultTagBaseURL(@QueryParameter final String value) {
-            return doCheckTagBaseURL(value);
+        public FormValidation doCheckDefaultTagBaseURL(@QueryParameter final String value)
+                throws InterruptedException {
+            return doCheckTagBaseURL(null, value, null);
         }
 
         /**
@@ -221,13 +433,7 @@ public class SvnTagPublisher extends Notifier {
         }
 
         public FormValidation doCheckTagComment(@QueryParameter final String value) {
-            try {
-                SvnTagPlugin.evalGroovyExpression(
-                        new HashMap<String, String>(), value, null);
-                return FormValidation.ok();
-            } catch (CompilationFailedException e) {
-                return FormValidation.error(Messages.BadGroovy(e.getMessage()));
-            }
+            return TemplateCheck.get().check(value);
         }
 
         public FormValidation doCheckTagDeleteComment(@QueryParameter final String value) {
@@ -276,5 +482,231 @@ public class SvnTagPublisher extends Notifier {
             }
         }
 
+        /**
+         * Returns the maximum number of locations tagged concurrently.
+         *
+         * @return the maximum number of locations tagged concurrently
+         */
+        public int getParallelism() {
+            return Math.max(1, parallelism);
+        }
+
+        /**
+         * Sets the maximum number of locations tagged concurrently.
+         *
+         * @param parallelism
+         */
+        public void setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+        }
+
+        /**
+         * Returns the number of most recent builds whose tags a new job keeps.
+         *
+         * @return number of builds, 0 to keep all
+         */
+        public int getKeepLastTags() {
+            return keepLastTags;
+        }
+
+        public void setKeepLastTags(int keepLastTags) {
+            this.keepLastTags = keepLastTags;
+        }
+
+        /**
+         * Returns the days after which a new job deletes its tags.
+         *
+         * @return days, 0 to keep the tags forever
+         */
+        public int getMaxTagAgeDays() {
+            return maxTagAgeDays;
+        }
+
+        public void setMaxTagAgeDays(int maxTagAgeDays) {
+            this.maxTagAgeDays = maxTagAgeDays;
+        }
+
+        /**
+         * Returns whether a new job deletes the tags of deleted builds.
+         *
+         * @return true to delete the tags of deleted builds
+         */
+        public boolean isPruneTagsOfDeletedBuilds() {
+            return pruneTagsOfDeletedBuilds;
+        }
+
+        public void setPruneTagsOfDeletedBuilds(boolean pruneTagsOfDeletedBuilds) {
+            this.pruneTagsOfDeletedBuilds = pruneTagsOfDeletedBuilds;
+        }
+
+        public FormValidation doCheckKeepLastTags(@QueryParameter final String value) {
+            return checkNonNegative(value);
+        }
+
+        public FormValidation doCheckMaxTagAgeDays(@QueryParameter final String value) {
+            return checkNonNegative(value);
+        }
+
+        private static FormValidation checkNonNegative(String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            try {
+                if (Integer.parseInt(value.trim()) < 0) {
+                    return FormValidation.error(Messages.NegativeNumber(value));
+                }
+                return FormValidation.ok();
+            } catch (NumberFormatException e) {
+                return FormValidation.error(Messages.NegativeNumber(value));
+            }
+        }
+
+        /**
+         * Validate parallelism parameter - value should be a non-negative number.
+         * 0 is only meaningful for a job, where it means the global setting.
+         *
+         * @param value
+         * @return
+         */
+        public FormValidation doCheckParallelism(@QueryParameter final String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            try {
+                if (Integer.parseInt(value.trim()) < 0) {
+                    return FormValidation.error(Messages.BadParallelism(value));
+                }
+                return FormValidation.ok();
+            } catch (NumberFormatException e) {
+                return FormValidation.error(Messages.BadParallelism(e.getMessage()));
+            }
+        }
+
+        /**
+         * Returns whether the tag base URL of a job is checked against its repositories.
+         *
+         * @return true to check that the parent directory of the tags exists
+         */
+        public boolean isCheckTagLocation() {
+            return checkTagLocation;
+        }
+
+        public void setCheckTagLocation(boolean checkTagLocation) {
+            this.checkTagLocation = checkTagLocation;
+        }
+
+        /**
+         * Returns whether the {@link TagPreparation} resolves and probes the tags while the build runs.
+         *
+         * @return true to prepare the tagging after the checkout
+         */
+        public boolean isPrepareTagging() {
+            return prepareTagging;
+        }
+
+        public void setPrepareTagging(boolean prepareTagging) {
+            this.prepareTagging = prepareTagging;
+        }
+
+        /**
+         * Returns the maximum number of tag operations run against one repository host at a time.
+         *
+         * @return operations per host, 0 for no limit
+         */
+        public int getMaxConcurrentPerHost() {
+            return maxConcurrentPerHost;
+        }
+
+        public void setMaxConcurrentPerHost(int maxConcurrentPerHost) {
+            this.maxConcurrentPerHost = maxConcurrentPerHost;
+        }
+
+        /**
+         * Returns the budget of commits per repository host and second.
+         *
+         * @return commits per second, 0 for no limit
+         */
+        public double getCommitsPerSecond() {
+            return commitsPerSecond;
+        }
+
+        public void setCommitsPerSecond(double commitsPerSecond) {
+            this.commitsPerSecond = commitsPerSecond;
+        }
+
+        /**
+         * Returns how often an operation failing with a transient error is retried.
+         *
+         * @return number of retries
+         */
+        public int getMaxRetries() {
+            return maxRetries;
+        }
+
+        public void setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+        }
+
+        /**
+         * Returns how many consecutive transient failures stop tagging on a repository.
+         *
+         * @return number of failures, 0 to never stop
+         */
+        public int getBreakerThreshold() {
+            return breakerThreshold;
+        }
+
+        public void setBreakerThreshold(int breakerThreshold) {
+            this.breakerThreshold = breakerThreshold;
+        }
+
+        /**
+         * Returns how many seconds tagging stops on an unhealthy repository.
+         *
+         * @return seconds
+         */
+        public int getBreakerCooldown() {
+            return breakerCooldown;
+        }
+
+        public void setBreakerCooldown(int breakerCooldown) {
+            this.breakerCooldown = breakerCooldown;
+        }
+
+        public FormValidation doCheckMaxConcurrentPerHost(@QueryParameter final String value) {
+            return checkNonNegative(value);
+        }
+
+        public FormValidation doCheckCommitsPerSecond(@QueryParameter final String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            try {
+                if (Double.parseDouble(value.trim()) < 0) {
+                    return FormValidation.error(Messages.NegativeNumber(value));
+                }
+                return FormValidation.ok();
+            } catch (NumberFormatException e) {
+                return FormValidation.error(Messages.NegativeNumber(value));
+            }
+        }
+
+        public FormValidation doCheckMaxRetries(@QueryParameter final String value) {
+            return checkNonNegative(value);
+        }
+
+        public FormValidation doCheckBreakerThreshold(@QueryParameter final String value) {
+            return checkNonNegative(value);
+        }
+
+        public FormValidation doCheckBreakerCooldown(@QueryParameter final String value) {
+            return checkNonNegative(value);
+        }
+
+        private void applyThrottle() {
+            SvnThrottle.get().configure(maxConcurrentPerHost, commitsPerSecond, maxRetries,
+                    breakerThreshold, breakerCooldown);
+        }
+
     }
 }
@@ -0,0 +1,428 @@
+package hudson.plugins.svn_tag;
+
+import com.google.inject.Inject;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.BuildListener;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import hudson.scm.SubversionSCM;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Pipeline step <tt>svnTag</tt>, tagging the module locations of the build
+ * with server-side copies.
+ * <p>
+ * The step needs neither a node nor a workspace. The tagging runs on a
+ * thread of the controller while the step is suspended, so that the
+ * Pipeline holds no executor during the Subversion round trips. Module
+ * locations are given as <tt>URL</tt> or <tt>URL@REVISION</tt> lines in
+ * <tt>modules</tt>; a location without a revision, or all locations if none
+ * are given, are looked up in the revision file the Subversion checkout of
+ * the build recorded. Returns the URLs of the tags created or found up to date.
+ */
+public class SvnTagStep extends AbstractStepImpl {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Number of steps tagging concurrently.
+     */
+    static final int WORKERS = Integer.getInteger(SvnTagStep.class.getName() + ".workers", 4);
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(1, WORKERS),
+            new NamingThreadFactory(new DaemonThreadFactory(), SvnTagStep.class.getName()));
+
+    private final String tagBaseURL;
+
+    private String tagComment;
+
+    private String tagDeleteComment;
+
+    private String modules;
+
+    private String credentialsId;
+
+    private int waitBeforeTagging;
+
+    private boolean pollForRevision;
+
+    private boolean atomicTagging;
+
+    private int parallelism = 1;
+
+    private TagLayout tagLayout = TagLayout.FLAT;
+
+    @DataBoundConstructor
+    public SvnTagStep(String tagBaseURL) {
+        this.tagBaseURL = tagBaseURL;
+    }
+
+    public String getTagBaseURL() {
+        return tagBaseURL;
+    }
+
+    public String getTagComment() {
+        return tagComment;
+    }
+
+    /**
+     * Sets the tag comment template, the global one if empty.
+     *
+     * @param tagComment the tag comment template
+     */
+    @DataBoundSetter
+    public void setTagComment(String tagComment) {
+        this.tagComment = Util.fixEmptyAndTrim(tagComment);
+    }
+
+    public String getTagDeleteComment() {
+        return tagDeleteComment;
+    }
+
+    /**
+     * Sets the tag delete comment template, the global one if empty.
+     *
+     * @param tagDeleteComment the tag delete comment template
+     */
+    @DataBoundSetter
+    public void setTagDeleteComment(String tagDeleteComment) {
+        this.tagDeleteComment = Util.fixEmptyAndTrim(tagDeleteComment);
+    }
+
+    public String getModules() {
+        return modules;
+    }
+
+    /**
+     * Sets the module locations to tag, one <tt>URL</tt> or <tt>URL@REVISION</tt> per line.
+     *
+     * @param modules the module locations, all of the checkout if empty
+     */
+    @DataBoundSetter
+    public void setModules(String modules) {
+        this.modules = Util.fixEmptyAndTrim(modules);
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    @DataBoundSetter
+    public void setCredentialsId(String credentialsId) {
+        this.credentialsId = Util.fixEmptyAndTrim(credentialsId);
+    }
+
+    public int getWaitBeforeTagging() {
+        return waitBeforeTagging;
+    }
+
+    @DataBoundSetter
+    public void setWaitBeforeTagging(int waitBeforeTagging) {
+        this.waitBeforeTagging = waitBeforeTagging;
+    }
+
+    public boolean isPollForRevision() {
+        return pollForRevision;
+    }
+
+    @DataBoundSetter
+    public void setPollForRevision(boolean pollForRevision) {
+        this.pollForRevision = pollForRevision;
+    }
+
+    public boolean isAtomicTagging() {
+        return atomicTagging;
+    }
+
+    @DataBoundSetter
+    public void setAtomicTagging(boolean atomicTagging) {
+        this.atomicTagging = atomicTagging;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @DataBoundSetter
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public TagLayout getTagLayout() {
+        return tagLayout;
+    }
+
+    @DataBoundSetter
+    public void setTagLayout(TagLayout tagLayout) {
+        this.tagLayout = tagLayout != null ? tagLayout : TagLayout.FLAT;
+    }
+
+    /**
+     * Tags the module locations of the run.
+     *
+     * @param run      the run requesting the tags
+     * @param listener listener to log to
+     * @return URLs of the tags created or found up to date
+     * @throws AbortException when tagging failed
+     */
+    List<String> tag(Run<?, ?> run, TaskListener listener)
+            throws IOException, InterruptedException {
+        BuildListener buildListener = new StreamBuildListener(listener.getLogger(), UTF8);
+        PrintStream logger = buildListener.getLogger();
+        logger.println("Starting to tag");
+        EnvVars envVars = run.getEnvironment(listener);
+        SvnTagPublisher.SvnTagDescriptorImpl descriptor = Jenkins.getInstance()
+                .getDescriptorByType(SvnTagPublisher.SvnTagDescriptorImpl.class);
+
+        RevisionIndex revisions;
+        long revisionFileStart = System.nanoTime();
+        try {
+            revisions = RevisionIndex.of(SubversionSCM.getRevisionFile(run));
+        } catch (IOException e) {
+            throw new AbortException(Messages.FailedParsingRevisionFile(e.getLocalizedMessage()));
+        }
+        long revisionFileNanos = System.nanoTime() - revisionFileStart;
+        TagMetrics.get().record(TagPhase.REVISION_FILE, revisionFileNanos);
+
+        List<String> lines = moduleLines(modules != null ? envVars.expand(modules) : null, revisions);
+        if (lines.isEmpty()) {
+            throw new AbortException(Messages.SvnTagStep_NoModules());
+        }
+
+        List<TagTarget> targets = new ArrayList<TagTarget>();
+        for (String line : lines) {
+            String remote = parseRemote(line);
+            long revision = parseRevision(line);
+            SubversionSCM.ModuleLocation ml =
+                    new SubversionSCM.ModuleLocation(remote, credentialsId, ".", "infinity", false);
+            SVNURL sourceURL;
+            try {
+                sourceURL = ml.getSVNURL();
+            } catch (SVNException e) {
+                throw new AbortException(Messages.FailedParsingRepositoryURL(remote,
+                        e.getLocalizedMessage()));
+            }
+            String mlUrl = sourceURL.toString();
+            logger.println("Tagging " + mlUrl);
+            if (revision == RevisionIndex.NONE) {
+                revision = revisions.get(mlUrl);
+            }
+            if (revision == RevisionIndex.NONE) {
+                logger.println(Messages.RevisionNotAvailable(mlUrl));
+                continue;
+            }
+            logger.println(Messages.RemoteModuleLocation(mlUrl + '@' + revision));
+
+            TagTarget target = SvnTagPlugin.createTarget(ml, sourceURL, revision, envVars,
+                    tagBaseURL,
+                    tagComment != null ? tagComment : descriptor.getTagComment(),
+                    tagDeleteComment != null ? tagDeleteComment : descriptor.getTagDeleteComment(),
+                    tagLayout, run.getTimeInMillis(), run.getFullDisplayName(), logger);
+            if (target == null) {
+                throw new AbortException(Messages.SvnTagStep_Failed());
+            }
+            targets.add(target);
+        }
+        if (targets.isEmpty()) {
+            throw new AbortException(Messages.SvnTagStep_NoModules());
+        }
+
+        Job<?, ?> job = run.getParent();
+        boolean success;
+        try {
+            // no SubversionSCM, the credentials are looked up by the ID of the module locations
+            success = SvnTagPlugin.tag(job, null, buildListener, targets, waitBeforeTagging,
+                    pollForRevision, atomicTagging, parallelism);
+        } finally {
+            run.addAction(new TagTimingAction(revisionFileNanos, targets));
+            run.addAction(new TagRecordAction(targets));
+            TagHistory.record(job, run.getNumber(), targets);
+            run.save();
+        }
+        if (!success) {
+            throw new AbortException(Messages.SvnTagStep_Failed());
+        }
+        List<String> tags = new ArrayList<String>();
+        for (TagTarget target : targets) {
+            if (target.getCommitRevision() >= 0) {
+                tags.add(target.getTagURL().toString());
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Returns the module lines to tag.
+     *
+     * @param modules   module locations, one per line, or null for all of the checkout
+     * @param revisions revisions the checkout recorded
+     * @return trimmed lines, without empty ones
+     */
+    static List<String> moduleLines(String modules, RevisionIndex revisions) {
+        List<String> lines = new ArrayList<String>();
+        if (modules == null) {
+            lines.addAll(revisions.getURLs());
+        } else {
+            for (String line : StringUtils.split(modules, "\r\n")) {
+                if (Util.fixEmptyAndTrim(line) != null) {
+                    lines.add(line.trim());
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the URL of a <tt>URL</tt> or <tt>URL@REVISION</tt> module line.
+     */
+    static String parseRemote(String line) {
+        int at = revisionSeparator(line);
+        return at < 0 ? line : line.substring(0, at);
+    }
+
+    /**
+     * Returns the revision of a <tt>URL@REVISION</tt> module line.
+     *
+     * @return the revision, or {@link RevisionIndex#NONE} if the line has none
+     * @throws AbortException when the revision is not a number
+     */
+    static long parseRevision(String line) throws AbortException {
+        int at = revisionSeparator(line);
+        if (at < 0) {
+            return RevisionIndex.NONE;
+        }
+        try {
+            return Long.parseLong(line.substring(at + 1));
+        } catch (NumberFormatException e) {
+            throw new AbortException(Messages.FailedParsingRepositoryURL(line,
+                    e.getLocalizedMessage()));
+        }
+    }
+
+    /**
+     * An '@' before the last '/' belongs to the user info of the URL.
+     */
+    private static int revisionSeparator(String line) {
+        int at = line.lastIndexOf('@');
+        return at > line.lastIndexOf('/') ? at : -1;
+    }
+
+    /**
+     * Runs the tagging on a thread of its own, so that the step only waits for it.
+     */
+    public static class Execution extends AbstractStepExecutionImpl {
+
+        private static final long serialVersionUID = 1L;
+
+        @Inject
+        private transient SvnTagStep step;
+
+        private transient Future<?> task;
+
+        @Override
+        public boolean start() throws Exception {
+            submit();
+            return false;
+        }
+
+        /**
+         * The tagging thread does not survive a restart. Running the step
+         * again finds the tags created meanwhile up to date.
+         */
+        @Override
+        public void onResume() {
+            super.onResume();
+            getContext().onFailure(new AbortException(Messages.SvnTagStep_Interrupted()));
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            Future<?> t = task;
+            if (t != null) {
+                t.cancel(true);
+            }
+            getContext().onFailure(cause);
+        }
+
+        private void submit() {
+            final StepContext context = getContext();
+            final SvnTagStep s = step;
+            task = EXECUTOR.submit(new Runnable() {
+                public void run() {
+                    try {
+                        context.onSuccess(s.tag(context.get(Run.class),
+                                context.get(TaskListener.class)));
+                    } catch (Exception e) {
+                        context.onFailure(e);
+                    }
+                }
+            });
+        }
+    }
+
+    @Extension(optional = true)
+    public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "svnTag";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.SvnTagStep_DisplayName();
+        }
+
+        public FormValidation doCheckTagBaseURL(@QueryParameter String value)
+                throws InterruptedException {
+            return getPublisherDescriptor().doCheckTagBaseURL(null, value, null);
+        }
+
+        public FormValidation doCheckTagComment(@QueryParameter String value) {
+            return getPublisherDescriptor().doCheckTagComment(value);
+        }
+
+        public FormValidation doCheckTagDeleteComment(@QueryParameter String value) {
+            return getPublisherDescriptor().doCheckTagDeleteComment(value);
+        }
+
+        private static SvnTagPublisher.SvnTagDescriptorImpl getPublisherDescriptor() {
+            return Jenkins.getInstance()
+                    .getDescriptorByType(SvnTagPublisher.SvnTagDescriptorImpl.class);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package hudson.plugins.svn_tag;
+
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNURL;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Limits the tagging load on each repository host.
+ * <p>
+ * At most a configured number of tag operations run against a host at a
+ * time, and commits may be held back to a budget per second. Operations
+ * failing with a transient error, e.g. a 503 or a timeout, are retried
+ * after an exponential backoff with jitter. When operations on a repository
+ * keep failing that way, its circuit opens: operations wait for the
+ * cool-down instead of failing, and then a single trial operation decides
+ * whether the circuit closes again. Circuits are per repository, so that
+ * one broken repository does not stop tagging the others on the same host;
+ * until the root of a repository is known, the host stands in for it.
+ */
+final class SvnThrottle {
+
+    private static final SvnThrottle INSTANCE = new SvnThrottle();
+
+    /**
+     * Backoff before the first retry in milliseconds, doubled for every further retry.
+     */
+    static final long RETRY_DELAY =
+            Long.getLong(SvnThrottle.class.getName() + ".retryDelay", 1000L);
+
+    /**
+     * Longest backoff between two retries in milliseconds.
+     */
+    static final long MAX_RETRY_DELAY =
+            Long.getLong(SvnThrottle.class.getName() + ".maxRetryDelay", 30000L);
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * host key -> state of the host.
+     */
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+    /**
+     * repository root, or host key if unknown -> circuit breaker.
+     */
+    private final Map<String, Circuit> circuits = new HashMap<String, Circuit>();
+
+    private int maxConcurrent;
+
+    private double commitsPerSecond;
+
+    private int maxRetries = 3;
+
+    private int breakerThreshold = 5;
+
+    private long breakerCooldownNanos = TimeUnit.SECONDS.toNanos(60);
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong circuitsOpened = new AtomicLong();
+
+    SvnThrottle() {
+    }
+
+    static SvnThrottle get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Applies the global configuration.
+     *
+     * @param maxConcurrent          operations per host at a time, 0 for no limit
+     * @param commitsPerSecond       commits per host and second, 0 for no limit
+     * @param maxRetries             retries of an operation failing with a transient error
+     * @param breakerThreshold       consecutive transient failures on a repository opening its circuit, 0 to never open it
+     * @param breakerCooldownSeconds seconds an open circuit waits before the trial operation
+     */
+    synchronized void configure(int maxConcurrent, double commitsPerSecond, int maxRetries,
+                                int breakerThreshold, int breakerCooldownSeconds) {
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+        this.commitsPerSecond = Math.max(0, commitsPerSecond);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.breakerThreshold = Math.max(0, breakerThreshold);
+        this.breakerCooldownNanos = TimeUnit.SECONDS.toNanos(Math.max(0, breakerCooldownSeconds));
+        notifyAll();
+    }
+
+    synchronized int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Waits until an operation may run against the repository of the URL.
+     *
+     * @param url    URL the operation works on
+     * @param root   root of the repository of the URL, null if not known yet
+     * @param logger logger to report waiting to
+     * @return the permit to pass to {@link #release(Permit, SVNErrorMessage)}
+     * @throws InterruptedException when interrupted while waiting
+     */
+    synchronized Permit acquire(SVNURL url, SVNURL root, PrintStream logger)
+            throws InterruptedException {
+        Host host = getHost(hostKey(url));
+        String key = root != null ? root.toString() : hostKey(url);
+        Circuit circuit = getCircuit(key);
+        boolean reported = false;
+        while (true) {
+            if (circuit.open) {
+                long remaining = circuit.openUntil - System.nanoTime();
+                if (remaining > 0 || circuit.trial) {
+                    if (!reported) {
+                        logger.println(Messages.CircuitOpen(key,
+                                TimeUnit.NANOSECONDS.toSeconds(Math.max(0, remaining))));
+                        reported = true;
+                    }
+                    waitNanos(remaining > 0 ? remaining : 0);
+                    continue;
+                }
+            }
+            if (maxConcurrent > 0 && host.running >= maxConcurrent) {
+                waitNanos(0);
+                continue;
+            }
+            break;
+        }
+        host.running++;
+        Permit permit = new Permit(host, circuit, circuit.open);
+        if (permit.trial) {
+            circuit.trial = true;
+        }
+        return permit;
+    }
+
+    /**
+     * Ends an operation started with {@link #acquire(SVNURL, SVNURL, PrintStream)}.
+     *
+     * @param permit the permit
+     * @param error  error the operation failed with, null if it succeeded
+     */
+    synchronized void release(Permit permit, SVNErrorMessage error) {
+        permit.host.running--;
+        Circuit circuit = permit.circuit;
+        if (permit.trial) {
+            circuit.trial = false;
+        }
+        if (isTransient(error)) {
+            circuit.failures++;
+            if (permit.trial || (breakerThreshold > 0 && circuit.failures >= breakerThreshold)) {
+                if (!circuit.open) {
+                    circuitsOpened.incrementAndGet();
+                }
+                circuit.open = true;
+                circuit.openUntil = System.nanoTime() + breakerCooldownNanos;
+            }
+        } else {
+            // the server answered, even if with an error
+            circuit.failures = 0;
+            circuit.open = false;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits until the commit budget of the host of the URL allows another commit.
+     *
+     * @param url URL the commit goes to
+     * @throws InterruptedException when interrupted while waiting
+     */
+    synchronized void awaitCommit(SVNURL url) throws InterruptedException {
+        Host host = getHost(hostKey(url));
+        while (commitsPerSecond > 0) {
+            long now = System.nanoTime();
+            double capacity = Math.max(1, commitsPerSecond);
+            host.tokens = Math.min(capacity,
+                    host.tokens + (now - host.refilled) * commitsPerSecond / 1e9);
+            host.refilled = now;
+            if (host.tokens >= 1) {
+                host.tokens--;
+                return;
+            }
+            waitNanos((long) ((1 - host.tokens) / commitsPerSecond * 1e9));
+        }
+    }
+
+    /**
+     * Sleeps before a retry.
+     *
+     * @param attempt number of retries so far
+     * @param logger  logger to report the retry to
+     * @param target  what is retried
+     * @param error   error of the failed attempt
+     * @throws InterruptedException when interrupted while waiting
+     */
+    void backoff(int attempt, PrintStream logger, Object target, SVNErrorMessage error)
+            throws InterruptedException {
+        long delay = backoffMillis(attempt, RANDOM);
+        retries.incrementAndGet();
+        logger.println(Messages.RetryingTag(target, error == null ? null : error.getMessage(),
+                delay, attempt + 1));
+        Thread.sleep(delay);
+    }
+
+    /**
+     * Returns the delay before a retry: exponential in the attempt, capped,
+     * and drawn at random from its upper half so that retries spread out.
+     *
+     * @param attempt number of retries so far
+     * @param random  source of the jitter
+     * @return milliseconds to wait
+     */
+    static long backoffMillis(int attempt, Random random) {
+        long ceiling = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(attempt, 20));
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+
+    /**
+     * True if the error is likely to go away when the operation is retried.
+     *
+     * @param error the error, or null
+     * @return true for server and connection failures
+     */
+    static boolean isTransient(SVNErrorMessage error) {
+        for (SVNErrorMessage e = error; e != null; e = e.getChildErrorMessage()) {
+            SVNErrorCode code = e.getErrorCode();
+            if (code == SVNErrorCode.RA_DAV_REQUEST_FAILED
+                    || code == SVNErrorCode.RA_SVN_IO_ERROR
+                    || code == SVNErrorCode.RA_SVN_CONNECTION_CLOSED
+                    || e.getCause() instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    long getRetries() {
+        return retries.get();
+    }
+
+    long getCircuitsOpened() {
+        return circuitsOpened.get();
+    }
+
+    /**
+     * Returns the number of repositories whose circuit is open.
+     *
+     * @return repositories not tagged right now
+     */
+    synchronized int getOpenCircuits() {
+        int n = 0;
+        for (Circuit circuit : circuits.values()) {
+            if (circuit.open) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private Host getHost(String key) {
+        Host host = hosts.get(key);
+        if (host == null) {
+            host = new Host();
+            hosts.put(key, host);
+        }
+        return host;
+    }
+
+    private Circuit getCircuit(String key) {
+        Circuit circuit = circuits.get(key);
+        if (circuit == null) {
+            circuit = new Circuit();
+            circuits.put(key, circuit);
+        }
+        return circuit;
+    }
+
+    private void waitNanos(long nanos) throws InterruptedException {
+        if (nanos <= 0) {
+            wait();
+        } else {
+            TimeUnit.NANOSECONDS.timedWait(this, nanos);
+        }
+    }
+
+    static String hostKey(SVNURL url) {
+        return url.getProtocol() + "://" + url.getHost() + ':' + url.getPort();
+    }
+
+    /**
+     * Right to run one operation against a repository.
+     */
+    static final class Permit {
+        private final Host host;
+        private final Circuit circuit;
+        private final boolean trial;
+
+        private Permit(Host host, Circuit circuit, boolean trial) {
+            this.host = host;
+            this.circuit = circuit;
+            this.trial = trial;
+        }
+    }
+
+    private static final class Host {
+        private int running;
+        private double tokens = 1;
+        private long refilled = System.nanoTime();
+    }
+
+    private static final class Circuit {
+        private int failures;
+        private boolean open;
+        private long openUntil;
+        /**
+         * true while the trial operation of an open circuit runs.
+         */
+        private boolean trial;
+    }
+}
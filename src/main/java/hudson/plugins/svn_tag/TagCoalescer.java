@@ -0,0 +1,162 @@
+package hudson.plugins.svn_tag;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Coalesces pending tag operations that target the same tag URL.
+ * <p>
+ * Operations on the same tag URL are carried out one at a time. While one
+ * is running, only the newest operation waiting for the same URL is kept;
+ * the operations it replaces are superseded and skip the delete and copy
+ * altogether. An operation never supersedes a waiting one with a higher
+ * revision of the same source.
+ */
+final class TagCoalescer {
+
+    private static final TagCoalescer INSTANCE = new TagCoalescer();
+
+    /**
+     * tag URL -> the newest operation waiting for it.
+     */
+    private final Map<String, Ticket> pending = new HashMap<String, Ticket>();
+
+    /**
+     * tag URLs being tagged right now.
+     */
+    private final Set<String> running = new HashSet<String>();
+
+    private final AtomicLong superseded = new AtomicLong();
+
+    static TagCoalescer get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the target as pending, superseding older pending targets for
+     * the same tag URL. Registering the same target again returns its ticket.
+     *
+     * @param target the target to tag
+     * @return the ticket to pass to {@link #begin(Ticket)}
+     */
+    synchronized Ticket enqueue(TagTarget target) {
+        if (target.ticket != null) {
+            return target.ticket;
+        }
+        Ticket ticket = new Ticket(target);
+        target.ticket = ticket;
+        Ticket previous = pending.get(ticket.key);
+        if (previous != null
+                && previous.target.getSourceURL().equals(target.getSourceURL())
+                && previous.target.getRevision() > target.getRevision()) {
+            ticket.supersededBy = previous;
+            superseded.incrementAndGet();
+            return ticket;
+        }
+        if (previous != null) {
+            previous.supersededBy = ticket;
+            superseded.incrementAndGet();
+            notifyAll();
+        }
+        pending.put(ticket.key, ticket);
+        return ticket;
+    }
+
+    /**
+     * Waits until no other operation runs on the tag URL of the ticket.
+     *
+     * @param ticket ticket returned by {@link #enqueue(TagTarget)}
+     * @return true if the caller should tag now and then call {@link #end(Ticket)},
+     *         false if the ticket was superseded and nothing should be done.
+     * @throws InterruptedException when interrupted. The ticket is withdrawn.
+     */
+    synchronized boolean begin(Ticket ticket) throws InterruptedException {
+        try {
+            while (ticket.supersededBy == null && running.contains(ticket.key)) {
+                ticket.waited = true;
+                wait();
+            }
+        } catch (InterruptedException e) {
+            withdraw(ticket);
+            throw e;
+        }
+        if (ticket.supersededBy != null) {
+            return false;
+        }
+        pending.remove(ticket.key);
+        running.add(ticket.key);
+        return true;
+    }
+
+    /**
+     * Marks the operation started by {@link #begin(Ticket)} as done.
+     *
+     * @param ticket the ticket
+     */
+    synchronized void end(Ticket ticket) {
+        running.remove(ticket.key);
+        notifyAll();
+    }
+
+    /**
+     * Withdraws a ticket that will not be passed to {@link #begin(Ticket)}.
+     *
+     * @param ticket the ticket
+     */
+    synchronized void withdraw(Ticket ticket) {
+        if (pending.get(ticket.key) == ticket) {
+            pending.remove(ticket.key);
+        }
+    }
+
+    /**
+     * Returns how many operations were superseded so far.
+     *
+     * @return number of superseded operations
+     */
+    long getSuperseded() {
+        return superseded.get();
+    }
+
+    /**
+     * Place of a target in the queue of its tag URL.
+     */
+    static final class Ticket {
+        private final TagTarget target;
+        private final String key;
+        private volatile Ticket supersededBy;
+        private boolean waited;
+
+        private Ticket(TagTarget target) {
+            this.target = target;
+            this.key = target.getTagURL().toString();
+        }
+
+        TagTarget getTarget() {
+            return target;
+        }
+
+        /**
+         * True if {@link TagCoalescer#begin(Ticket)} had to wait for another
+         * operation on the same tag URL, which may have changed the tag.
+         *
+         * @return true if the ticket waited
+         */
+        boolean hasWaited() {
+            return waited;
+        }
+
+        /**
+         * Returns the ticket that replaced this one, or null.
+         *
+         * @return the newer ticket
+         */
+        Ticket getSupersededBy() {
+            return supersededBy;
+        }
+    }
+}
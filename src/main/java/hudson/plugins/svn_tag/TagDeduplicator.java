@@ -0,0 +1,221 @@
+package hudson.plugins.svn_tag;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Makes sure each tag of a root build is created once, although every
+ * Maven module build or matrix configuration publishing it asks for the
+ * tags of the whole root build.
+ * <p>
+ * The first build to ask for a tag URL of a root build claims it and tags
+ * it; builds asking later wait for that outcome and reuse it. If the owner
+ * fails, the tag is claimed and tried again by the next build waiting for it.
+ * Claims are kept until the root build is finalized, which is after its own
+ * publisher tagged, or until its background tagging is done.
+ */
+public final class TagDeduplicator {
+
+    private static final TagDeduplicator INSTANCE = new TagDeduplicator();
+
+    /**
+     * root build key -> tag URL -> claim.
+     */
+    private final Map<String, Map<String, Claim>> claims = new HashMap<String, Map<String, Claim>>();
+
+    TagDeduplicator() {
+    }
+
+    static TagDeduplicator get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the key of a root build.
+     *
+     * @param rootBuild the root build
+     * @return the key
+     */
+    static String key(Run<?, ?> rootBuild) {
+        return rootBuild.getParent().getFullName() + '#' + rootBuild.getNumber();
+    }
+
+    /**
+     * Tags the targets not claimed by another build yet, then waits for the others.
+     *
+     * @param buildKey key of the root build the targets belong to
+     * @param targets  module locations to tag
+     * @param logger   logger to report reused tags to
+     * @param tagger   tags the claimed targets
+     * @return true if all targets were tagged successfully, by this build or another one
+     * @throws InterruptedException when interrupted
+     */
+    boolean tag(String buildKey, List<TagTarget> targets, PrintStream logger, Tagger tagger)
+            throws InterruptedException {
+        boolean success = true;
+        List<TagTarget> pending = targets;
+        while (!pending.isEmpty()) {
+            List<Claim> owned = new ArrayList<Claim>();
+            Map<TagTarget, Claim> foreign = new LinkedHashMap<TagTarget, Claim>();
+            for (TagTarget target : pending) {
+                Claim claim = claim(buildKey, target);
+                if (claim.owner == target) {
+                    owned.add(claim);
+                } else {
+                    foreign.put(target, claim);
+                }
+            }
+
+            if (!owned.isEmpty()) {
+                List<TagTarget> mine = new ArrayList<TagTarget>(owned.size());
+                for (Claim claim : owned) {
+                    mine.add(claim.owner);
+                }
+                try {
+                    success &= tagger.tag(mine);
+                } finally {
+                    for (Claim claim : owned) {
+                        complete(buildKey, claim);
+                    }
+                }
+            }
+
+            // wait only once the own claims are done, so that two builds cannot wait for each other
+            pending = new ArrayList<TagTarget>();
+            for (Map.Entry<TagTarget, Claim> e : foreign.entrySet()) {
+                Claim claim = e.getValue();
+                TagTarget owner = claim.owner;
+                if (!claim.isDone()) {
+                    logger.println(Messages.WaitingForTag(owner.getTagURL(), owner.getRequester()));
+                }
+                if (claim.await()) {
+                    logger.println(Messages.TaggedByOther(owner.getTagURL(), owner.getRequester()));
+                } else {
+                    pending.add(e.getKey());
+                }
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Returns the claim on the tag URL of the target, claiming it for the
+     * target unless another target holds it.
+     */
+    synchronized Claim claim(String buildKey, TagTarget target) {
+        Map<String, Claim> build = claims.get(buildKey);
+        if (build == null) {
+            build = new HashMap<String, Claim>();
+            claims.put(buildKey, build);
+        }
+        String tagURL = target.getTagURL().toString();
+        Claim claim = build.get(tagURL);
+        if (claim == null) {
+            claim = new Claim(target);
+            build.put(tagURL, claim);
+        }
+        return claim;
+    }
+
+    /**
+     * Publishes the outcome of an owned claim. A failed claim is dropped so
+     * that the next build asking for the tag tries again.
+     */
+    synchronized void complete(String buildKey, Claim claim) {
+        TagTarget owner = claim.owner;
+        boolean succeeded = owner.getCommitRevision() >= 0
+                || (owner.ticket != null && owner.ticket.getSupersededBy() != null);
+        if (!succeeded) {
+            Map<String, Claim> build = claims.get(buildKey);
+            if (build != null) {
+                build.remove(owner.getTagURL().toString());
+            }
+        }
+        claim.complete(succeeded);
+    }
+
+    /**
+     * Drops the claims of a root build.
+     *
+     * @param buildKey key of the root build
+     */
+    synchronized void forget(String buildKey) {
+        claims.remove(buildKey);
+    }
+
+    synchronized int size() {
+        return claims.size();
+    }
+
+    /**
+     * Tags a list of module locations.
+     */
+    interface Tagger {
+        boolean tag(List<TagTarget> targets) throws InterruptedException;
+    }
+
+    /**
+     * A tag URL of a root build, claimed by the target that tags it.
+     */
+    static final class Claim {
+        private final TagTarget owner;
+        private boolean done;
+        private boolean succeeded;
+
+        private Claim(TagTarget owner) {
+            this.owner = owner;
+        }
+
+        TagTarget getOwner() {
+            return owner;
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        private synchronized void complete(boolean succeeded) {
+            this.succeeded = succeeded;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the owner to finish.
+         *
+         * @return true if the owner tagged successfully
+         */
+        synchronized boolean await() throws InterruptedException {
+            while (!done) {
+                wait();
+            }
+            return succeeded;
+        }
+    }
+
+    /**
+     * Forgets the claims of root builds once they are finalized. The publisher
+     * runs after the build completed, so the claims are still needed then.
+     */
+    @Extension
+    public static final class Cleanup extends RunListener<Run<?, ?>> {
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            INSTANCE.forget(key(run));
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            INSTANCE.forget(key(run));
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package hudson.plugins.svn_tag;
+
+import hudson.model.Job;
+import hudson.util.AtomicFileWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Tags created for the builds of a job, kept in
+ * <tt>svn-tag-history.log</tt> of the job so that tags outlive the
+ * builds that created them and can be pruned later. Changes are reflected
+ * in the {@link TagRegistry}.
+ * <p>
+ * The file is a journal with one line per entry added or removed, so that
+ * recording the tags of a build appends a few lines instead of rewriting
+ * the history. It is rewritten only once more entries were removed than
+ * are left.
+ */
+final class TagHistory {
+
+    private static final Logger LOGGER = Logger.getLogger(TagHistory.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final char ADDED = '+';
+
+    private static final char REMOVED = '-';
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * number of removal lines in the journal.
+     */
+    private int removals;
+
+    /**
+     * Records the tags created for a build. Targets that the build did not
+     * tag, e.g. because they were superseded, are skipped.
+     *
+     * @param job         job the tags were created for
+     * @param buildNumber number of the build tagged
+     * @param targets     module locations
+     */
+    static void record(Job<?, ?> job, int buildNumber, List<TagTarget> targets) {
+        record(job, Collections.singletonMap(buildNumber, targets));
+    }
+
+    /**
+     * Records the tags created for several builds at once.
+     *
+     * @param job     job the tags were created for
+     * @param targets build number -> module locations
+     */
+    static void record(Job<?, ?> job, Map<Integer, List<TagTarget>> targets) {
+        long now = System.currentTimeMillis();
+        List<Entry> added = new ArrayList<Entry>();
+        for (Map.Entry<Integer, List<TagTarget>> e : targets.entrySet()) {
+            for (TagTarget target : e.getValue()) {
+                if (target.getCommitRevision() >= 0) {
+                    added.add(new Entry(e.getKey(), target.getRepositoryRoot() != null
+                            ? target.getRepositoryRoot().toString() : null,
+                            target.getSourceURL().toString(),
+                            target.getRevision(), target.getTagURL().toString(),
+                            target.getLogicalTagURL() != target.getTagURL()
+                                    ? target.getLogicalTagURL().toString() : null,
+                            target.getCommitRevision(), now));
+                }
+            }
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+        synchronized (TagHistory.class) {
+            try {
+                add(getFile(job), added);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save the tag history of " + job.getFullName(), e);
+            }
+            TagRegistry.get().add(job.getFullName(), added);
+        }
+    }
+
+    /**
+     * Forgets the entries, e.g. once their tags are pruned.
+     *
+     * @param job     job the tags were created for
+     * @param removed entries to forget
+     */
+    static void remove(Job<?, ?> job, Collection<Entry> removed) {
+        if (removed.isEmpty()) {
+            return;
+        }
+        synchronized (TagHistory.class) {
+            try {
+                remove(getFile(job), removed);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save the tag history of " + job.getFullName(), e);
+            }
+            TagRegistry.get().remove(job.getFullName(), removed);
+        }
+    }
+
+    /**
+     * Reads the history of the job.
+     *
+     * @param job the job
+     * @return the history, empty if none was recorded
+     */
+    static TagHistory load(Job<?, ?> job) {
+        File file = getFile(job);
+        try {
+            return load(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+            return new TagHistory();
+        }
+    }
+
+    static TagHistory load(File file) throws IOException {
+        TagHistory history = new TagHistory();
+        if (!file.exists()) {
+            return history;
+        }
+        Set<Entry> live = new LinkedHashSet<Entry>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry = Entry.parse(line);
+                if (entry == null) {
+                    // e.g. the last line of a journal cut short by a crash
+                    LOGGER.fine("Skipping the line '" + line + "' of " + file);
+                } else if (line.charAt(0) == REMOVED) {
+                    live.remove(entry);
+                    history.removals++;
+                } else {
+                    live.add(entry);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        history.entries.addAll(live);
+        return history;
+    }
+
+    static void add(File file, List<Entry> added) throws IOException {
+        append(file, ADDED, added);
+    }
+
+    static void remove(File file, Collection<Entry> removed) throws IOException {
+        TagHistory history = load(file);
+        List<Entry> present = new ArrayList<Entry>(removed);
+        present.retainAll(history.entries);
+        if (present.isEmpty()) {
+            return;
+        }
+        history.entries.removeAll(present);
+        if (history.removals + present.size() > history.entries.size()) {
+            history.compact(file);
+        } else {
+            append(file, REMOVED, present);
+        }
+    }
+
+    private static void append(File file, char op, List<Entry> entries) throws IOException {
+        file.getParentFile().mkdirs();
+        boolean torn = endsWithPartialLine(file);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF8);
+        try {
+            if (torn) {
+                writer.write('\n');
+            }
+            for (Entry entry : entries) {
+                writer.write(entry.format(op));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static boolean endsWithPartialLine(File file) throws IOException {
+        if (file.length() == 0) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(raf.length() - 1);
+            return raf.read() != '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Rewrites the journal with the entries left only.
+     */
+    private void compact(File file) throws IOException {
+        AtomicFileWriter writer = new AtomicFileWriter(file);
+        try {
+            for (Entry entry : entries) {
+                writer.write(entry.format(ADDED));
+            }
+            writer.commit();
+        } finally {
+            writer.abort();
+        }
+        removals = 0;
+    }
+
+    private static File getFile(Job<?, ?> job) {
+        return new File(job.getRootDir(), "svn-tag-history.log");
+    }
+
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    int getRemovals() {
+        return removals;
+    }
+
+    /**
+     * One tag created for one build.
+     */
+    static final class Entry {
+        private final int build;
+        /**
+         * root of the repository of the source and the tag, null if unknown.
+         */
+        private final String repositoryRoot;
+        private final String sourceURL;
+        private final long revision;
+        private final String tagURL;
+        /**
+         * evaluated tag URL before the tag layout was applied, null if the same.
+         */
+        private final String logicalTagURL;
+        /**
+         * revision of the tag commit, 0 if the tag was up to date or unknown.
+         */
+        private final long commitRevision;
+        private final long timestamp;
+
+        Entry(int build, String sourceURL, long revision, String tagURL, long commitRevision,
+              long timestamp) {
+            this(build, sourceURL, revision, tagURL, null, commitRevision, timestamp);
+        }
+
+        Entry(int build, String sourceURL, long revision, String tagURL, String logicalTagURL,
+              long commitRevision, long timestamp) {
+            this(build, null, sourceURL, revision, tagURL, logicalTagURL, commitRevision, timestamp);
+        }
+
+        Entry(int build, String repositoryRoot, String sourceURL, long revision, String tagURL,
+              String logicalTagURL, long commitRevision, long timestamp) {
+            this.build = build;
+            this.repositoryRoot = repositoryRoot;
+            this.sourceURL = sourceURL;
+            this.revision = revision;
+            this.tagURL = tagURL;
+            this.logicalTagURL = logicalTagURL;
+            this.commitRevision = commitRevision;
+            this.timestamp = timestamp;
+        }
+
+        int getBuild() {
+            return build;
+        }
+
+        /**
+         * @return the root of the repository of the source, null if unknown
+         */
+        String getRepositoryRoot() {
+            return repositoryRoot;
+        }
+
+        String getSourceURL() {
+            return sourceURL;
+        }
+
+        long getRevision() {
+            return revision;
+        }
+
+        String getTagURL() {
+            return tagURL;
+        }
+
+        /**
+         * @return the evaluated tag URL before the tag layout was applied
+         */
+        String getLogicalTagURL() {
+            return logicalTagURL != null ? logicalTagURL : tagURL;
+        }
+
+        long getCommitRevision() {
+            return commitRevision;
+        }
+
+        /**
+         * @return when the tag was created, in milliseconds since the epoch
+         */
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns the journal line of the entry, tab separated since URLs are encoded.
+         */
+        String format(char op) {
+            return op + "\t" + build + '\t' + (repositoryRoot != null ? repositoryRoot : "")
+                    + '\t' + sourceURL + '\t' + revision + '\t' + tagURL
+                    + '\t' + (logicalTagURL != null ? logicalTagURL : "") + '\t' + commitRevision
+                    + '\t' + timestamp + '\n';
+        }
+
+        /**
+         * Parses a journal line.
+         *
+         * @return the entry, or null if the line is malformed
+         */
+        static Entry parse(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 9 || fields[0].length() != 1
+                    || (fields[0].charAt(0) != ADDED && fields[0].charAt(0) != REMOVED)) {
+                return null;
+            }
+            try {
+                return new Entry(Integer.parseInt(fields[1]),
+                        fields[2].length() > 0 ? fields[2] : null, fields[3],
+                        Long.parseLong(fields[4]), fields[5], fields[6].length() > 0 ? fields[6] : null,
+                        Long.parseLong(fields[7]), Long.parseLong(fields[8]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry that = (Entry) o;
+            return build == that.build && revision == that.revision
+                    && timestamp == that.timestamp && tagURL.equals(that.tagURL)
+                    && sourceURL.equals(that.sourceURL);
+        }
+
+        @Override
+        public int hashCode() {
+            return (build * 31 + tagURL.hashCode()) * 31 + (int) timestamp;
+        }
+    }
+}
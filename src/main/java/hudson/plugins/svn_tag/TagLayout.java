@@ -0,0 +1,81 @@
+package hudson.plugins.svn_tag;
+
+import hudson.Util;
+
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.internal.util.SVNPathUtil;
+
+import java.util.Calendar;
+
+
+/**
+ * Places each tag into a bucket directory below the directory of its
+ * evaluated tag URL, so that no single directory collects tens of thousands
+ * of tags. The bucket depends only on the tag name or the build time, so a
+ * tag always lands in the same bucket. Missing bucket directories are created
+ * by the commit that copies the tag.
+ */
+public enum TagLayout {
+    /**
+     * the tag URL as evaluated.
+     */
+    FLAT,
+    /**
+     * one of 256 buckets named by the first two hex digits of the MD5 of the tag name.
+     */
+    HASH,
+    /**
+     * <tt>yyyy/MM</tt> of the build time.
+     */
+    DATE;
+
+    public String getDisplayName() {
+        switch (this) {
+            case HASH:
+                return Messages.TagLayout_HASH();
+            case DATE:
+                return Messages.TagLayout_DATE();
+            default:
+                return Messages.TagLayout_FLAT();
+        }
+    }
+
+    /**
+     * Returns the URL the tag is placed at.
+     *
+     * @param tagURL    evaluated tag URL
+     * @param timestamp time of the build in milliseconds since the epoch
+     * @return the tag URL within its bucket
+     * @throws SVNException when the URL cannot be built
+     */
+    SVNURL apply(SVNURL tagURL, long timestamp) throws SVNException {
+        String bucket = getBucket(SVNPathUtil.tail(tagURL.getPath()), timestamp);
+        if (bucket == null) {
+            return tagURL;
+        }
+        return tagURL.removePathTail().appendPath(bucket, false)
+                .appendPath(SVNPathUtil.tail(tagURL.getPath()), false);
+    }
+
+    /**
+     * Returns the bucket of a tag.
+     *
+     * @param name      last path segment of the tag URL
+     * @param timestamp time of the build in milliseconds since the epoch
+     * @return the bucket path, or null to keep the tag where it is
+     */
+    String getBucket(String name, long timestamp) {
+        switch (this) {
+            case HASH:
+                return Util.getDigestOf(name).substring(0, 2);
+            case DATE:
+                Calendar calendar = Calendar.getInstance();
+                calendar.setTimeInMillis(timestamp);
+                return String.format("%04d/%02d", calendar.get(Calendar.YEAR),
+                        calendar.get(Calendar.MONTH) + 1);
+            default:
+                return null;
+        }
+    }
+}
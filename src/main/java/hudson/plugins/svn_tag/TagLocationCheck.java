@@ -0,0 +1,215 @@
+package hudson.plugins.svn_tag;
+
+import hudson.EnvVars;
+import hudson.model.AbstractProject;
+import hudson.scm.SCM;
+import hudson.scm.SubversionSCM;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
+
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNNodeKind;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Checks on the configuration page of a job that the tag base URL resolves,
+ * for each module location of the job, to a tag whose parent directory
+ * exists in the repository.
+ * <p>
+ * The repository is asked by a small pool of threads, and the request
+ * thread gives up waiting after a few seconds. The outcome is kept per
+ * parent directory URL for a while, also when it arrives after the request
+ * gave up, so that the next validation of the field answers at once. At most
+ * one check per URL is in flight.
+ */
+final class TagLocationCheck {
+
+    /**
+     * Seconds the validation request waits for the repository.
+     */
+    static final long TIMEOUT = Long.getLong(TagLocationCheck.class.getName() + ".timeout", 5);
+
+    /**
+     * Seconds the outcome of a check is kept.
+     */
+    static final long TTL = Long.getLong(TagLocationCheck.class.getName() + ".ttl", 300);
+
+    /**
+     * Number of repository checks run concurrently.
+     */
+    static final int WORKERS = Integer.getInteger(TagLocationCheck.class.getName() + ".workers", 2);
+
+    private static final int MAX_SIZE = 1024;
+
+    private static final TagLocationCheck INSTANCE = new TagLocationCheck();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, WORKERS),
+            new NamingThreadFactory(new DaemonThreadFactory(), TagLocationCheck.class.getName()));
+
+    /**
+     * parent directory URL -> check, pending or done.
+     */
+    private final Map<String, Check> checks = new LinkedHashMap<String, Check>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Check> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    TagLocationCheck() {
+    }
+
+    static TagLocationCheck get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks the parent directories of the tags the template resolves to for
+     * the module locations of the project. Templates are evaluated as for the
+     * next build, without build parameters.
+     *
+     * @param project    the project being configured
+     * @param tagBaseURL tag base URL template
+     * @param tagLayout  bucket directories the tags are placed into
+     * @return the worst result of all module locations
+     * @throws InterruptedException when interrupted while waiting
+     */
+    FormValidation check(final AbstractProject<?, ?> project, String tagBaseURL,
+                         TagLayout tagLayout) throws InterruptedException {
+        SCM scm = project.getScm();
+        if (!(scm instanceof SubversionSCM)) {
+            return FormValidation.ok();
+        }
+        final SubversionSCM svn = (SubversionSCM) scm;
+        EnvVars env = project.getCharacteristicEnvVars();
+        env.put("BUILD_NUMBER", String.valueOf(project.getNextBuildNumber()));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        FormValidation worst = FormValidation.ok();
+        for (SubversionSCM.ModuleLocation ml : svn.getLocations()) {
+            FormValidation result;
+            SVNURL sourceURL;
+            try {
+                sourceURL = ml.getSVNURL();
+            } catch (SVNException e) {
+                result = FormValidation.warning(
+                        Messages.FailedParsingRepositoryURL(ml.remote, e.getLocalizedMessage()));
+                worst = worse(worst, result);
+                continue;
+            }
+            ByteArrayOutputStream log = new ByteArrayOutputStream();
+            final TagTarget target = SvnTagPlugin.createTarget(ml, sourceURL, -1, env, tagBaseURL,
+                    "", null, tagLayout, System.currentTimeMillis(),
+                    project.getFullDisplayName(), new PrintStream(log, true));
+            if (target == null) {
+                worst = worse(worst, FormValidation.error(log.toString().trim()));
+                continue;
+            }
+            // the bucket directories of a tag layout are created with the tags
+            final SVNURL parent = target.getLogicalTagURL().removePathTail();
+            FutureTask<FormValidation> task = submit(parent.toString(), new Callable<FormValidation>() {
+                public FormValidation call() {
+                    return checkParent(project, svn, target, parent);
+                }
+            });
+            try {
+                result = task.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                result = FormValidation.warning(Messages.TagLocationCheckTimedOut(parent, TIMEOUT));
+            } catch (ExecutionException e) {
+                result = FormValidation.warning(Messages.TagLocationCheckFailed(
+                        parent, e.getCause().getLocalizedMessage()));
+            }
+            worst = worse(worst, result);
+        }
+        return worst;
+    }
+
+    /**
+     * Returns the check of the URL, starting one unless a recent one is
+     * pending or done.
+     */
+    private FutureTask<FormValidation> submit(String url, Callable<FormValidation> callable) {
+        long now = System.nanoTime();
+        synchronized (checks) {
+            Check check = checks.get(url);
+            if (check != null && (!check.task.isDone()
+                    || now - check.started < TimeUnit.SECONDS.toNanos(TTL))) {
+                return check.task;
+            }
+            check = new Check(new FutureTask<FormValidation>(callable), now);
+            checks.put(url, check);
+            executor.execute(check.task);
+            return check.task;
+        }
+    }
+
+    private static FormValidation checkParent(final AbstractProject<?, ?> project,
+                                              final SubversionSCM scm, final TagTarget target,
+                                              SVNURL parent) {
+        SvnSessionPool.Session session = null;
+        boolean reusable = false;
+        try {
+            session = SvnSessionPool.get().acquire(SvnTagPlugin.credentialKey(project, target),
+                    target.getSourceURL(), new SvnSessionPool.AuthenticationFactory() {
+                        public ISVNAuthenticationManager create() {
+                            return SvnTagPlugin.createAuthenticationManager(project, scm, target);
+                        }
+                    });
+            if (session == null) {
+                return FormValidation.warning(Messages.NoSVNAuthProvider());
+            }
+            reusable = true;
+            String path = TagTransaction.relativePath(session.getRoot(), parent);
+            if (path == null) {
+                return FormValidation.error(
+                        Messages.NotInRepository(target.getTagURL(), session.getRoot()));
+            }
+            SVNNodeKind kind = session.getRepository().checkPath(path, -1);
+            if (kind == SVNNodeKind.DIR) {
+                return FormValidation.ok(Messages.TagParentExists(parent));
+            } else if (kind == SVNNodeKind.NONE) {
+                return FormValidation.warning(Messages.TagParentMissing(parent));
+            }
+            return FormValidation.error(Messages.TagParentNotDirectory(parent));
+        } catch (SVNException e) {
+            reusable = false;
+            return FormValidation.warning(
+                    Messages.TagLocationCheckFailed(parent, e.getLocalizedMessage()));
+        } finally {
+            SvnSessionPool.get().release(session, reusable);
+        }
+    }
+
+    private static FormValidation worse(FormValidation a, FormValidation b) {
+        return b.kind.ordinal() > a.kind.ordinal() ? b : a;
+    }
+
+    /**
+     * A check of one parent directory URL.
+     */
+    private static final class Check {
+        private final FutureTask<FormValidation> task;
+        private final long started;
+
+        private Check(FutureTask<FormValidation> task, long started) {
+            this.task = task;
+            this.started = started;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package hudson.plugins.svn_tag;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Aggregated tagging statistics of the controller since its start: latency
+ * histograms per {@link TagPhase}, commits, failures by SVN error code and
+ * the operations in flight. Exposed by {@link TagMetricsAction}.
+ */
+public final class TagMetrics {
+
+    /**
+     * Upper bounds of the histogram buckets in milliseconds. The last bucket is unbounded.
+     */
+    static final long[] BUCKETS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    private static final TagMetrics INSTANCE = new TagMetrics();
+
+    private final Histogram[] histograms = new Histogram[TagPhase.values().length];
+
+    private final AtomicLong commits = new AtomicLong();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * SVN error code -> number of failures.
+     */
+    private final Map<Integer, AtomicLong> failures = new TreeMap<Integer, AtomicLong>();
+
+    TagMetrics() {
+        for (TagPhase phase : TagPhase.values()) {
+            histograms[phase.ordinal()] = new Histogram(phase);
+        }
+    }
+
+    static TagMetrics get() {
+        return INSTANCE;
+    }
+
+    void record(TagPhase phase, long nanos) {
+        histograms[phase.ordinal()].record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    void committed() {
+        commits.incrementAndGet();
+    }
+
+    void failed(SVNErrorMessage error) {
+        SVNErrorCode code = error == null ? SVNErrorCode.UNKNOWN : error.getErrorCode();
+        AtomicLong count;
+        synchronized (failures) {
+            count = failures.get(code.getCode());
+            if (count == null) {
+                count = new AtomicLong();
+                failures.put(code.getCode(), count);
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    void begin() {
+        inFlight.incrementAndGet();
+    }
+
+    void end() {
+        inFlight.decrementAndGet();
+    }
+
+    Histogram getHistogram(TagPhase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    List<Histogram> getHistograms() {
+        List<Histogram> list = new ArrayList<Histogram>(histograms.length);
+        for (Histogram histogram : histograms) {
+            list.add(histogram);
+        }
+        return list;
+    }
+
+    long getCommits() {
+        return commits.get();
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns the number of failures per SVN error code.
+     *
+     * @return error code -> number of failures, sorted by error code
+     */
+    Map<Integer, Long> getFailures() {
+        Map<Integer, Long> copy = new TreeMap<Integer, Long>();
+        synchronized (failures) {
+            for (Map.Entry<Integer, AtomicLong> e : failures.entrySet()) {
+                copy.put(e.getKey(), e.getValue().get());
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Latency histogram of one phase.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Histogram {
+        private final TagPhase phase;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+
+        private Histogram(TagPhase phase) {
+            this.phase = phase;
+        }
+
+        private void record(long millis) {
+            int i = 0;
+            while (i < BUCKETS.length && millis > BUCKETS[i]) {
+                i++;
+            }
+            counts.incrementAndGet(i);
+            count.incrementAndGet();
+            totalMillis.addAndGet(millis);
+        }
+
+        @Exported
+        public String getPhase() {
+            return phase.name();
+        }
+
+        @Exported
+        public long getCount() {
+            return count.get();
+        }
+
+        @Exported
+        public long getTotalMillis() {
+            return totalMillis.get();
+        }
+
+        /**
+         * @return upper bounds of the buckets in milliseconds
+         */
+        @Exported
+        public long[] getBuckets() {
+            return BUCKETS.clone();
+        }
+
+        /**
+         * @return number of samples per bucket, with one more bucket for the samples above the last bound
+         */
+        @Exported
+        public long[] getCounts() {
+            long[] copy = new long[counts.length()];
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = counts.get(i);
+            }
+            return copy;
+        }
+    }
+}
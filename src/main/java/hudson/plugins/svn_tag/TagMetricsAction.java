@@ -0,0 +1,133 @@
+package hudson.plugins.svn_tag;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Exposes the {@link TagMetrics} of the controller at <tt>/svn-tag/api/json</tt>
+ * to administrators, e.g. for alerting on a slow SVN server.
+ */
+@Extension
+@ExportedBean
+public class TagMetricsAction implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.TagMetricsAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "svn-tag";
+    }
+
+    public Api getApi() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return new Api(this);
+    }
+
+    @Exported
+    public List<TagMetrics.Histogram> getLatencies() {
+        return TagMetrics.get().getHistograms();
+    }
+
+    @Exported
+    public long getCommits() {
+        return TagMetrics.get().getCommits();
+    }
+
+    @Exported
+    public List<Failure> getFailures() {
+        List<Failure> failures = new ArrayList<Failure>();
+        for (Map.Entry<Integer, Long> e : TagMetrics.get().getFailures().entrySet()) {
+            failures.add(new Failure(e.getKey(), e.getValue()));
+        }
+        return failures;
+    }
+
+    @Exported
+    public int getInFlight() {
+        return TagMetrics.get().getInFlight();
+    }
+
+    @Exported
+    public long getSuperseded() {
+        return TagCoalescer.get().getSuperseded();
+    }
+
+    @Exported
+    public long getRetries() {
+        return SvnThrottle.get().getRetries();
+    }
+
+    @Exported
+    public long getCircuitsOpened() {
+        return SvnThrottle.get().getCircuitsOpened();
+    }
+
+    @Exported
+    public int getOpenCircuits() {
+        return SvnThrottle.get().getOpenCircuits();
+    }
+
+    @Exported
+    public long getTemplateCacheHits() {
+        return SvnTagPlugin.getTemplateCache().getHits();
+    }
+
+    @Exported
+    public long getTemplateCacheMisses() {
+        return SvnTagPlugin.getTemplateCache().getMisses();
+    }
+
+    @Exported
+    public long getSessionPoolHits() {
+        return SvnSessionPool.get().getHits();
+    }
+
+    @Exported
+    public long getSessionPoolOpens() {
+        return SvnSessionPool.get().getOpens();
+    }
+
+    @Exported
+    public long getSessionsActive() {
+        return SvnSessionPool.get().getActiveCount();
+    }
+
+    /**
+     * Number of failures with one SVN error code.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Failure {
+        private final int errorCode;
+        private final long count;
+
+        private Failure(int errorCode, long count) {
+            this.errorCode = errorCode;
+            this.count = count;
+        }
+
+        @Exported
+        public int getErrorCode() {
+            return errorCode;
+        }
+
+        @Exported
+        public long getCount() {
+            return count;
+        }
+    }
+}
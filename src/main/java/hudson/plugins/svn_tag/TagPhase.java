@@ -0,0 +1,54 @@
+package hudson.plugins.svn_tag;
+
+
+/**
+ * Phases of the tagging whose duration is measured.
+ */
+public enum TagPhase {
+    /**
+     * reading the revision file of the build, once per build.
+     */
+    REVISION_FILE,
+    /**
+     * evaluating the tag URL and comment templates.
+     */
+    TEMPLATE,
+    /**
+     * borrowing a session, including the creation of the authentication manager.
+     */
+    SESSION,
+    /**
+     * checking whether the tag exists and is up to date.
+     */
+    PROBE,
+    DELETE,
+    /**
+     * waiting for the revision to become visible.
+     */
+    WAIT,
+    COPY;
+
+    /**
+     * Returns the name of the phase as shown to users.
+     *
+     * @return the display name
+     */
+    public String getDisplayName() {
+        switch (this) {
+            case REVISION_FILE:
+                return Messages.TagPhase_REVISION_FILE();
+            case TEMPLATE:
+                return Messages.TagPhase_TEMPLATE();
+            case SESSION:
+                return Messages.TagPhase_SESSION();
+            case PROBE:
+                return Messages.TagPhase_PROBE();
+            case DELETE:
+                return Messages.TagPhase_DELETE();
+            case WAIT:
+                return Messages.TagPhase_WAIT();
+            default:
+                return Messages.TagPhase_COPY();
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package hudson.plugins.svn_tag;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SCMListener;
+import hudson.scm.SCM;
+import hudson.scm.SCMRevisionState;
+import hudson.scm.SubversionSCM;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.NullStream;
+
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNNodeKind;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.io.SVNRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Does the network work of tagging while the build is still running, right
+ * after the checkout: the tag URLs are resolved, sessions to their
+ * repositories are authenticated and left in the {@link SvnSessionPool}, and
+ * the existing tags are probed.
+ * <p>
+ * When the publisher runs, its own targets pick up the probes of the same
+ * tag URL, source and revision. A probe is trusted only if the repository
+ * did not change since, which costs one round trip per repository instead of
+ * two per tag. A preparation that is not done yet is dropped, and tagging
+ * goes on as without it.
+ */
+public final class TagPreparation {
+
+    private static final Logger LOGGER = Logger.getLogger(TagPreparation.class.getName());
+
+    /**
+     * Number of builds prepared concurrently.
+     */
+    static final int WORKERS = Integer.getInteger(TagPreparation.class.getName() + ".workers", 2);
+
+    private static final TagPreparation INSTANCE = new TagPreparation();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, WORKERS),
+            new NamingThreadFactory(new DaemonThreadFactory(), TagPreparation.class.getName()));
+
+    /**
+     * root build key -> tag URL -> probe.
+     */
+    private final Map<String, FutureTask<Map<String, Probe>>> preparations =
+            new HashMap<String, FutureTask<Map<String, Probe>>>();
+
+    TagPreparation() {
+    }
+
+    static TagPreparation get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts to prepare the tagging of a root build, unless its project does
+     * not tag or the preparation is disabled.
+     *
+     * @param build    the root build, checked out
+     * @param listener listener of the build
+     */
+    void start(final AbstractBuild<?, ?> build, TaskListener listener) {
+        AbstractProject<?, ?> project = build.getProject();
+        final SvnTagPublisher publisher = project.getPublishersList().get(SvnTagPublisher.class);
+        if (publisher == null || publisher.isAsynchronous()
+                || !publisher.getDescriptor().isPrepareTagging()
+                || !(project.getScm() instanceof SubversionSCM)) {
+            return;
+        }
+        final SubversionSCM scm = (SubversionSCM) project.getScm();
+        final EnvVars envVars;
+        try {
+            envVars = build.getEnvironment(listener);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Not preparing to tag " + build, e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        start(TagDeduplicator.key(build), new Callable<Map<String, Probe>>() {
+            public Map<String, Probe> call() throws Exception {
+                return prepare(build, scm, envVars, publisher);
+            }
+        });
+    }
+
+    /**
+     * Runs a preparation in the background.
+     *
+     * @param buildKey    key of the root build
+     * @param preparation returns the probes by tag URL
+     * @return the running preparation
+     */
+    FutureTask<Map<String, Probe>> start(String buildKey, Callable<Map<String, Probe>> preparation) {
+        FutureTask<Map<String, Probe>> task = new FutureTask<Map<String, Probe>>(preparation);
+        synchronized (preparations) {
+            preparations.put(buildKey, task);
+        }
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Hands the probes of a root build to the targets the publisher resolved,
+     * and forgets the preparation.
+     *
+     * @param rootBuild the root build
+     * @param targets   module locations to tag
+     * @return number of targets that got a probe
+     */
+    int apply(AbstractBuild<?, ?> rootBuild, List<TagTarget> targets) {
+        return apply(TagDeduplicator.key(rootBuild), targets);
+    }
+
+    int apply(String buildKey, List<TagTarget> targets) {
+        FutureTask<Map<String, Probe>> task;
+        synchronized (preparations) {
+            task = preparations.remove(buildKey);
+        }
+        if (task == null) {
+            return 0;
+        }
+        if (!task.isDone()) {
+            task.cancel(true);
+            return 0;
+        }
+        Map<String, Probe> probes;
+        try {
+            probes = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.FINE, "Failed to prepare to tag " + buildKey, e.getCause());
+            return 0;
+        }
+        int applied = 0;
+        for (TagTarget target : targets) {
+            Probe probe = probes.get(target.getTagURL().toString());
+            if (probe != null && probe.sourceURL.equals(target.getSourceURL())
+                    && probe.sourceRevision == target.getRevision()) {
+                target.setPrepared(probe);
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Forgets the preparation of a root build that did not tag.
+     *
+     * @param buildKey key of the root build
+     */
+    void forget(String buildKey) {
+        FutureTask<Map<String, Probe>> task;
+        synchronized (preparations) {
+            task = preparations.remove(buildKey);
+        }
+        if (task != null) {
+            task.cancel(true);
+        }
+    }
+
+    int size() {
+        synchronized (preparations) {
+            return preparations.size();
+        }
+    }
+
+    private static Map<String, Probe> prepare(AbstractBuild<?, ?> build, SubversionSCM scm,
+                                              EnvVars envVars, SvnTagPublisher publisher)
+            throws IOException, SVNException {
+        scm.buildEnvVars(build, envVars);
+        RevisionIndex revisions = RevisionIndex.of(build);
+        PrintStream logger = new PrintStream(new NullStream());
+        Map<String, Probe> probes = new HashMap<String, Probe>();
+        List<SvnSessionPool.Session> sessions = new ArrayList<SvnSessionPool.Session>();
+        Map<SvnSessionPool.Session, Long> heads = new HashMap<SvnSessionPool.Session, Long>();
+        boolean success = false;
+        try {
+            for (SubversionSCM.ModuleLocation ml : scm.getLocations(envVars, build)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                SVNURL sourceURL = ml.getSVNURL();
+                long revision = revisions.get(sourceURL.toString());
+                if (revision == RevisionIndex.NONE) {
+                    continue;
+                }
+                TagTarget target = SvnTagPlugin.createTarget(ml, sourceURL, revision, envVars,
+                        publisher.getTagBaseURL(), publisher.getTagComment(),
+                        publisher.getTagDeleteComment(), publisher.getTagLayout(),
+                        build.getTimeInMillis(), build.getFullDisplayName(), logger);
+                if (target == null) {
+                    continue;
+                }
+                SvnSessionPool.Session session = null;
+                for (SvnSessionPool.Session s : sessions) {
+                    if (s.getCredentialKey().equals(SvnTagPlugin.credentialKey(build.getProject(), target))
+                            && TagTransaction.relativePath(s.getRoot(), sourceURL) != null) {
+                        session = s;
+                        break;
+                    }
+                }
+                if (session == null) {
+                    session = SvnTagPlugin.acquireSession(build.getProject(), scm, target);
+                    if (session == null) {
+                        continue;
+                    }
+                    sessions.add(session);
+                }
+                // the single commit tagging probes in its own commit, a warm session is all it takes
+                if (publisher.isAtomicTagging()) {
+                    continue;
+                }
+                String tagPath = TagTransaction.relativePath(session.getRoot(), target.getTagURL());
+                String sourcePath = TagTransaction.relativePath(session.getRoot(), sourceURL);
+                if (tagPath == null || sourcePath == null) {
+                    continue;
+                }
+                SVNRepository repository = session.getRepository();
+                Long head = heads.get(session);
+                if (head == null) {
+                    head = repository.getLatestRevision();
+                    heads.put(session, head);
+                }
+                boolean exists = repository.checkPath(tagPath, head) != SVNNodeKind.NONE;
+                boolean upToDate = exists
+                        && TagProbe.isUpToDate(repository, tagPath, sourcePath, revision);
+                probes.put(target.getTagURL().toString(), new Probe(session.getRoot(), head,
+                        sourceURL, revision, exists, upToDate));
+            }
+            success = true;
+            return probes;
+        } finally {
+            for (SvnSessionPool.Session session : sessions) {
+                SvnSessionPool.get().release(session, success);
+            }
+        }
+    }
+
+    /**
+     * State of a tag found while the build was running.
+     */
+    static final class Probe {
+        private final SVNURL root;
+        /**
+         * youngest revision of the repository when the tag was probed.
+         */
+        private final long head;
+        private final SVNURL sourceURL;
+        private final long sourceRevision;
+        private final boolean exists;
+        private final boolean upToDate;
+
+        Probe(SVNURL root, long head, SVNURL sourceURL, long sourceRevision,
+              boolean exists, boolean upToDate) {
+            this.root = root;
+            this.head = head;
+            this.sourceURL = sourceURL;
+            this.sourceRevision = sourceRevision;
+            this.exists = exists;
+            this.upToDate = upToDate;
+        }
+
+        /**
+         * True if the repository of the session is still at the revision the
+         * tag was probed at, so that the probe still holds.
+         *
+         * @param session session of the repository the tag is in
+         * @param heads   youngest revision per repository root, filled as needed
+         */
+        boolean isCurrent(SvnSessionPool.Session session, Map<SVNURL, Long> heads)
+                throws SVNException {
+            if (!root.equals(session.getRoot())) {
+                return false;
+            }
+            Long latest = heads.get(root);
+            if (latest == null) {
+                latest = session.getRepository().getLatestRevision();
+                heads.put(root, latest);
+            }
+            return latest == head;
+        }
+
+        boolean exists() {
+            return exists;
+        }
+
+        boolean isUpToDate() {
+            return upToDate;
+        }
+    }
+
+    /**
+     * Starts the preparation once a root build has checked out.
+     */
+    @Extension
+    public static final class Starter extends SCMListener {
+        @Override
+        public void onCheckout(Run<?, ?> build, SCM scm, FilePath workspace, TaskListener listener,
+                               File changelogFile, SCMRevisionState pollingBaseline) {
+            if (build instanceof AbstractBuild && scm instanceof SubversionSCM) {
+                AbstractBuild<?, ?> b = (AbstractBuild<?, ?>) build;
+                if (b.getRootBuild() == b) {
+                    INSTANCE.start(b, listener);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the preparations of builds that never tagged.
+     */
+    @Extension
+    public static final class Cleanup extends RunListener<Run<?, ?>> {
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            INSTANCE.forget(TagDeduplicator.key(run));
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            INSTANCE.forget(TagDeduplicator.key(run));
+        }
+    }
+}
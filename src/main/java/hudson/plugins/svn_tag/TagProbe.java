@@ -0,0 +1,48 @@
+package hudson.plugins.svn_tag;
+
+import org.tmatesoft.svn.core.ISVNLogEntryHandler;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNLogEntry;
+import org.tmatesoft.svn.core.SVNLogEntryPath;
+import org.tmatesoft.svn.core.io.SVNRepository;
+
+
+/**
+ * Cheap read-only checks on existing tags.
+ */
+final class TagProbe {
+
+    private TagProbe() {
+    }
+
+    /**
+     * True if the tag exists as an unmodified copy of the source at the
+     * revision, i.e. the most recent change of the tag is the copy itself.
+     * This takes a single <tt>svn log</tt> round trip limited to one entry.
+     *
+     * @param repository session located at the repository root
+     * @param tagPath    path of the tag relative to the repository root
+     * @param sourcePath path of the source relative to the repository root
+     * @param revision   revision of the source
+     * @return true if copying the source again would not change the tag
+     * @throws SVNException when the log cannot be retrieved
+     */
+    static boolean isUpToDate(SVNRepository repository, String tagPath,
+                              String sourcePath, final long revision) throws SVNException {
+        final String absoluteTagPath = '/' + tagPath;
+        final String absoluteSourcePath = '/' + sourcePath;
+        final boolean[] upToDate = new boolean[1];
+        repository.log(new String[]{tagPath}, -1, 0, true, false, 1, new ISVNLogEntryHandler() {
+            public void handleLogEntry(SVNLogEntry logEntry) {
+                SVNLogEntryPath path =
+                        (SVNLogEntryPath) logEntry.getChangedPaths().get(absoluteTagPath);
+                upToDate[0] = path != null
+                        && (path.getType() == SVNLogEntryPath.TYPE_ADDED
+                            || path.getType() == SVNLogEntryPath.TYPE_REPLACED)
+                        && absoluteSourcePath.equals(path.getCopyPath())
+                        && path.getCopyRevision() == revision;
+            }
+        });
+        return upToDate[0];
+    }
+}
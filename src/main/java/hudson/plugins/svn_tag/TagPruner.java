@@ -0,0 +1,347 @@
+package hudson.plugins.svn_tag;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.scm.SubversionSCM;
+import jenkins.model.Jenkins;
+
+import org.tmatesoft.svn.core.SVNCommitInfo;
+import org.tmatesoft.svn.core.SVNDirEntry;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNNodeKind;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.io.ISVNEditor;
+import org.tmatesoft.svn.core.io.SVNRepository;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Deletes the tags that the retention policy of a {@link SvnTagPublisher}
+ * no longer keeps.
+ * <p>
+ * Candidates come from the {@link TagHistory} of the project, so that only
+ * tags created by this plugin are ever deleted. Each tag directory is listed
+ * once per run, and the expired tags of a repository are deleted in commits
+ * of up to {@link #BATCH_SIZE} tags. Batches wait while tags are being
+ * created and pause for {@link #PAUSE} in between, so that pruning never
+ * competes with live tagging.
+ */
+@Extension
+public class TagPruner extends AsyncPeriodicWork {
+
+    /**
+     * Maximum number of tags deleted in one commit.
+     */
+    static final int BATCH_SIZE = Integer.getInteger(TagPruner.class.getName() + ".batchSize", 500);
+
+    /**
+     * Milliseconds to pause between two commits.
+     */
+    static final long PAUSE = Long.getLong(TagPruner.class.getName() + ".pause", 1000);
+
+    public TagPruner() {
+        super("Subversion tag pruning");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return HOUR;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (AbstractProject<?, ?> project : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
+            SvnTagPublisher publisher = project.getPublishersList().get(SvnTagPublisher.class);
+            if (publisher == null || !publisher.hasTagRetention()
+                    || !(project.getScm() instanceof SubversionSCM)) {
+                continue;
+            }
+            prune(project, (SubversionSCM) project.getScm(), publisher, listener.getLogger());
+        }
+    }
+
+    private static void prune(AbstractProject<?, ?> project, SubversionSCM scm,
+                              SvnTagPublisher publisher, PrintStream logger)
+            throws InterruptedException {
+        List<TagHistory.Entry> entries = TagHistory.load(project).getEntries();
+        Set<Integer> existingBuilds = null;
+        if (publisher.isPruneTagsOfDeletedBuilds()) {
+            existingBuilds = new HashSet<Integer>();
+            for (TagHistory.Entry entry : entries) {
+                if (project.getBuildByNumber(entry.getBuild()) != null) {
+                    existingBuilds.add(entry.getBuild());
+                }
+            }
+        }
+        List<TagHistory.Entry> expired = selectExpired(entries, publisher.getKeepLastTags(),
+                TimeUnit.DAYS.toMillis(publisher.getMaxTagAgeDays()), existingBuilds,
+                System.currentTimeMillis());
+        if (expired.isEmpty()) {
+            return;
+        }
+
+        // repository root -> session and paths of the tags to delete
+        Map<SVNURL, SvnSessionPool.Session> sessions = new LinkedHashMap<SVNURL, SvnSessionPool.Session>();
+        Map<SVNURL, Set<String>> paths = new HashMap<SVNURL, Set<String>>();
+        // tag URL -> entries forgotten once the tag is gone
+        Map<String, List<TagHistory.Entry>> pending = new TreeMap<String, List<TagHistory.Entry>>();
+        List<TagHistory.Entry> done = new ArrayList<TagHistory.Entry>();
+        Set<String> deletable = selectDeletable(entries, expired);
+        boolean success = false;
+        try {
+            for (TagHistory.Entry entry : expired) {
+                if (!deletable.contains(entry.getTagURL())) {
+                    done.add(entry);    // a kept entry still refers to the tag
+                    continue;
+                }
+                List<TagHistory.Entry> list = pending.get(entry.getTagURL());
+                if (list != null) {
+                    list.add(entry);
+                    continue;
+                }
+                list = new ArrayList<TagHistory.Entry>();
+                list.add(entry);
+                pending.put(entry.getTagURL(), list);
+
+                SVNURL tagURL = SVNURL.parseURIEncoded(entry.getTagURL());
+                SvnSessionPool.Session session = null;
+                for (SvnSessionPool.Session s : sessions.values()) {
+                    if (TagTransaction.relativePath(s.getRoot(), tagURL) != null) {
+                        session = s;
+                        break;
+                    }
+                }
+                if (session == null) {
+                    TagTarget target = new TagTarget(findLocation(scm, entry.getSourceURL()),
+                            SVNURL.parseURIEncoded(entry.getSourceURL()), entry.getRevision(), tagURL,
+                            null, (String) null, null);
+                    session = SvnTagPlugin.acquireSession(project, scm, target);
+                    if (session == null) {
+                        logger.println(Messages.NoSVNAuthProvider());
+                        return;
+                    }
+                    sessions.put(session.getRoot(), session);
+                    paths.put(session.getRoot(), new TreeSet<String>());
+                }
+                paths.get(session.getRoot()).add(TagTransaction.relativePath(session.getRoot(), tagURL));
+            }
+
+            for (SvnSessionPool.Session session : sessions.values()) {
+                SVNRepository repository = session.getRepository();
+                List<String> existing = listExisting(repository, paths.get(session.getRoot()));
+                Set<String> missing = new HashSet<String>(paths.get(session.getRoot()));
+                missing.removeAll(new HashSet<String>(existing));
+                for (String path : missing) {
+                    forget(pending, session.getRoot().appendPath(path, false), done);
+                }
+                for (int i = 0; i < existing.size(); i += BATCH_SIZE) {
+                    awaitIdle();
+                    List<String> batch = existing.subList(i, Math.min(existing.size(), i + BATCH_SIZE));
+                    SVNCommitInfo info = delete(repository, batch,
+                            Messages.PruneTagsComment(batch.size(), project.getFullDisplayName()));
+                    if (info.getErrorMessage() != null) {
+                        logger.println(Messages.FailedToPruneTags(info.getErrorMessage().getFullMessage()));
+                        return;
+                    }
+                    TagMetrics.get().committed();
+                    logger.println(Messages.PrunedTags(batch.size(), session.getRoot(),
+                            info.getNewRevision()));
+                    for (String path : batch) {
+                        forget(pending, session.getRoot().appendPath(path, false), done);
+                    }
+                }
+            }
+            success = true;
+        } catch (SVNException e) {
+            TagMetrics.get().failed(e.getErrorMessage());
+            e.printStackTrace(logger);
+        } finally {
+            for (SvnSessionPool.Session session : sessions.values()) {
+                SvnSessionPool.get().release(session, success);
+            }
+            TagHistory.remove(project, done);
+        }
+    }
+
+    /**
+     * Selects the entries the retention policy does not keep.
+     *
+     * @param entries        recorded entries, oldest first
+     * @param keepLast       number of most recent builds whose tags are kept, 0 to keep all
+     * @param maxAge         maximum age of a tag in milliseconds, 0 for no limit
+     * @param existingBuilds numbers of the builds that still exist, or null to keep tags of deleted builds
+     * @param now            current time in milliseconds
+     * @return the expired entries
+     */
+    static List<TagHistory.Entry> selectExpired(List<TagHistory.Entry> entries, int keepLast,
+                                                long maxAge, Set<Integer> existingBuilds, long now) {
+        TreeSet<Integer> builds = new TreeSet<Integer>();
+        for (TagHistory.Entry entry : entries) {
+            builds.add(entry.getBuild());
+        }
+        int oldestKept = Integer.MIN_VALUE;
+        if (keepLast > 0 && builds.size() > keepLast) {
+            oldestKept = new ArrayList<Integer>(builds.descendingSet()).get(keepLast - 1);
+        }
+        List<TagHistory.Entry> expired = new ArrayList<TagHistory.Entry>();
+        for (TagHistory.Entry entry : entries) {
+            if (entry.getBuild() < oldestKept
+                    || (maxAge > 0 && now - entry.getTimestamp() > maxAge)
+                    || (existingBuilds != null && !existingBuilds.contains(entry.getBuild()))) {
+                expired.add(entry);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the tag URLs of expired entries that no kept entry refers to,
+     * e.g. a fixed tag name recreated by every build.
+     */
+    static Set<String> selectDeletable(List<TagHistory.Entry> entries,
+                                       Collection<TagHistory.Entry> expired) {
+        Set<String> deletable = new HashSet<String>();
+        for (TagHistory.Entry entry : expired) {
+            deletable.add(entry.getTagURL());
+        }
+        Set<TagHistory.Entry> expiredSet = new HashSet<TagHistory.Entry>(expired);
+        for (TagHistory.Entry entry : entries) {
+            if (!expiredSet.contains(entry)) {
+                deletable.remove(entry.getTagURL());
+            }
+        }
+        return deletable;
+    }
+
+    private static void forget(Map<String, List<TagHistory.Entry>> pending, SVNURL tagURL,
+                               List<TagHistory.Entry> done) {
+        List<TagHistory.Entry> entries = pending.remove(tagURL.toString());
+        if (entries != null) {
+            done.addAll(entries);
+        }
+    }
+
+    /**
+     * Returns the module location to authenticate with for a tag of the source,
+     * the first one if the source is no longer configured.
+     */
+    private static SubversionSCM.ModuleLocation findLocation(SubversionSCM scm, String sourceURL) {
+        SubversionSCM.ModuleLocation[] locations = scm.getLocations();
+        for (SubversionSCM.ModuleLocation location : locations) {
+            if (sourceURL.startsWith(location.getURL())) {
+                return location;
+            }
+        }
+        return locations.length > 0 ? locations[0] : null;
+    }
+
+    /**
+     * Returns the paths that exist, listing each parent directory once.
+     */
+    private static List<String> listExisting(SVNRepository repository, Set<String> paths)
+            throws SVNException {
+        Map<String, Set<String>> names = new HashMap<String, Set<String>>();
+        List<String> existing = new ArrayList<String>();
+        for (String path : paths) {
+            String parent = parentOf(path);
+            Set<String> children = names.get(parent);
+            if (children == null) {
+                children = new HashSet<String>();
+                if (repository.checkPath(parent, -1) == SVNNodeKind.DIR) {
+                    for (Object o : repository.getDir(parent, -1, null, SVNDirEntry.DIRENT_KIND,
+                            (Collection) null)) {
+                        children.add(((SVNDirEntry) o).getName());
+                    }
+                }
+                names.put(parent, children);
+            }
+            if (children.contains(path.substring(path.lastIndexOf('/') + 1))) {
+                existing.add(path);
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Deletes the paths in a single commit.
+     *
+     * @param repository session located at the repository root
+     * @param paths      sorted paths relative to the repository root
+     * @param message    commit message
+     * @return the commit info
+     * @throws SVNException when the commit failed
+     */
+    static SVNCommitInfo delete(SVNRepository repository, List<String> paths, String message)
+            throws SVNException {
+        ISVNEditor editor = repository.getCommitEditor(message, null);
+        try {
+            editor.openRoot(-1);
+            List<String> open = new ArrayList<String>();
+            String previous = null;
+            for (String path : paths) {
+                if (previous != null && path.startsWith(previous + '/')) {
+                    continue;   // inside a directory already deleted
+                }
+                previous = path;
+                String parent = parentOf(path);
+                while (!open.isEmpty() && !isSelfOrAncestor(open.get(open.size() - 1), parent)) {
+                    editor.closeDir();
+                    open.remove(open.size() - 1);
+                }
+                String base = open.isEmpty() ? "" : open.get(open.size() - 1);
+                if (parent.length() > base.length()) {
+                    String dir = base;
+                    for (String name : parent.substring(base.length() == 0 ? 0 : base.length() + 1)
+                            .split("/")) {
+                        dir = dir.length() == 0 ? name : dir + '/' + name;
+                        editor.openDir(dir, -1);
+                        open.add(dir);
+                    }
+                }
+                editor.deleteEntry(path, -1);
+            }
+            for (int i = 0; i < open.size(); i++) {
+                editor.closeDir();
+            }
+            editor.closeDir();
+            return editor.closeEdit();
+        } catch (SVNException e) {
+            editor.abortEdit();
+            throw e;
+        }
+    }
+
+    private static boolean isSelfOrAncestor(String dir, String path) {
+        return dir.length() == 0 || path.equals(dir) || path.startsWith(dir + '/');
+    }
+
+    private static String parentOf(String path) {
+        int i = path.lastIndexOf('/');
+        return i < 0 ? "" : path.substring(0, i);
+    }
+
+    /**
+     * Waits until no tag is being created.
+     */
+    private static void awaitIdle() throws InterruptedException {
+        Thread.sleep(PAUSE);
+        while (TagMetrics.get().getInFlight() > 0) {
+            Thread.sleep(PAUSE);
+        }
+    }
+}
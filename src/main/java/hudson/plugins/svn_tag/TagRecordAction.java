@@ -0,0 +1,94 @@
+package hudson.plugins.svn_tag;
+
+import hudson.model.Action;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Records the tags a build created, also exposed through the remote API of the build.
+ */
+@ExportedBean
+public class TagRecordAction implements Action {
+
+    private final List<Tag> tags = new ArrayList<Tag>();
+
+    /**
+     * Creates a new TagRecordAction object.
+     *
+     * @param targets module locations, those not tagged by the build are skipped
+     */
+    TagRecordAction(List<TagTarget> targets) {
+        for (TagTarget target : targets) {
+            if (target.getCommitRevision() >= 0) {
+                tags.add(new Tag(target));
+            }
+        }
+    }
+
+    @Exported(visibility = 2)
+    public List<Tag> getTags() {
+        return Collections.unmodifiableList(tags);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.TagRecordAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "svnTags";
+    }
+
+    /**
+     * One tag created by the build.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Tag {
+        private final String tagURL;
+        private final String sourceURL;
+        private final long revision;
+        private final long commitRevision;
+
+        private Tag(TagTarget target) {
+            this.tagURL = target.getTagURL().toString();
+            this.sourceURL = target.getSourceURL().toString();
+            this.revision = target.getRevision();
+            this.commitRevision = target.getCommitRevision();
+        }
+
+        @Exported
+        public String getTagURL() {
+            return tagURL;
+        }
+
+        @Exported
+        public String getSourceURL() {
+            return sourceURL;
+        }
+
+        /**
+         * @return revision of the source that was tagged
+         */
+        @Exported
+        public long getRevision() {
+            return revision;
+        }
+
+        /**
+         * @return revision of the tag commit, 0 if the tag was up to date already
+         */
+        @Exported
+        public long getCommitRevision() {
+            return commitRevision;
+        }
+    }
+}
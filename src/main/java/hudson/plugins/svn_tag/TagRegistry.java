@@ -0,0 +1,224 @@
+package hudson.plugins.svn_tag;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.listeners.ItemListener;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * In-memory index of the tags recorded in the {@link TagHistory} of all
+ * jobs, by tag URL, job, build and repository and revision of the source, so that tags can be
+ * looked up without any repository traffic. Built from the histories at
+ * startup and kept up to date as they change. Queried through
+ * {@link TagRegistryAction}.
+ */
+public final class TagRegistry {
+
+    private static final TagRegistry INSTANCE = new TagRegistry();
+
+    private final Map<String, List<Record>> byTag = new HashMap<String, List<Record>>();
+
+    private final Map<String, List<Record>> byJob = new HashMap<String, List<Record>>();
+
+    /**
+     * job + '#' + build number -> records.
+     */
+    private final Map<String, List<Record>> byBuild = new HashMap<String, List<Record>>();
+
+    /**
+     * repository root + '@' + source revision -> records, revisions being
+     * numbered per repository. Entries of an unknown repository are not indexed.
+     */
+    private final Map<String, List<Record>> byRevision = new HashMap<String, List<Record>>();
+
+    TagRegistry() {
+    }
+
+    static TagRegistry get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Indexes the histories of all jobs.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void load() {
+        for (Job<?, ?> job : Jenkins.getInstance().getAllItems(Job.class)) {
+            INSTANCE.reload(job);
+        }
+    }
+
+    synchronized void add(String job, Collection<TagHistory.Entry> entries) {
+        for (TagHistory.Entry entry : entries) {
+            Record record = new Record(job, entry);
+            put(byTag, entry.getTagURL(), record);
+            if (!entry.getLogicalTagURL().equals(entry.getTagURL())) {
+                put(byTag, entry.getLogicalTagURL(), record);
+            }
+            put(byJob, job, record);
+            put(byBuild, job + '#' + entry.getBuild(), record);
+            if (entry.getRepositoryRoot() != null) {
+                put(byRevision, revisionKey(entry.getRepositoryRoot(), entry.getRevision()), record);
+            }
+        }
+    }
+
+    synchronized void remove(String job, Collection<TagHistory.Entry> entries) {
+        Set<TagHistory.Entry> removed = new HashSet<TagHistory.Entry>(entries);
+        List<Record> records = byJob.get(job);
+        if (records == null) {
+            return;
+        }
+        List<Record> kept = new ArrayList<Record>(records.size());
+        for (Record record : records) {
+            if (removed.contains(record.entry)) {
+                unindex(record);
+            } else {
+                kept.add(record);
+            }
+        }
+        if (kept.isEmpty()) {
+            byJob.remove(job);
+        } else {
+            byJob.put(job, kept);
+        }
+    }
+
+    /**
+     * Indexes the history of the job again, e.g. after it was renamed.
+     *
+     * @param job the job
+     */
+    synchronized void reload(Job<?, ?> job) {
+        removeJob(job.getFullName());
+        add(job.getFullName(), TagHistory.load(job).getEntries());
+    }
+
+    synchronized void removeJob(String job) {
+        List<Record> records = byJob.remove(job);
+        if (records != null) {
+            for (Record record : records) {
+                unindex(record);
+            }
+        }
+    }
+
+    synchronized List<Record> findByTag(String tagURL) {
+        return copy(byTag.get(tagURL));
+    }
+
+    synchronized List<Record> findByJob(String job) {
+        return copy(byJob.get(job));
+    }
+
+    synchronized List<Record> findByBuild(String job, int build) {
+        return copy(byBuild.get(job + '#' + build));
+    }
+
+    /**
+     * Returns the tags of a source revision.
+     *
+     * @param repository root URL of the repository of the source
+     * @param revision   source revision
+     * @return the records
+     */
+    synchronized List<Record> findByRevision(String repository, long revision) {
+        return copy(byRevision.get(revisionKey(repository, revision)));
+    }
+
+    private static String revisionKey(String repository, long revision) {
+        // the same root may be given with or without a trailing slash
+        return (repository.endsWith("/") ? repository.substring(0, repository.length() - 1)
+                : repository) + '@' + revision;
+    }
+
+    /**
+     * Removes the record from all indexes but the one by job, which callers
+     * maintain themselves since it may hold many records.
+     */
+    private void unindex(Record record) {
+        TagHistory.Entry entry = record.entry;
+        take(byTag, entry.getTagURL(), record);
+        if (!entry.getLogicalTagURL().equals(entry.getTagURL())) {
+            take(byTag, entry.getLogicalTagURL(), record);
+        }
+        take(byBuild, record.job + '#' + entry.getBuild(), record);
+        if (entry.getRepositoryRoot() != null) {
+            take(byRevision, revisionKey(entry.getRepositoryRoot(), entry.getRevision()), record);
+        }
+    }
+
+    private static <K> void put(Map<K, List<Record>> index, K key, Record record) {
+        List<Record> records = index.get(key);
+        if (records == null) {
+            records = new ArrayList<Record>(1);
+            index.put(key, records);
+        }
+        records.add(record);
+    }
+
+    private static <K> void take(Map<K, List<Record>> index, K key, Record record) {
+        List<Record> records = index.get(key);
+        if (records != null && records.remove(record) && records.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static List<Record> copy(List<Record> records) {
+        return records == null
+                ? Collections.<Record>emptyList() : new ArrayList<Record>(records);
+    }
+
+    /**
+     * A tag created for a build of a job.
+     */
+    static final class Record {
+        private final String job;
+        private final TagHistory.Entry entry;
+
+        private Record(String job, TagHistory.Entry entry) {
+            this.job = job;
+            this.entry = entry;
+        }
+
+        String getJob() {
+            return job;
+        }
+
+        TagHistory.Entry getEntry() {
+            return entry;
+        }
+    }
+
+    /**
+     * Follows renamed and deleted jobs.
+     */
+    @Extension
+    public static final class Listener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            INSTANCE.removeJob(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            INSTANCE.removeJob(oldFullName);
+            if (item instanceof Job) {
+                INSTANCE.reload((Job<?, ?>) item);
+            }
+        }
+    }
+}
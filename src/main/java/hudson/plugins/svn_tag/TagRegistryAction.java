@@ -0,0 +1,95 @@
+package hudson.plugins.svn_tag;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Answers queries on the {@link TagRegistry} as JSON at <tt>/svn-tags/query</tt>,
+ * e.g. <tt>?tag=URL</tt> for the build that created a tag,
+ * <tt>?repository=ROOT&amp;revision=N</tt> for all tags of a revision of the
+ * repository with the given root URL, or <tt>?job=NAME&amp;build=N</tt> for the
+ * tags of a build. Only tags of jobs the user can read are returned.
+ */
+@Extension
+public class TagRegistryAction implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.TagRegistryAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "svn-tags";
+    }
+
+    public void doQuery(StaplerResponse rsp, @QueryParameter String tag, @QueryParameter String job,
+                        @QueryParameter String build, @QueryParameter String repository,
+                        @QueryParameter String revision)
+            throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        List<TagRegistry.Record> records;
+        try {
+            if (Util.fixEmpty(tag) != null) {
+                records = TagRegistry.get().findByTag(tag);
+            } else if (Util.fixEmpty(repository) != null && Util.fixEmpty(revision) != null) {
+                records = TagRegistry.get().findByRevision(repository, Long.parseLong(revision));
+            } else if (Util.fixEmpty(job) != null && Util.fixEmpty(build) != null) {
+                records = TagRegistry.get().findByBuild(job, Integer.parseInt(build));
+            } else if (Util.fixEmpty(job) != null) {
+                records = TagRegistry.get().findByJob(job);
+            } else {
+                rsp.sendError(StaplerResponse.SC_BAD_REQUEST, Messages.BadTagQuery());
+                return;
+            }
+        } catch (NumberFormatException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, Messages.BadTagQuery());
+            return;
+        }
+
+        JSONArray tags = new JSONArray();
+        Map<String, Boolean> readable = new HashMap<String, Boolean>();
+        for (TagRegistry.Record record : records) {
+            Boolean visible = readable.get(record.getJob());
+            if (visible == null) {
+                visible = Jenkins.getInstance().getItemByFullName(record.getJob(), Item.class) != null;
+                readable.put(record.getJob(), visible);
+            }
+            if (!visible || (Util.fixEmpty(job) != null && !job.equals(record.getJob()))) {
+                continue;
+            }
+            TagHistory.Entry entry = record.getEntry();
+            JSONObject o = new JSONObject();
+            o.put("job", record.getJob());
+            o.put("repository", entry.getRepositoryRoot());
+            o.put("build", entry.getBuild());
+            o.put("tagURL", entry.getTagURL());
+            o.put("logicalTagURL", entry.getLogicalTagURL());
+            o.put("sourceURL", entry.getSourceURL());
+            o.put("revision", entry.getRevision());
+            o.put("commitRevision", entry.getCommitRevision());
+            o.put("timestamp", entry.getTimestamp());
+            tags.add(o);
+        }
+        JSONObject result = new JSONObject();
+        result.put("tags", tags);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(result.toString());
+    }
+}
@@ -0,0 +1,168 @@
+package hudson.plugins.svn_tag;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.scm.SubversionSCM;
+import jenkins.model.Jenkins;
+
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+
+/**
+ * Durable request to tag the module locations of a build, processed by the
+ * {@link TagService}. The templates are evaluated when the request is made,
+ * so that the request can be carried out after a restart without the build
+ * environment.
+ */
+final class TagRequest {
+
+    private final String id;
+
+    /**
+     * full name of the project whose build requested the tagging.
+     */
+    private final String job;
+
+    private final int build;
+
+    private final int waitBeforeTagging;
+
+    private final boolean pollForRevision;
+
+    private final boolean atomicTagging;
+
+    private final int parallelism;
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * targets parsed from the entries, so that they keep their place in the {@link TagCoalescer}.
+     */
+    private transient List<TagTarget> targets;
+
+    /**
+     * Creates a new TagRequest object.
+     *
+     * @param build             build requesting the tagging
+     * @param targets           module locations to tag
+     * @param waitBeforeTagging wait time before tagging in seconds
+     * @param pollForRevision   true to poll until the revision is visible
+     * @param atomicTagging     true to tag all module locations of a repository in one commit
+     * @param parallelism       maximum number of module locations tagged concurrently
+     */
+    TagRequest(AbstractBuild<?, ?> build, List<TagTarget> targets, int waitBeforeTagging,
+               boolean pollForRevision, boolean atomicTagging, int parallelism) {
+        this.id = UUID.randomUUID().toString();
+        this.job = build.getProject().getFullName();
+        this.build = build.getNumber();
+        this.waitBeforeTagging = waitBeforeTagging;
+        this.pollForRevision = pollForRevision;
+        this.atomicTagging = atomicTagging;
+        this.parallelism = parallelism;
+        for (TagTarget target : targets) {
+            entries.add(new Entry(target));
+        }
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getJob() {
+        return job;
+    }
+
+    int getBuild() {
+        return build;
+    }
+
+    int getWaitBeforeTagging() {
+        return waitBeforeTagging;
+    }
+
+    boolean isPollForRevision() {
+        return pollForRevision;
+    }
+
+    boolean isAtomicTagging() {
+        return atomicTagging;
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Returns the build that requested the tagging.
+     *
+     * @return the build, or null if it no longer exists
+     */
+    AbstractBuild<?, ?> resolveBuild() {
+        AbstractProject<?, ?> project =
+                Jenkins.getInstance().getItemByFullName(job, AbstractProject.class);
+        return project == null ? null : project.getBuildByNumber(build);
+    }
+
+    /**
+     * Returns the module locations to tag.
+     *
+     * @return the targets
+     * @throws SVNException when a stored URL cannot be parsed
+     */
+    synchronized List<TagTarget> getTargets() throws SVNException {
+        if (targets == null) {
+            List<TagTarget> parsed = new ArrayList<TagTarget>(entries.size());
+            for (Entry entry : entries) {
+                TagTarget target = new TagTarget(entry.location,
+                        SVNURL.parseURIEncoded(entry.sourceURL), entry.revision,
+                        SVNURL.parseURIEncoded(entry.tagURL), entry.comment, entry.deleteComment,
+                        entry.requester);
+                if (entry.logicalTagURL != null) {
+                    target.setLogicalTagURL(SVNURL.parseURIEncoded(entry.logicalTagURL));
+                }
+                parsed.add(target);
+            }
+            targets = parsed;
+        }
+        return targets;
+    }
+
+    @Override
+    public String toString() {
+        return job + " #" + build;
+    }
+
+    /**
+     * Persisted form of a {@link TagTarget}.
+     */
+    private static final class Entry {
+        private final SubversionSCM.ModuleLocation location;
+        private final String sourceURL;
+        private final long revision;
+        private final String tagURL;
+        /**
+         * evaluated tag URL before the tag layout was applied, null if the same.
+         */
+        private final String logicalTagURL;
+        private final String comment;
+        private final String deleteComment;
+        private final String requester;
+
+        private Entry(TagTarget target) {
+            this.location = target.getLocation();
+            this.sourceURL = target.getSourceURL().toString();
+            this.revision = target.getRevision();
+            this.tagURL = target.getTagURL().toString();
+            this.logicalTagURL = target.getLogicalTagURL() != target.getTagURL()
+                    ? target.getLogicalTagURL().toString() : null;
+            this.comment = target.getComment();
+            this.deleteComment = target.getDeleteComment();  // evaluated now, without the build
+            this.requester = target.getRequester();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package hudson.plugins.svn_tag;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.TransientProjectActionFactory;
+import hudson.scm.SCM;
+import hudson.scm.SubversionSCM;
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerProxy;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+
+/**
+ * Page of a Subversion project to tag a range of its past builds again
+ * through the {@link TagRetagger}, and to follow or resume the re-tag.
+ * Requires the permission to tag, also for the page itself. Starting a
+ * re-tag evaluates the Groovy templates of the request, so it also requires
+ * the permission to configure the project, as the templates of the publisher do.
+ */
+public class TagRetagAction implements Action, StaplerProxy {
+
+    private final AbstractProject<?, ?> project;
+
+    TagRetagAction(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    public String getIconFileName() {
+        return project.hasPermission(SCM.TAG) ? "package.png" : null;
+    }
+
+    public String getDisplayName() {
+        return Messages.TagRetagAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "svn-retag";
+    }
+
+    /**
+     * Returns the current or last re-tag.
+     *
+     * @return the re-tag, or null if the project was never re-tagged
+     */
+    public TagRetagger getRetagger() {
+        return TagRetagger.of(project);
+    }
+
+    public Object getTarget() {
+        project.checkPermission(SCM.TAG);
+        return this;
+    }
+
+    /**
+     * Returns whether the current user may start a re-tag with own templates.
+     *
+     * @return true if the user may configure the project
+     */
+    public boolean isConfigurable() {
+        return project.hasPermission(Item.CONFIGURE);
+    }
+
+    public String getLog() {
+        return TagRetagger.readLog(project);
+    }
+
+    /**
+     * Returns the tag base URL of the publisher of the project, or the default one.
+     *
+     * @return the tag base URL template
+     */
+    public String getDefaultTagBaseURL() {
+        SvnTagPublisher publisher = project.getPublishersList().get(SvnTagPublisher.class);
+        return publisher != null ? publisher.getTagBaseURL() : getDescriptor().getDefaultTagBaseURL();
+    }
+
+    /**
+     * Returns the tag comment of the publisher of the project, or the global one.
+     *
+     * @return the tag comment template
+     */
+    public String getDefaultTagComment() {
+        SvnTagPublisher publisher = project.getPublishersList().get(SvnTagPublisher.class);
+        return publisher != null && Util.fixEmptyAndTrim(publisher.getTagComment()) != null
+                ? publisher.getTagComment() : getDescriptor().getTagComment();
+    }
+
+    public int getDefaultBatchSize() {
+        return TagRetagger.DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Returns the tag layout of the publisher of the project, or the flat one.
+     *
+     * @return the tag layout
+     */
+    public TagLayout getDefaultTagLayout() {
+        SvnTagPublisher publisher = project.getPublishersList().get(SvnTagPublisher.class);
+        return publisher != null ? publisher.getTagLayout() : TagLayout.FLAT;
+    }
+
+    public TagLayout[] getTagLayouts() {
+        return TagLayout.values();
+    }
+
+    /**
+     * Starts a re-tag of the builds in the range.
+     */
+    @RequirePOST
+    public HttpResponse doRetag(@QueryParameter String fromBuild, @QueryParameter String toBuild,
+                                @QueryParameter String tagBaseURL, @QueryParameter String tagComment,
+                                @QueryParameter String batchSize, @QueryParameter String tagLayout)
+            throws IOException {
+        project.checkPermission(Item.CONFIGURE);
+        if (Util.fixEmptyAndTrim(tagBaseURL) == null) {
+            return HttpResponses.error(400, Messages.MissingURL());
+        }
+        if (Util.fixEmptyAndTrim(fromBuild) == null || Util.fixEmptyAndTrim(toBuild) == null) {
+            return HttpResponses.error(400, Messages.BadBuildRange());
+        }
+        TagLayout layout = TagLayout.FLAT;
+        if (Util.fixEmptyAndTrim(tagLayout) != null) {
+            try {
+                layout = TagLayout.valueOf(tagLayout.trim());
+            } catch (IllegalArgumentException e) {
+                return HttpResponses.error(400, e.getLocalizedMessage());
+            }
+        }
+        TagRetagger retagger;
+        try {
+            retagger = new TagRetagger(project.getFullName(), Integer.parseInt(fromBuild.trim()),
+                    Integer.parseInt(toBuild.trim()), tagBaseURL.trim(), Util.fixEmptyAndTrim(tagComment),
+                    Util.fixEmptyAndTrim(batchSize) == null
+                            ? TagRetagger.DEFAULT_BATCH_SIZE : Integer.parseInt(batchSize.trim()),
+                    layout);
+        } catch (NumberFormatException e) {
+            return HttpResponses.error(400, Messages.BadBuildRange());
+        }
+        if (!retagger.start(project)) {
+            return HttpResponses.error(409, Messages.RetagActive());
+        }
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Goes on with the last re-tag, writing the tags not written yet.
+     */
+    @RequirePOST
+    public HttpResponse doResume() throws IOException {
+        TagRetagger retagger = TagRetagger.of(project);
+        if (retagger != null && !retagger.isActive() && !retagger.start(project)) {
+            return HttpResponses.error(409, Messages.RetagActive());
+        }
+        return HttpResponses.redirectToDot();
+    }
+
+    private static SvnTagPublisher.SvnTagDescriptorImpl getDescriptor() {
+        return Jenkins.getInstance().getDescriptorByType(SvnTagPublisher.SvnTagDescriptorImpl.class);
+    }
+
+    /**
+     * Adds the page to every project checking out from Subversion.
+     */
+    @Extension
+    public static final class Factory extends TransientProjectActionFactory {
+        @Override
+        public Collection<? extends Action> createFor(AbstractProject target) {
+            if (!(target.getScm() instanceof SubversionSCM)) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(new TagRetagAction(target));
+        }
+    }
+}
@@ -0,0 +1,690 @@
+package hudson.plugins.svn_tag;
+
+import hudson.EnvVars;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Result;
+import hudson.model.StreamBuildListener;
+import hudson.scm.SubversionSCM;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.FileUtils;
+import org.tmatesoft.svn.core.SVNCommitInfo;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Tags a range of past builds of a project again, e.g. after the tag layout
+ * changed or the repository was restored.
+ * <p>
+ * The targets of all builds are evaluated up front from their revision
+ * files. The tags of each repository are then written over one session, in
+ * commits of up to {@link #getBatchSize()} tags built like the commits of
+ * atomic tagging, and repositories are tagged concurrently. The state is
+ * saved to <tt>svn-tag-retag.xml</tt> of the project after every commit, so
+ * that a re-tag interrupted by a restart goes on with the tags not written
+ * yet. Progress is logged to <tt>svn-tag-retag.log</tt> and shown by the
+ * {@link TagRetagAction} of the project.
+ */
+public final class TagRetagger {
+
+    private static final Logger LOGGER = Logger.getLogger(TagRetagger.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Number of tags written in one commit unless requested otherwise.
+     */
+    static final int DEFAULT_BATCH_SIZE =
+            Integer.getInteger(TagRetagger.class.getName() + ".batchSize", 200);
+
+    /**
+     * Number of projects re-tagged concurrently.
+     */
+    static final int WORKERS = Integer.getInteger(TagRetagger.class.getName() + ".workers", 1);
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(1, WORKERS),
+            new NamingThreadFactory(new DaemonThreadFactory(), TagRetagger.class.getName()));
+
+    /**
+     * full project name -> re-tag queued or running.
+     */
+    private static final Map<String, TagRetagger> ACTIVE = new HashMap<String, TagRetagger>();
+
+    /**
+     * State of a re-tag.
+     */
+    public enum Status {
+        PREPARING, RUNNING, SUCCESS, FAILURE;
+
+        /**
+         * Returns the status as a sentence.
+         *
+         * @return the description of the status
+         */
+        public String getDescription() {
+            switch (this) {
+                case PREPARING:
+                    return Messages.TagRetagger_Status_PREPARING();
+                case RUNNING:
+                    return Messages.TagRetagger_Status_RUNNING();
+                case SUCCESS:
+                    return Messages.TagRetagger_Status_SUCCESS();
+                default:
+                    return Messages.TagRetagger_Status_FAILURE();
+            }
+        }
+    }
+
+    /**
+     * full name of the project whose builds are tagged.
+     */
+    private final String job;
+
+    private final int fromBuild;
+
+    private final int toBuild;
+
+    private final String tagBaseURL;
+
+    private final String tagComment;
+
+    private final int batchSize;
+
+    /**
+     * bucket directories the tags are placed into, null for the evaluated tag URL.
+     */
+    private final TagLayout tagLayout;
+
+    /**
+     * targets of all builds, null until they are evaluated.
+     */
+    private List<Entry> entries;
+
+    private volatile Status status = Status.PREPARING;
+
+    /**
+     * Creates a new TagRetagger object.
+     *
+     * @param job        full name of the project
+     * @param fromBuild  number of the first build to tag
+     * @param toBuild    number of the last build to tag
+     * @param tagBaseURL tag base URL template
+     * @param tagComment tag comment template, evaluated for the first tag of each commit
+     * @param batchSize  maximum number of tags per commit
+     * @param tagLayout  bucket directories the tags are placed into
+     */
+    TagRetagger(String job, int fromBuild, int toBuild, String tagBaseURL, String tagComment,
+                int batchSize, TagLayout tagLayout) {
+        this.job = job;
+        this.fromBuild = Math.min(fromBuild, toBuild);
+        this.toBuild = Math.max(fromBuild, toBuild);
+        this.tagBaseURL = tagBaseURL;
+        this.tagComment = tagComment;
+        this.batchSize = Math.max(1, batchSize);
+        this.tagLayout = tagLayout == TagLayout.FLAT ? null : tagLayout;
+    }
+
+    /**
+     * Returns the current or last re-tag of the project.
+     *
+     * @param project the project
+     * @return the re-tag, or null if the project was never re-tagged
+     */
+    static TagRetagger of(AbstractProject<?, ?> project) {
+        synchronized (ACTIVE) {
+            TagRetagger active = ACTIVE.get(project.getFullName());
+            if (active != null) {
+                return active;
+            }
+        }
+        XmlFile file = getFile(project);
+        if (file.exists()) {
+            try {
+                return (TagRetagger) file.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues the re-tag, unless one is already active for the project.
+     *
+     * @param project the project
+     * @return false if another re-tag of the project is active
+     * @throws IOException when the state cannot be saved
+     */
+    boolean start(final AbstractProject<?, ?> project) throws IOException {
+        synchronized (ACTIVE) {
+            if (ACTIVE.containsKey(job)) {
+                return false;
+            }
+            ACTIVE.put(job, this);
+        }
+        try {
+            if (entries == null) {
+                getLogFile(project).delete();
+            }
+            status = entries == null ? Status.PREPARING : Status.RUNNING;
+            save(project);
+        } catch (IOException e) {
+            synchronized (ACTIVE) {
+                ACTIVE.remove(job);
+            }
+            throw e;
+        }
+        EXECUTOR.submit(new Runnable() {
+            public void run() {
+                try {
+                    process(project);
+                } finally {
+                    synchronized (ACTIVE) {
+                        ACTIVE.remove(job);
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    private void process(AbstractProject<?, ?> project) {
+        boolean success = false;
+        PrintStream logger = null;
+        try {
+            logger = new PrintStream(new FileOutputStream(getLogFile(project), true), true, UTF8.name());
+            BuildListener listener = new StreamBuildListener(logger, UTF8);
+            if (!(project.getScm() instanceof SubversionSCM)) {
+                logger.println(Messages.NotSubversion(project.getScm().toString()));
+            } else {
+                SubversionSCM scm = (SubversionSCM) project.getScm();
+                if (entries == null) {
+                    List<Entry> prepared = prepare(project, scm, listener);
+                    synchronized (this) {
+                        entries = prepared;
+                    }
+                    status = Status.RUNNING;
+                    save(project);
+                }
+                success = write(project, scm, listener);
+                logger.println(Messages.RetagDone(getDone(), getTotal()));
+            }
+        } catch (InterruptedException e) {
+            // stays active in the saved state, so that it goes on after the restart
+            LOGGER.log(Level.INFO, "Interrupted while re-tagging " + job, e);
+            return;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to re-tag " + job, e);
+            if (logger != null) {
+                e.printStackTrace(logger);
+            }
+        } finally {
+            if (logger != null) {
+                logger.close();
+            }
+        }
+        status = success ? Status.SUCCESS : Status.FAILURE;
+        try {
+            save(project);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the re-tag state of " + job, e);
+        }
+    }
+
+    /**
+     * Evaluates the targets of all successful builds in the range.
+     */
+    private List<Entry> prepare(AbstractProject<?, ?> project, SubversionSCM scm,
+                                BuildListener listener) throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        logger.println(Messages.RetagPreparing(fromBuild, toBuild));
+        String comment = tagComment != null ? tagComment : Jenkins.getInstance()
+                .getDescriptorByType(SvnTagPublisher.SvnTagDescriptorImpl.class).getTagComment();
+        List<Entry> evaluated = new ArrayList<Entry>();
+        for (int number = fromBuild; number <= toBuild; number++) {
+            AbstractBuild<?, ?> build = project.getBuildByNumber(number);
+            if (build == null) {
+                continue;
+            }
+            if (Result.SUCCESS != build.getResult()) {
+                logger.println(Messages.RetagSkippedBuild(build.getFullDisplayName()));
+                continue;
+            }
+            RevisionIndex revisions;
+            try {
+                revisions = RevisionIndex.of(build);
+            } catch (IOException e) {
+                logger.println(Messages.FailedParsingRevisionFile(e.getLocalizedMessage()));
+                continue;
+            }
+            EnvVars envVars = build.getEnvironment(listener);
+            scm.buildEnvVars(build, envVars);
+            for (SubversionSCM.ModuleLocation ml : scm.getLocations(envVars, build)) {
+                SVNURL sourceURL;
+                try {
+                    sourceURL = ml.getSVNURL();
+                } catch (SVNException e) {
+                    logger.println(Messages.FailedParsingRepositoryURL(ml.remote, e.getLocalizedMessage()));
+                    continue;
+                }
+                long revision = revisions.get(sourceURL.toString());
+                if (revision == RevisionIndex.NONE) {
+                    logger.println(Messages.RevisionNotAvailable(sourceURL));
+                    continue;
+                }
+                TagTarget target = SvnTagPlugin.createTarget(ml, sourceURL, revision, envVars,
+                        tagBaseURL, comment, null, getTagLayout(), build.getTimeInMillis(),
+                        build.getFullDisplayName(), logger);
+                if (target != null) {
+                    evaluated.add(new Entry(number, target));
+                }
+            }
+        }
+        List<Entry> latest = selectLatest(evaluated);
+        logger.println(Messages.RetagPrepared(latest.size(), evaluated.size() - latest.size()));
+        return latest;
+    }
+
+    /**
+     * Keeps one entry per tag URL, the one of the most recent build, since
+     * the tags of older builds would be replaced anyway.
+     *
+     * @param entries entries in the order of their builds
+     * @return the entries to tag, in the order of their builds
+     */
+    static List<Entry> selectLatest(List<Entry> entries) {
+        Map<String, Entry> latest = new LinkedHashMap<String, Entry>();
+        for (Entry entry : entries) {
+            Entry other = latest.get(entry.tagURL);
+            if (other == null || other.build <= entry.build) {
+                latest.remove(entry.tagURL);
+                latest.put(entry.tagURL, entry);
+            }
+        }
+        return new ArrayList<Entry>(latest.values());
+    }
+
+    /**
+     * Writes the tags not written yet, sharing one session per repository.
+     */
+    private boolean write(final AbstractProject<?, ?> project, SubversionSCM scm,
+                          BuildListener listener) throws InterruptedException {
+        Map<SVNURL, SvnSessionPool.Session> sessions = new LinkedHashMap<SVNURL, SvnSessionPool.Session>();
+        Map<SVNURL, List<Entry>> pending = new HashMap<SVNURL, List<Entry>>();
+        boolean success = false;
+        try {
+            for (Entry entry : entries) {
+                if (entry.done) {
+                    continue;
+                }
+                TagTarget target = entry.toTarget();
+                SvnSessionPool.Session session = null;
+                for (SvnSessionPool.Session s : sessions.values()) {
+                    if (TagTransaction.relativePath(s.getRoot(), target.getSourceURL()) != null) {
+                        session = s;
+                        break;
+                    }
+                }
+                if (session == null) {
+                    session = SvnTagPlugin.acquireSession(project, scm, target);
+                    if (session == null) {
+                        listener.getLogger().println(Messages.NoSVNAuthProvider());
+                        return false;
+                    }
+                    sessions.put(session.getRoot(), session);
+                    pending.put(session.getRoot(), new ArrayList<Entry>());
+                }
+                pending.get(session.getRoot()).add(entry);
+            }
+
+            ParallelTagger tagger = new ParallelTagger();
+            for (final SvnSessionPool.Session session : sessions.values()) {
+                final List<Entry> list = pending.get(session.getRoot());
+                tagger.add(session.getRoot().toString(), new ParallelTagger.Task() {
+                    public boolean run(BuildListener l) throws InterruptedException {
+                        return writeBatches(project, session, list, l);
+                    }
+                });
+            }
+            success = tagger.run(listener, Jenkins.getInstance()
+                    .getDescriptorByType(SvnTagPublisher.SvnTagDescriptorImpl.class).getParallelism());
+            return success;
+        } catch (SVNException e) {
+            e.printStackTrace(listener.error(Messages.Copy_Failed()));
+            return false;
+        } finally {
+            for (SvnSessionPool.Session session : sessions.values()) {
+                SvnSessionPool.get().release(session, success);
+            }
+        }
+    }
+
+    /**
+     * Writes the tags of one repository in commits of up to {@link #batchSize}
+     * tags. Tags nested in a tag of the same commit go to a later commit. The
+     * tag URLs of a commit are held in the {@link TagCoalescer}, claimed in
+     * their global order so that concurrent builds cannot deadlock, and tags
+     * a newer build is about to create are left to that build.
+     */
+    private boolean writeBatches(AbstractProject<?, ?> project, SvnSessionPool.Session session,
+                                 List<Entry> entries, BuildListener listener)
+            throws InterruptedException {
+        PrintStream logger = listener.getLogger();
+        List<Entry> remaining = new ArrayList<Entry>(entries);
+        Collections.sort(remaining, new Comparator<Entry>() {
+            public int compare(Entry o1, Entry o2) {
+                return o1.tagURL.compareTo(o2.tagURL);
+            }
+        });
+        TagCoalescer coalescer = TagCoalescer.get();
+        try {
+            while (!remaining.isEmpty()) {
+                TagTransaction transaction = new TagTransaction(session.getRepository());
+                List<TagTarget> batch = new ArrayList<TagTarget>();
+                Map<TagTarget, Entry> batchEntries = new HashMap<TagTarget, Entry>();
+                List<Entry> deferred = new ArrayList<Entry>();
+                try {
+                    for (Entry entry : remaining) {
+                        if (batch.size() >= batchSize) {
+                            deferred.add(entry);
+                            continue;
+                        }
+                        TagTarget target = entry.toTarget();
+                        TagCoalescer.Ticket ticket = coalescer.enqueue(target);
+                        if (!coalescer.begin(ticket)) {
+                            TagTarget newer = ticket.getSupersededBy().getTarget();
+                            logger.println(Messages.TagSuperseded(target.getTagURL(),
+                                    newer.getRequester(), newer.getRevision()));
+                            entry.done = true;
+                            continue;
+                        }
+                        if (transaction.add(target.getTagURL(), target.getSourceURL(),
+                                target.getRevision())) {
+                            batch.add(target);
+                            batchEntries.put(target, entry);
+                            continue;
+                        }
+                        coalescer.end(ticket);
+                        if (TagTransaction.relativePath(transaction.getRoot(), target.getTagURL()) == null) {
+                            logger.println(Messages.FailedToTag(Messages.NotInRepository(
+                                    target.getTagURL(), transaction.getRoot())));
+                            return false;
+                        }
+                        deferred.add(entry);
+                    }
+                    if (!batch.isEmpty() && !commit(project, transaction, batch, batchEntries, logger)) {
+                        return false;
+                    }
+                } finally {
+                    for (TagTarget target : batch) {
+                        coalescer.end(target.ticket);
+                    }
+                }
+                remaining = deferred;
+            }
+            return true;
+        } catch (SVNException e) {
+            e.printStackTrace(listener.error(Messages.Copy_Failed()));
+            return false;
+        }
+    }
+
+    /**
+     * Commits one batch, retrying transient failures within the limits of the
+     * {@link SvnThrottle}.
+     */
+    private boolean commit(AbstractProject<?, ?> project, TagTransaction transaction,
+                           List<TagTarget> batch, Map<TagTarget, Entry> batchEntries,
+                           PrintStream logger) throws InterruptedException, SVNException {
+        logger.println(Messages.AtomicTagging(transaction.size(), transaction.getRoot()));
+        SvnThrottle throttle = SvnThrottle.get();
+        for (int attempt = 0; ; attempt++) {
+            SVNErrorMessage errorMsg = null;
+            SvnThrottle.Permit permit = throttle.acquire(transaction.getRoot(), transaction.getRoot(),
+                    logger);
+            TagMetrics.get().begin();
+            try {
+                throttle.awaitCommit(transaction.getRoot());
+                // probes the tags again, so a retry finds what a lost commit did
+                SVNCommitInfo commitInfo = transaction.commit(batch.get(0).getComment());
+                if (commitInfo != null && commitInfo.getErrorMessage() != null) {
+                    errorMsg = commitInfo.getErrorMessage();
+                    TagMetrics.get().failed(errorMsg);
+                    logger.println(Messages.FailedToTag(errorMsg.getFullMessage()));
+                    return false;
+                }
+                long revision = 0;
+                if (commitInfo != null) {
+                    TagMetrics.get().committed();
+                    revision = commitInfo.getNewRevision();
+                    logger.println(Messages.Tagged(revision));
+                }
+                completed(project, transaction, batch, batchEntries, revision);
+                return true;
+            } catch (SVNException e) {
+                errorMsg = e.getErrorMessage();
+                TagMetrics.get().failed(errorMsg);
+                if (attempt >= throttle.getMaxRetries() || !SvnThrottle.isTransient(errorMsg)) {
+                    throw e;
+                }
+            } finally {
+                TagMetrics.get().end();
+                throttle.release(permit, errorMsg);
+            }
+            throttle.backoff(attempt, logger, transaction.getRoot(), errorMsg);
+        }
+    }
+
+    /**
+     * Marks the entries of a committed batch as done, records the tags in the
+     * history of their builds and saves the state.
+     */
+    private void completed(AbstractProject<?, ?> project, TagTransaction transaction,
+                           List<TagTarget> batch, Map<TagTarget, Entry> batchEntries, long revision) {
+        Map<Integer, List<TagTarget>> byBuild = new LinkedHashMap<Integer, List<TagTarget>>();
+        for (TagTarget target : batch) {
+            target.setCommitRevision(transaction.getRoot(),
+                    transaction.getUpToDate().contains(target.getTagURL())
+                    ? 0 : revision);
+            Entry entry = batchEntries.get(target);
+            entry.done = true;
+            List<TagTarget> targets = byBuild.get(entry.build);
+            if (targets == null) {
+                targets = new ArrayList<TagTarget>();
+                byBuild.put(entry.build, targets);
+            }
+            targets.add(target);
+        }
+        TagHistory.record(project, byBuild);
+        try {
+            save(project);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the re-tag state of " + job, e);
+        }
+    }
+
+    /**
+     * Goes on with the re-tags active at the previous shutdown.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void resume() {
+        for (AbstractProject<?, ?> project : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
+            if (!getFile(project).exists()) {
+                continue;
+            }
+            TagRetagger retagger = of(project);
+            if (retagger != null && retagger.isActive()) {
+                try {
+                    retagger.start(project);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to resume the re-tag of " + project.getFullName(), e);
+                }
+            }
+        }
+    }
+
+    private synchronized void save(AbstractProject<?, ?> project) throws IOException {
+        getFile(project).write(this);
+    }
+
+    private static XmlFile getFile(AbstractProject<?, ?> project) {
+        return new XmlFile(Jenkins.XSTREAM, new File(project.getRootDir(), "svn-tag-retag.xml"));
+    }
+
+    static File getLogFile(AbstractProject<?, ?> project) {
+        return new File(project.getRootDir(), "svn-tag-retag.log");
+    }
+
+    /**
+     * Returns the log of the re-tag.
+     *
+     * @param project the project
+     * @return the log, empty if there is none
+     */
+    static String readLog(AbstractProject<?, ?> project) {
+        File file = getLogFile(project);
+        try {
+            return file.exists() ? FileUtils.readFileToString(file, UTF8.name()) : "";
+        } catch (IOException e) {
+            return e.getLocalizedMessage();
+        }
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * True while the re-tag is queued or running.
+     *
+     * @return true if not finished
+     */
+    public boolean isActive() {
+        return status == Status.PREPARING || status == Status.RUNNING;
+    }
+
+    public int getFromBuild() {
+        return fromBuild;
+    }
+
+    public int getToBuild() {
+        return toBuild;
+    }
+
+    public String getTagBaseURL() {
+        return tagBaseURL;
+    }
+
+    public String getTagComment() {
+        return tagComment;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public TagLayout getTagLayout() {
+        return tagLayout != null ? tagLayout : TagLayout.FLAT;
+    }
+
+    /**
+     * Returns the number of tags to write, 0 until they are evaluated.
+     *
+     * @return the number of tags
+     */
+    public synchronized int getTotal() {
+        return entries == null ? 0 : entries.size();
+    }
+
+    /**
+     * Returns the number of tags written so far.
+     *
+     * @return the number of tags
+     */
+    public synchronized int getDone() {
+        int done = 0;
+        if (entries != null) {
+            for (Entry entry : entries) {
+                if (entry.done) {
+                    done++;
+                }
+            }
+        }
+        return done;
+    }
+
+    /**
+     * One tag of one build, with its templates evaluated.
+     */
+    static final class Entry {
+        private final int build;
+        private final SubversionSCM.ModuleLocation location;
+        private final String sourceURL;
+        private final long revision;
+        private final String tagURL;
+        private final String logicalTagURL;
+        private final String comment;
+        private final String requester;
+        private volatile boolean done;
+
+        Entry(int build, TagTarget target) {
+            this.build = build;
+            this.location = target.getLocation();
+            this.sourceURL = target.getSourceURL().toString();
+            this.revision = target.getRevision();
+            this.tagURL = target.getTagURL().toString();
+            this.logicalTagURL = target.getLogicalTagURL() != target.getTagURL()
+                    ? target.getLogicalTagURL().toString() : null;
+            this.comment = target.getComment();
+            this.requester = target.getRequester();
+        }
+
+        int getBuild() {
+            return build;
+        }
+
+        String getTagURL() {
+            return tagURL;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        TagTarget toTarget() throws SVNException {
+            TagTarget target = new TagTarget(location, SVNURL.parseURIEncoded(sourceURL), revision,
+                    SVNURL.parseURIEncoded(tagURL), comment, (String) null, requester);
+            if (logicalTagURL != null) {
+                target.setLogicalTagURL(SVNURL.parseURIEncoded(logicalTagURL));
+            }
+            return target;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package hudson.plugins.svn_tag;
+
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.StreamBuildListener;
+import hudson.scm.SubversionSCM;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import org.tmatesoft.svn.core.SVNException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Tags builds in the background on the controller, so that the executor of
+ * the build is released as soon as the tagging is queued.
+ * <p>
+ * Every request is written to <tt>$JENKINS_HOME/svn-tag/queue</tt> before it
+ * is queued and deleted once it is done, so that requests pending at
+ * shutdown are carried out after the restart. The outcome is recorded in the
+ * {@link SvnTagAction} of the build.
+ */
+public final class TagService {
+
+    private static final Logger LOGGER = Logger.getLogger(TagService.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Number of builds tagged concurrently.
+     */
+    static final int WORKERS = Integer.getInteger(TagService.class.getName() + ".workers", 2);
+
+    private static final TagService INSTANCE = new TagService();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, WORKERS),
+            new NamingThreadFactory(new DaemonThreadFactory(), TagService.class.getName()));
+
+    private TagService() {
+    }
+
+    static TagService get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Persists the request and queues it.
+     *
+     * @param request the request
+     * @throws IOException when the request cannot be persisted
+     */
+    void submit(TagRequest request) throws IOException {
+        getFile(request.getId()).write(request);
+        schedule(request);
+    }
+
+    private void schedule(final TagRequest request) {
+        try {
+            // pending requests may be superseded by newer ones for the same tag while queued
+            for (TagTarget target : request.getTargets()) {
+                TagCoalescer.get().enqueue(target);
+            }
+        } catch (SVNException e) {
+            // reported when the request is processed
+        }
+        executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    process(request);
+                    getFile(request.getId()).delete();
+                } catch (InterruptedException e) {
+                    // keep the request to resume it after the restart
+                    LOGGER.log(Level.INFO, "Interrupted while tagging " + request, e);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to tag " + request, e);
+                    getFile(request.getId()).delete();
+                }
+            }
+        });
+    }
+
+    void process(TagRequest request) throws InterruptedException, IOException {
+        AbstractBuild<?, ?> build = request.resolveBuild();
+        try {
+            tag(request, build);
+        } finally {
+            // the tickets enqueued by schedule() must not stay pending, whatever was tagged
+            try {
+                for (TagTarget target : request.getTargets()) {
+                    if (target.ticket != null) {
+                        TagCoalescer.get().withdraw(target.ticket);
+                    }
+                }
+            } catch (SVNException e) {
+                // nothing was enqueued
+            }
+            // the build was finalized before it was tagged in the background, so its claims are left
+            if (build != null && build.getRootBuild() == build) {
+                TagDeduplicator.get().forget(TagDeduplicator.key(build));
+            }
+        }
+    }
+
+    private void tag(TagRequest request, AbstractBuild<?, ?> build)
+            throws InterruptedException, IOException {
+        if (build == null) {
+            LOGGER.warning(Messages.BuildNotFound(request.getJob(), request.getBuild()));
+            return;
+        }
+        SvnTagAction action = build.getAction(SvnTagAction.class);
+        if (action == null) {
+            action = new SvnTagAction();
+            build.addAction(action);
+        }
+        action.started();
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        StreamBuildListener listener = new StreamBuildListener(log, UTF8);
+        boolean success = false;
+        try {
+            AbstractProject<?, ?> rootProject = build.getProject().getRootProject();
+            if (!(rootProject.getScm() instanceof SubversionSCM)) {
+                listener.getLogger().println(Messages.NotSubversion(rootProject.getScm().toString()));
+            } else {
+                success = SvnTagPlugin.tag(build.getRootBuild(), (SubversionSCM) rootProject.getScm(),
+                        listener, request.getTargets(), request.getWaitBeforeTagging(),
+                        request.isPollForRevision(), request.isAtomicTagging(),
+                        request.getParallelism());
+                TagHistory.record(rootProject, build.getRootBuild().getNumber(),
+                        request.getTargets());
+            }
+        } catch (SVNException e) {
+            e.printStackTrace(listener.error(Messages.Copy_Failed()));
+        } finally {
+            listener.getLogger().flush();
+            action.finished(success, new String(log.toByteArray(), UTF8));
+            try {
+                build.addAction(new TagTimingAction(-1, request.getTargets()));
+                build.addAction(new TagRecordAction(request.getTargets()));
+            } catch (SVNException e) {
+                // nothing was tagged
+            }
+            build.save();
+        }
+    }
+
+    /**
+     * Queues the requests left over from the previous run.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void resume() {
+        File[] files = getDirectory().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(".xml")) {
+                continue;
+            }
+            try {
+                get().schedule((TagRequest) new XmlFile(Jenkins.XSTREAM, file).read());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load the tag request " + file, e);
+            }
+        }
+    }
+
+    private static File getDirectory() {
+        return new File(Jenkins.getInstance().getRootDir(), "svn-tag/queue");
+    }
+
+    private static XmlFile getFile(String id) {
+        return new XmlFile(Jenkins.XSTREAM, new File(getDirectory(), id + ".xml"));
+    }
+}
@@ -0,0 +1,227 @@
+package hudson.plugins.svn_tag;
+
+import hudson.scm.SubversionSCM;
+
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNURL;
+
+
+/**
+ * One module location to be tagged, with its templates already evaluated.
+ */
+final class TagTarget {
+
+    private final SubversionSCM.ModuleLocation location;
+
+    private final SVNURL sourceURL;
+
+    private final long revision;
+
+    private final SVNURL tagURL;
+
+    /**
+     * tag URL as evaluated, before the {@link TagLayout} placed it into a bucket.
+     */
+    private SVNURL logicalTagURL;
+
+    private final String comment;
+
+    private String deleteComment;
+
+    /**
+     * evaluates the delete comment on first use, as most tags do not exist yet.
+     */
+    private Comment deleteCommentTemplate;
+
+    private final String requester;
+
+    /**
+     * nanoseconds spent per {@link TagPhase}.
+     */
+    private final long[] times = new long[TagPhase.values().length];
+
+    /**
+     * revision the tag was committed at, 0 if it was up to date already,
+     * -1 if it was not tagged by this target, e.g. when superseded.
+     */
+    private volatile long commitRevision = -1;
+
+    /**
+     * root of the repository the tag was committed to, null if not tagged.
+     */
+    private volatile SVNURL repositoryRoot;
+
+    /**
+     * error the last attempt to tag failed with, to decide whether to retry.
+     */
+    private volatile SVNErrorMessage error;
+
+    /**
+     * state of the tag found while the build was running, null if not known.
+     */
+    private volatile TagPreparation.Probe prepared;
+
+    /**
+     * place in the queue of the tag URL, set by {@link TagCoalescer}.
+     */
+    TagCoalescer.Ticket ticket;
+
+    /**
+     * Creates a new TagTarget object.
+     *
+     * @param location      module location the source belongs to
+     * @param sourceURL     URL of the module location
+     * @param revision      revision of the module location built
+     * @param tagURL        evaluated tag URL
+     * @param comment       evaluated tag comment
+     * @param deleteComment evaluated tag delete comment
+     * @param requester     display name of the build requesting the tag
+     */
+    TagTarget(SubversionSCM.ModuleLocation location, SVNURL sourceURL, long revision,
+              SVNURL tagURL, String comment, String deleteComment, String requester) {
+        this.location = location;
+        this.sourceURL = sourceURL;
+        this.revision = revision;
+        this.tagURL = tagURL;
+        this.comment = comment;
+        this.deleteComment = deleteComment;
+        this.requester = requester;
+    }
+
+    /**
+     * Creates a new TagTarget object whose delete comment is evaluated when needed.
+     *
+     * @param location      module location the source belongs to
+     * @param sourceURL     URL of the module location
+     * @param revision      revision of the module location built
+     * @param tagURL        evaluated tag URL
+     * @param comment       evaluated tag comment
+     * @param deleteComment evaluates the tag delete comment
+     * @param requester     display name of the build requesting the tag
+     */
+    TagTarget(SubversionSCM.ModuleLocation location, SVNURL sourceURL, long revision,
+              SVNURL tagURL, String comment, Comment deleteComment, String requester) {
+        this(location, sourceURL, revision, tagURL, comment, (String) null, requester);
+        this.deleteCommentTemplate = deleteComment;
+    }
+
+    SubversionSCM.ModuleLocation getLocation() {
+        return location;
+    }
+
+    SVNURL getSourceURL() {
+        return sourceURL;
+    }
+
+    long getRevision() {
+        return revision;
+    }
+
+    SVNURL getTagURL() {
+        return tagURL;
+    }
+
+    /**
+     * Returns the tag URL as evaluated from the template.
+     *
+     * @return the tag URL before it was placed into a bucket, the tag URL if it was not
+     */
+    SVNURL getLogicalTagURL() {
+        return logicalTagURL != null ? logicalTagURL : tagURL;
+    }
+
+    void setLogicalTagURL(SVNURL logicalTagURL) {
+        this.logicalTagURL = tagURL.equals(logicalTagURL) ? null : logicalTagURL;
+    }
+
+    TagPreparation.Probe getPrepared() {
+        return prepared;
+    }
+
+    void setPrepared(TagPreparation.Probe prepared) {
+        this.prepared = prepared;
+    }
+
+    String getComment() {
+        return comment;
+    }
+
+    synchronized String getDeleteComment() {
+        if (deleteCommentTemplate != null) {
+            long start = System.nanoTime();
+            deleteComment = deleteCommentTemplate.evaluate();
+            addTime(TagPhase.TEMPLATE, System.nanoTime() - start);
+            deleteCommentTemplate = null;
+        }
+        return deleteComment;
+    }
+
+    String getRequester() {
+        return requester;
+    }
+
+    long getCommitRevision() {
+        return commitRevision;
+    }
+
+    /**
+     * Marks the target as tagged.
+     *
+     * @param repositoryRoot root of the repository of the tag
+     * @param commitRevision revision of the tag commit, 0 if the tag was up to date
+     */
+    void setCommitRevision(SVNURL repositoryRoot, long commitRevision) {
+        this.repositoryRoot = repositoryRoot;
+        this.commitRevision = commitRevision;
+    }
+
+    SVNURL getRepositoryRoot() {
+        return repositoryRoot;
+    }
+
+    SVNErrorMessage getError() {
+        return error;
+    }
+
+    void setError(SVNErrorMessage error) {
+        this.error = error;
+    }
+
+    /**
+     * Accounts time spent on this target, also in the {@link TagMetrics}.
+     *
+     * @param phase the phase
+     * @param nanos elapsed nanoseconds
+     */
+    synchronized void addTime(TagPhase phase, long nanos) {
+        times[phase.ordinal()] += nanos;
+        TagMetrics.get().record(phase, nanos);
+    }
+
+    /**
+     * Accounts time spent on several targets at once, which is recorded in the
+     * {@link TagMetrics} through {@link #addTime(TagPhase, long)} of one of them.
+     *
+     * @param phase the phase
+     * @param nanos elapsed nanoseconds
+     */
+    synchronized void shareTime(TagPhase phase, long nanos) {
+        times[phase.ordinal()] += nanos;
+    }
+
+    synchronized long getTime(TagPhase phase) {
+        return times[phase.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        return sourceURL + "@" + revision + " -> " + tagURL;
+    }
+
+    /**
+     * Comment template evaluated on demand.
+     */
+    interface Comment {
+        String evaluate();
+    }
+}
@@ -0,0 +1,102 @@
+package hudson.plugins.svn_tag;
+
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Shows how long each phase of the tagging of a build took per module location.
+ */
+public class TagTimingAction implements Action {
+
+    private final long revisionFileMillis;
+
+    private final List<Row> rows = new ArrayList<Row>();
+
+    /**
+     * Creates a new TagTimingAction object.
+     *
+     * @param revisionFileNanos time spent reading the revision file, negative if unknown
+     * @param targets           tagged module locations
+     */
+    TagTimingAction(long revisionFileNanos, List<TagTarget> targets) {
+        this.revisionFileMillis = revisionFileNanos < 0
+                ? -1 : TimeUnit.NANOSECONDS.toMillis(revisionFileNanos);
+        for (TagTarget target : targets) {
+            rows.add(new Row(target));
+        }
+    }
+
+    /**
+     * Returns the time spent reading the revision file.
+     *
+     * @return milliseconds, negative if unknown
+     */
+    public long getRevisionFileMillis() {
+        return revisionFileMillis;
+    }
+
+    /**
+     * Returns the phases measured per module location, in the order they run.
+     *
+     * @return the phases
+     */
+    public List<TagPhase> getPhases() {
+        List<TagPhase> phases = new ArrayList<TagPhase>(Arrays.asList(TagPhase.values()));
+        phases.remove(TagPhase.REVISION_FILE);
+        return phases;
+    }
+
+    public List<Row> getRows() {
+        return Collections.unmodifiableList(rows);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.TagTimingAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "svnTagTiming";
+    }
+
+    /**
+     * Timings of one module location.
+     */
+    public static final class Row {
+        private final String tagURL;
+        private final long[] millis;
+
+        private Row(TagTarget target) {
+            this.tagURL = target.getTagURL().toString();
+            this.millis = new long[TagPhase.values().length];
+            for (TagPhase phase : TagPhase.values()) {
+                millis[phase.ordinal()] = TimeUnit.NANOSECONDS.toMillis(target.getTime(phase));
+            }
+        }
+
+        public String getTagURL() {
+            return tagURL;
+        }
+
+        public long getMillis(TagPhase phase) {
+            return millis[phase.ordinal()];
+        }
+
+        public long getTotalMillis() {
+            long total = 0;
+            for (long m : millis) {
+                total += m;
+            }
+            return total;
+        }
+    }
+}
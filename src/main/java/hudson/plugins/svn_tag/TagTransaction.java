@@ -0,0 +1,238 @@
+package hudson.plugins.svn_tag;
+
+import org.tmatesoft.svn.core.SVNCommitInfo;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNNodeKind;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.io.ISVNEditor;
+import org.tmatesoft.svn.core.io.SVNRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Replaces any number of tags within one repository in a single commit.
+ * <p>
+ * Each tag is an <tt>svn copy</tt> of a source path at a revision. Existing
+ * tags are deleted and missing parent directories are created in the same
+ * commit, so either all tags are replaced or none of them.
+ */
+final class TagTransaction {
+
+    private final SVNRepository repository;
+
+    private final SVNURL root;
+
+    /**
+     * tag path -> copy source, both relative to the repository root.
+     */
+    private final Map<String, Copy> copies = new TreeMap<String, Copy>();
+
+    /**
+     * tags found to be up to date by the last {@link #commit(String)}.
+     */
+    private final List<SVNURL> upToDate = new ArrayList<SVNURL>();
+
+    /**
+     * Creates a new TagTransaction object.
+     *
+     * @param repository session to commit with. It is relocated to the repository root.
+     * @throws SVNException when the repository root cannot be determined
+     */
+    TagTransaction(SVNRepository repository) throws SVNException {
+        this.repository = repository;
+        this.root = repository.getRepositoryRoot(true);
+        repository.setLocation(root, false);
+    }
+
+    /**
+     * Returns the repository root all tags of this transaction belong to.
+     *
+     * @return the repository root
+     */
+    SVNURL getRoot() {
+        return root;
+    }
+
+    /**
+     * Adds a tag to this transaction.
+     *
+     * @param tagURL    URL of the tag to replace
+     * @param sourceURL URL to copy from
+     * @param revision  revision to copy from
+     * @return false if the tag cannot be part of this transaction, because it is
+     *         in another repository or it overlaps a tag already added.
+     */
+    boolean add(SVNURL tagURL, SVNURL sourceURL, long revision) {
+        String tagPath = relativePath(root, tagURL);
+        String sourcePath = relativePath(root, sourceURL);
+        if (tagPath == null || tagPath.length() == 0 || sourcePath == null) {
+            return false;
+        }
+        for (String path : copies.keySet()) {
+            if (isAncestorOrSelf(path, tagPath) || isAncestorOrSelf(tagPath, path)) {
+                return false;
+            }
+        }
+        copies.put(tagPath, new Copy(sourcePath, revision));
+        return true;
+    }
+
+    boolean isEmpty() {
+        return copies.isEmpty();
+    }
+
+    int size() {
+        return copies.size();
+    }
+
+    /**
+     * Returns the highest revision copied from, which must be visible before committing.
+     *
+     * @return the highest source revision
+     */
+    long getMaxRevision() {
+        long max = -1;
+        for (Copy copy : copies.values()) {
+            max = Math.max(max, copy.revision);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the tags that already pointed at their source and revision and
+     * were therefore left out of the last commit.
+     *
+     * @return URLs of the tags up to date
+     */
+    List<SVNURL> getUpToDate() {
+        return upToDate;
+    }
+
+    /**
+     * Commits all tags added so far, except those already up to date.
+     *
+     * @param message commit message
+     * @return commit info of the single commit, or null if all tags were up to date
+     * @throws SVNException when the commit failed. Nothing has been changed in that case.
+     */
+    SVNCommitInfo commit(String message) throws SVNException {
+        long head = repository.getLatestRevision();
+        Node tree = new Node(null, false);
+        upToDate.clear();
+        for (Map.Entry<String, Copy> e : copies.entrySet()) {
+            Copy copy = e.getValue();
+            boolean exists = repository.checkPath(e.getKey(), head) != SVNNodeKind.NONE;
+            if (exists && TagProbe.isUpToDate(repository, e.getKey(), copy.sourcePath, copy.revision)) {
+                upToDate.add(root.appendPath(e.getKey(), false));
+                continue;
+            }
+            Node node = tree;
+            boolean parentExists = true;
+            String[] segments = e.getKey().split("/");
+            StringBuilder path = new StringBuilder();
+            for (int i = 0; i < segments.length - 1; i++) {
+                if (path.length() > 0) {
+                    path.append('/');
+                }
+                path.append(segments[i]);
+                Node child = node.children.get(segments[i]);
+                if (child == null) {
+                    boolean add = !parentExists
+                            || repository.checkPath(path.toString(), head) == SVNNodeKind.NONE;
+                    child = new Node(null, add);
+                    node.children.put(segments[i], child);
+                }
+                parentExists = !child.add;
+                node = child;
+            }
+            node.children.put(segments[segments.length - 1], new Node(copy, exists));
+        }
+        if (tree.children.isEmpty()) {
+            return null;
+        }
+
+        ISVNEditor editor = repository.getCommitEditor(message, null);
+        try {
+            editor.openRoot(-1);
+            drive(editor, "", tree);
+            editor.closeDir();
+            return editor.closeEdit();
+        } catch (SVNException e) {
+            editor.abortEdit();
+            throw e;
+        }
+    }
+
+    private static void drive(ISVNEditor editor, String parent, Node node) throws SVNException {
+        for (Map.Entry<String, Node> e : node.children.entrySet()) {
+            String path = parent.length() == 0 ? e.getKey() : parent + '/' + e.getKey();
+            Node child = e.getValue();
+            if (child.copy != null) {
+                if (child.add) {
+                    editor.deleteEntry(path, -1);
+                }
+                editor.addDir(path, '/' + child.copy.sourcePath, child.copy.revision);
+            } else if (child.add) {
+                editor.addDir(path, null, -1);
+                drive(editor, path, child);
+            } else {
+                editor.openDir(path, -1);
+                drive(editor, path, child);
+            }
+            editor.closeDir();
+        }
+    }
+
+    /**
+     * Returns the decoded path of the URL relative to the repository root.
+     *
+     * @param root repository root
+     * @param url  URL within the repository
+     * @return the relative path, or null if the URL is not within the repository
+     */
+    static String relativePath(SVNURL root, SVNURL url) {
+        String rootStr = root.toDecodedString();
+        String urlStr = url.toDecodedString();
+        if (urlStr.equals(rootStr)) {
+            return "";
+        }
+        if (!rootStr.endsWith("/")) {
+            rootStr += '/';
+        }
+        return urlStr.startsWith(rootStr) ? urlStr.substring(rootStr.length()) : null;
+    }
+
+    private static boolean isAncestorOrSelf(String ancestor, String path) {
+        return path.equals(ancestor) || path.startsWith(ancestor + '/');
+    }
+
+    private static final class Copy {
+        private final String sourcePath;
+        private final long revision;
+
+        private Copy(String sourcePath, long revision) {
+            this.sourcePath = sourcePath;
+            this.revision = revision;
+        }
+    }
+
+    /**
+     * Directory in the commit tree. A node either carries a copy, in which case
+     * {@link #add} means an existing tag is replaced, or is a parent directory
+     * that is opened or, if {@link #add} is set, created.
+     */
+    private static final class Node {
+        private final Copy copy;
+        private final boolean add;
+        private final Map<String, Node> children = new TreeMap<String, Node>();
+
+        private Node(Copy copy, boolean add) {
+            this.copy = copy;
+            this.add = add;
+        }
+    }
+}
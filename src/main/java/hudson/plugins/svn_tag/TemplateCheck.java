@@ -0,0 +1,92 @@
+package hudson.plugins.svn_tag;
+
+import hudson.util.FormValidation;
+
+import org.codehaus.groovy.control.CompilationFailedException;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Bounded cache of the validation results of tag URL and comment templates.
+ * The configuration page validates a field on every change, and usually
+ * sends the same few template texts over and over; each text is compiled
+ * and evaluated once, including those that do not compile, which the
+ * {@link GroovyTemplateCache} does not keep.
+ */
+final class TemplateCheck {
+
+    /**
+     * Default number of validation results kept in the cache.
+     */
+    static final int DEFAULT_MAX_SIZE = 256;
+
+    private static final TemplateCheck INSTANCE = new TemplateCheck(
+            Integer.getInteger(TemplateCheck.class.getName() + ".maxSize", DEFAULT_MAX_SIZE));
+
+    private final int maxSize;
+
+    /**
+     * template text -> validation result.
+     */
+    private final Map<String, FormValidation> results;
+
+    /**
+     * Creates a new TemplateCheck object.
+     *
+     * @param maxSize maximum number of validation results to keep
+     */
+    TemplateCheck(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        this.results = new LinkedHashMap<String, FormValidation>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FormValidation> eldest) {
+                return size() > TemplateCheck.this.maxSize;
+            }
+        };
+    }
+
+    static TemplateCheck get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks that the template evaluates, and tells which engine evaluates it.
+     *
+     * @param value template text
+     * @return the validation result, shared by all callers checking the same text
+     */
+    FormValidation check(String value) {
+        String text = String.valueOf(value);
+        synchronized (results) {
+            FormValidation cached = results.get(text);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // evaluate outside of the lock; a concurrent miss on the same text just evaluates twice.
+        FormValidation result = evaluate(text);
+        synchronized (results) {
+            results.put(text, result);
+        }
+        return result;
+    }
+
+    private static FormValidation evaluate(String value) {
+        try {
+            SvnTagPlugin.evalGroovyExpression(new HashMap<String, String>(), value, null);
+        } catch (CompilationFailedException e) {
+            return FormValidation.error(Messages.BadGroovy(e.getMessage()));
+        }
+        return FormValidation.ok(SvnTagPlugin.needsGroovy(value)
+                ? Messages.GroovyTemplate() : Messages.SimpleTemplate());
+    }
+
+    int size() {
+        synchronized (results) {
+            return results.size();
+        }
+    }
+}
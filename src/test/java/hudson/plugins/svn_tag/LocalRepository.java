@@ -0,0 +1,158 @@
+package hudson.plugins.svn_tag;
+
+import hudson.Util;
+
+import org.apache.commons.io.FileUtils;
+
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNNodeKind;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.io.ISVNEditor;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.io.diff.SVNDeltaGenerator;
+import org.tmatesoft.svn.core.wc.SVNWCUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Subversion repository in a temporary directory, reached through
+ * <tt>file://</tt>, for tests that commit.
+ */
+final class LocalRepository {
+
+    static final SvnSessionPool.AuthenticationFactory AUTHENTICATION =
+            new SvnSessionPool.AuthenticationFactory() {
+                public ISVNAuthenticationManager create() {
+                    return SVNWCUtil.createDefaultAuthenticationManager();
+                }
+            };
+
+    private final File dir;
+
+    private final SVNURL root;
+
+    LocalRepository() throws IOException, SVNException {
+        FSRepositoryFactory.setup();
+        dir = Util.createTempDir();
+        root = SVNRepositoryFactory.createLocalRepository(dir, true, false);
+    }
+
+    SVNURL getRoot() {
+        return root;
+    }
+
+    SVNURL url(String path) throws SVNException {
+        return root.appendPath(path, false);
+    }
+
+    SVNRepository open() throws SVNException {
+        return SVNRepositoryFactory.create(root);
+    }
+
+    /**
+     * Adds a directory, whose parent must exist.
+     *
+     * @return the revision committed
+     */
+    long mkdir(String path) throws SVNException {
+        return add(path, false);
+    }
+
+    /**
+     * Adds a file, whose parent must exist.
+     *
+     * @return the revision committed
+     */
+    long addFile(String path) throws SVNException {
+        return add(path, true);
+    }
+
+    long getLatestRevision() throws SVNException {
+        SVNRepository repository = open();
+        try {
+            return repository.getLatestRevision();
+        } finally {
+            repository.closeSession();
+        }
+    }
+
+    /**
+     * Makes the post-commit hook fail, so that commits go through but report
+     * an error, or removes the hook again.
+     *
+     * @return false where hooks are not shell scripts, and nothing was changed
+     */
+    boolean failPostCommit(boolean fail) throws IOException {
+        if (File.separatorChar != '/') {
+            return false;
+        }
+        File hook = new File(dir, "hooks/post-commit");
+        if (!fail) {
+            return hook.delete();
+        }
+        FileUtils.writeStringToFile(hook, "#!/bin/sh\necho post-commit failed >&2\nexit 1\n");
+        return hook.setExecutable(true);
+    }
+
+    SVNNodeKind kind(String path) throws SVNException {
+        SVNRepository repository = open();
+        try {
+            return repository.checkPath(path, -1);
+        } finally {
+            repository.closeSession();
+        }
+    }
+
+    /**
+     * True if the path is an unmodified copy of the source at the revision.
+     */
+    boolean isCopyOf(String path, String sourcePath, long revision) throws SVNException {
+        SVNRepository repository = open();
+        try {
+            return TagProbe.isUpToDate(repository, path, sourcePath, revision);
+        } finally {
+            repository.closeSession();
+        }
+    }
+
+    void delete() throws IOException {
+        Util.deleteRecursive(dir);
+    }
+
+    private long add(String path, boolean file) throws SVNException {
+        SVNRepository repository = open();
+        try {
+            ISVNEditor editor = repository.getCommitEditor("test", null);
+            editor.openRoot(-1);
+            String[] segments = path.split("/");
+            StringBuilder parent = new StringBuilder();
+            for (int i = 0; i < segments.length - 1; i++) {
+                parent.append(i == 0 ? "" : "/").append(segments[i]);
+                editor.openDir(parent.toString(), -1);
+            }
+            if (file) {
+                editor.addFile(path, null, -1);
+                editor.applyTextDelta(path, null);
+                String checksum = new SVNDeltaGenerator().sendDelta(path,
+                        new ByteArrayInputStream(path.getBytes()), editor, true);
+                editor.closeFile(path, checksum);
+            } else {
+                editor.addDir(path, null, -1);
+                editor.closeDir();
+            }
+            for (int i = 0; i < segments.length - 1; i++) {
+                editor.closeDir();
+            }
+            editor.closeDir();
+            return editor.closeEdit().getNewRevision();
+        } finally {
+            repository.closeSession();
+        }
+    }
+}
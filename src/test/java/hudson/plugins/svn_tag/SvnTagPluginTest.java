@@ -1,8 +1,54 @@
 package hudson.plugins.svn_tag;
 
+import groovy.lang.Binding;
+import hudson.AbortException;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.StreamBuildListener;
+import hudson.scm.SubversionSCM;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.io.FileUtils;
+import org.jvnet.hudson.test.JenkinsRule;
 import org.testng.annotations.Test;
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNNodeKind;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
+import org.tmatesoft.svn.core.io.SVNRepository;
 
 
 /**
@@ -25,4 +71,936 @@ public class SvnTagPluginTest {
         }
     }
 
+    @Test public void testTemplateCache() throws Exception {
+        GroovyTemplateCache cache = new GroovyTemplateCache(2);
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("JOB_NAME", "job");
+        for (int i = 0; i < 3; i++) {
+            env.put("BUILD_NUMBER", String.valueOf(i));
+            Binding binding = new Binding();
+            binding.setVariable("env", env);
+            Object s = cache.evaluate("${env['JOB_NAME']}-${env['BUILD_NUMBER']}", binding);
+            assert ("job-" + i).equals(s.toString()) : "Failed cached template test. Value '" + s + "'";
+        }
+        assert cache.getMisses() == 1 && cache.getHits() == 2 : cache.toString();
+
+        assert "plain comment".equals(cache.evaluate("plain comment", new Binding()));
+        assert cache.getLiterals() == 1 && cache.size() == 1 : cache.toString();
+
+        cache.evaluate("${'a'}", new Binding());
+        cache.evaluate("${'b'}", new Binding());
+        assert cache.size() == 2 && cache.getEvictions() == 1 : cache.toString();
+    }
+
+    @Test public void testTemplateCheck() throws Exception {
+        TemplateCheck check = new TemplateCheck(2);
+        FormValidation bad = check.check("${env['JOB_NAME']");
+        assert bad.kind == FormValidation.Kind.ERROR;
+        assert check.check("${env['JOB_NAME']") == bad;
+
+        FormValidation simple = check.check("${env['JOB_NAME']}");
+        assert simple.kind == FormValidation.Kind.OK;
+        assert check.check("${env['JOB_NAME']}") == simple;
+
+        check.check("${'a'.toUpperCase()}");
+        assert check.size() == 2;
+        assert check.check("${env['JOB_NAME']}") == simple;
+    }
+
+    @Test public void testRevisionIndex() throws Exception {
+        RevisionIndex index = RevisionIndex.parse(new BufferedReader(new StringReader(
+                "http://svn.example.com/repo/trunk/b/12\n"
+                + "corrupted line\n"
+                + "http://svn.example.com/repo/trunk/a/10\n"
+                + "http://svn.example.com/repo/trunk/b/13\n")));
+        assert index.size() == 2 : index.size();
+        assert index.get("http://svn.example.com/repo/trunk/a") == 10;
+        assert index.get("http://svn.example.com/repo/trunk/b") == 13;
+        assert index.get("http://svn.example.com/repo/trunk/c") == RevisionIndex.NONE;
+    }
+
+    @Test public void testCoalesceSameTagURL() throws Exception {
+        SVNURL source = SVNURL.parseURIEncoded("http://svn.example.com/repo/trunk");
+        SVNURL tag = SVNURL.parseURIEncoded("http://svn.example.com/repo/tags/latest-green");
+        TagCoalescer coalescer = new TagCoalescer();
+
+        TagCoalescer.Ticket running = coalescer.enqueue(new TagTarget(null, source, 10, tag, "", "", "#1"));
+        assert coalescer.begin(running);
+
+        TagCoalescer.Ticket older = coalescer.enqueue(new TagTarget(null, source, 11, tag, "", "", "#2"));
+        TagCoalescer.Ticket newer = coalescer.enqueue(new TagTarget(null, source, 12, tag, "", "", "#3"));
+        TagCoalescer.Ticket stale = coalescer.enqueue(new TagTarget(null, source, 9, tag, "", "", "#4"));
+        assert older.getSupersededBy() == newer;
+        assert stale.getSupersededBy() == newer;
+        assert !coalescer.begin(older) && !coalescer.begin(stale);
+
+        coalescer.end(running);
+        assert coalescer.begin(newer);
+        coalescer.end(newer);
+        assert coalescer.getSuperseded() == 2 : coalescer.getSuperseded();
+    }
+
+    @Test public void testSimpleTemplateMatchesGroovy() throws Exception {
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("JOB_NAME", "job");
+        env.put("BUILD_NUMBER", "7");
+        List<String> repoURL = Arrays.asList("http:", "svnserver", "trunk", "project1");
+        String[] templates = {
+                "tags/${env['JOB_NAME']}-${env.BUILD_NUMBER}",
+                "../tags/last-successful/${repoURL[-1]}",
+                "${repoURL[2]}/${repoURL[9]}/${env['MISSING']}",
+                "Tagged by ${ sys['java.vendor'] }",
+        };
+        for (String template : templates) {
+            assert SimpleTemplate.parse(template) != null : template;
+            Binding binding = new Binding();
+            binding.setVariable("env", env);
+            binding.setVariable("sys", System.getProperties());
+            binding.setVariable("repoURL", repoURL);
+            Object groovy = new GroovyTemplateCache(1).evaluate(template, binding);
+            String simple = SimpleTemplate.parse(template).render(env, System.getProperties(), repoURL);
+            assert simple.equals(String.valueOf(groovy)) : simple + " != " + groovy;
+        }
+        assert SimpleTemplate.parse("${env['JOB_NAME'].toUpperCase()}") == null;
+        assert SimpleTemplate.parse("$JOB_NAME") == null;
+        assert SimpleTemplate.parse("line\\nbreak") == null;
+    }
+
+    @Test public void testTagRetention() throws Exception {
+        long day = TimeUnit.DAYS.toMillis(1);
+        TagHistory.Entry old = new TagHistory.Entry(1, "http://svn/trunk", 10, "http://svn/tags/b1", 0, 0);
+        TagHistory.Entry latestOld = new TagHistory.Entry(1, "http://svn/trunk", 10, "http://svn/tags/latest", 0, 0);
+        TagHistory.Entry mid = new TagHistory.Entry(2, "http://svn/trunk", 11, "http://svn/tags/b2", 0, 5 * day);
+        TagHistory.Entry latest = new TagHistory.Entry(3, "http://svn/trunk", 12, "http://svn/tags/latest", 0, 9 * day);
+        List<TagHistory.Entry> entries = Arrays.asList(old, latestOld, mid, latest);
+
+        List<TagHistory.Entry> expired = TagPruner.selectExpired(entries, 2, 0, null, 10 * day);
+        assert expired.equals(Arrays.asList(old, latestOld)) : expired;
+        assert TagPruner.selectDeletable(entries, expired).equals(Collections.singleton("http://svn/tags/b1"));
+
+        expired = TagPruner.selectExpired(entries, 0, 3 * day, null, 10 * day);
+        assert expired.equals(Arrays.asList(old, latestOld, mid)) : expired;
+        expired = TagPruner.selectExpired(entries, 0, 0, Collections.singleton(3), 10 * day);
+        assert expired.equals(Arrays.asList(old, latestOld, mid)) : expired;
+    }
+
+    @Test public void testTagHistory() throws Exception {
+        File dir = Util.createTempDir();
+        try {
+            File file = new File(dir, "svn-tag-history.log");
+            TagHistory.Entry first = new TagHistory.Entry(1, "http://svn/trunk", 10, "http://svn/tags/b1", 11, 0);
+            TagHistory.Entry second = new TagHistory.Entry(2, "http://svn", "http://svn/trunk", 12,
+                    "http://svn/tags/b2", "http://svn/tags/2/b2", 13, 1);
+            TagHistory.Entry third = new TagHistory.Entry(3, "http://svn/trunk", 14, "http://svn/tags/b3", 0, 2);
+            assert TagHistory.load(file).getEntries().isEmpty();
+
+            // every build appends its entries
+            TagHistory.add(file, Arrays.asList(first, second));
+            long length = file.length();
+            TagHistory.add(file, Collections.singletonList(third));
+            assert file.length() > length;
+            List<TagHistory.Entry> entries = TagHistory.load(file).getEntries();
+            assert entries.equals(Arrays.asList(first, second, third)) : entries;
+            assert entries.get(1).getLogicalTagURL().equals("http://svn/tags/2/b2");
+            assert entries.get(1).getCommitRevision() == 13;
+            assert entries.get(1).getRepositoryRoot().equals("http://svn");
+            assert entries.get(0).getRepositoryRoot() == null;
+
+            // a removal is appended while fewer entries were removed than are left
+            TagHistory.remove(file, Collections.singleton(first));
+            TagHistory history = TagHistory.load(file);
+            assert history.getEntries().equals(Arrays.asList(second, third));
+            assert history.getRemovals() == 1;
+
+            // a line cut short is skipped, and the next one starts on a line of its own
+            FileUtils.writeStringToFile(file, FileUtils.readFileToString(file) + "+\t4\thttp://svn/tr");
+            assert TagHistory.load(file).getEntries().size() == 2;
+            TagHistory.add(file, Collections.singletonList(first));
+            assert TagHistory.load(file).getEntries().equals(Arrays.asList(second, third, first));
+
+            // then the journal is compacted
+            TagHistory.remove(file, Arrays.asList(second, first));
+            history = TagHistory.load(file);
+            assert history.getEntries().equals(Collections.singletonList(third));
+            assert history.getRemovals() == 0;
+        } finally {
+            Util.deleteRecursive(dir);
+        }
+    }
+
+    @Test public void testTagRegistry() throws Exception {
+        TagRegistry registry = new TagRegistry();
+        TagHistory.Entry first = new TagHistory.Entry(1, "http://svn", "http://svn/trunk", 10,
+                "http://svn/tags/latest", null, 11, 0);
+        TagHistory.Entry second = new TagHistory.Entry(2, "http://svn", "http://svn/trunk", 12,
+                "http://svn/tags/latest", null, 13, 1);
+        TagHistory.Entry other = new TagHistory.Entry(1, "http://other", "http://other/trunk", 10,
+                "http://other/tags/1", null, 11, 0);
+        registry.add("job", Arrays.asList(first, second));
+        registry.add("other", Collections.singleton(other));
+
+        assert registry.findByTag("http://svn/tags/latest").size() == 2;
+        assert registry.findByBuild("job", 2).get(0).getEntry() == second;
+        // revision numbers are per repository
+        assert registry.findByRevision("http://svn", 10).size() == 1;
+        assert registry.findByRevision("http://svn/", 10).get(0).getJob().equals("job");
+        assert registry.findByRevision("http://other", 10).get(0).getJob().equals("other");
+
+        registry.remove("job", Collections.singleton(first));
+        assert registry.findByRevision("http://svn", 10).isEmpty();
+        assert registry.findByRevision("http://other", 10).size() == 1;
+        assert registry.findByJob("job").size() == 1;
+        registry.removeJob("job");
+        assert registry.findByTag("http://svn/tags/latest").isEmpty();
+    }
+
+    @Test public void testSvnThrottle() throws Exception {
+        Random random = new Random(42);
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long delay = SvnThrottle.backoffMillis(attempt, random);
+            long ceiling = Math.min(SvnThrottle.MAX_RETRY_DELAY, SvnThrottle.RETRY_DELAY << Math.min(attempt, 20));
+            assert delay >= ceiling / 2 && delay <= ceiling : delay;
+        }
+
+        SVNErrorMessage unavailable = SVNErrorMessage.create(SVNErrorCode.RA_DAV_REQUEST_FAILED);
+        assert SvnThrottle.isTransient(unavailable);
+        assert !SvnThrottle.isTransient(SVNErrorMessage.create(SVNErrorCode.FS_NOT_FOUND));
+        assert !SvnThrottle.isTransient(null);
+
+        SvnThrottle throttle = new SvnThrottle();
+        throttle.configure(0, 0, 0, 2, 0);
+        SVNURL url = SVNURL.parseURIEncoded("http://svn/repo/trunk");
+        SVNURL root = SVNURL.parseURIEncoded("http://svn/repo");
+        throttle.release(throttle.acquire(url, root, System.out), unavailable);
+        assert throttle.getOpenCircuits() == 0;
+        throttle.release(throttle.acquire(url, root, System.out), unavailable);
+        assert throttle.getOpenCircuits() == 1 && throttle.getCircuitsOpened() == 1;
+        // the cool-down is over, so the trial operation runs and closes the circuit
+        throttle.release(throttle.acquire(url, root, System.out), null);
+        assert throttle.getOpenCircuits() == 0;
+
+        // a failing repository does not stop the others on the host, which still share its limit
+        final SvnThrottle shared = new SvnThrottle();
+        shared.configure(1, 0, 0, 1, 60);
+        shared.release(shared.acquire(url, root, System.out), unavailable);
+        assert shared.getOpenCircuits() == 1;
+        SvnThrottle.Permit other = shared.acquire(SVNURL.parseURIEncoded("http://svn/other/trunk"),
+                SVNURL.parseURIEncoded("http://svn/other"), System.out);
+        final SVNURL third = SVNURL.parseURIEncoded("http://svn/third");
+        final SvnThrottle.Permit[] waiting = new SvnThrottle.Permit[1];
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    waiting[0] = shared.acquire(third, third, System.out);
+                } catch (InterruptedException e) {
+                    // the test fails below
+                }
+            }
+        };
+        thread.start();
+        thread.join(200);
+        assert thread.isAlive() && waiting[0] == null;
+        shared.release(other, null);
+        thread.join(10000);
+        assert waiting[0] != null;
+        shared.release(waiting[0], null);
+        assert shared.getOpenCircuits() == 1;
+    }
+
+    @Test public void testTagDeduplicator() throws Exception {
+        final SVNURL root = SVNURL.parseURIEncoded("http://svn");
+        final SVNURL source = SVNURL.parseURIEncoded("http://svn/trunk");
+        final SVNURL tag = SVNURL.parseURIEncoded("http://svn/tags/b1");
+        final int[] calls = new int[1];
+        TagDeduplicator.Tagger succeeding = new TagDeduplicator.Tagger() {
+            public boolean tag(List<TagTarget> targets) {
+                calls[0]++;
+                for (TagTarget target : targets) {
+                    target.setCommitRevision(root, 11);
+                }
+                return true;
+            }
+        };
+        TagDeduplicator.Tagger failing = new TagDeduplicator.Tagger() {
+            public boolean tag(List<TagTarget> targets) {
+                calls[0]++;
+                return false;
+            }
+        };
+        TagDeduplicator dedup = new TagDeduplicator();
+
+        // a failed claim is dropped, so the next module build tags again
+        assert !dedup.tag("job#1", Collections.singletonList(
+                new TagTarget(null, source, 10, tag, "", "", "module1")), System.out, failing);
+        assert dedup.tag("job#1", Collections.singletonList(
+                new TagTarget(null, source, 10, tag, "", "", "module2")), System.out, succeeding);
+        assert calls[0] == 2;
+        // later module builds reuse the tag
+        assert dedup.tag("job#1", Collections.singletonList(
+                new TagTarget(null, source, 10, tag, "", "", "module3")), System.out, failing);
+        assert calls[0] == 2;
+
+        dedup.forget("job#1");
+        assert dedup.size() == 0;
+    }
+
+    @Test public void testTagDeduplicatorCleanup() throws Throwable {
+        TestJenkins.run(new TestJenkins.Body() {
+            public void run(JenkinsRule j) throws Exception {
+                FreeStyleProject project = j.createFreeStyleProject();
+                project.getPublishersList().add(new ClaimingPublisher());
+                FreeStyleBuild build = j.buildAndAssertSuccess(project);
+                String key = TagDeduplicator.key(build);
+                assert ClaimingPublisher.claimed.contains(key);
+
+                // the claim made after the build completed is forgotten once it is finalized
+                TagTarget other = new TagTarget(null, SVNURL.parseURIEncoded("http://svn/trunk"), 10,
+                        SVNURL.parseURIEncoded(ClaimingPublisher.TAG), "", "", "other");
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (TagDeduplicator.get().claim(key, other).getOwner() != other) {
+                    assert System.nanoTime() < deadline : "claims of " + key + " kept";
+                    Thread.sleep(50);
+                }
+                TagDeduplicator.get().forget(key);
+            }
+        });
+    }
+
+    /**
+     * Claims a tag after the build completed, like the publisher.
+     */
+    public static final class ClaimingPublisher extends Recorder {
+        static final String TAG = "http://svn/tags/b1";
+
+        static final List<String> claimed = Collections.synchronizedList(new ArrayList<String>());
+
+        private static final BuildStepDescriptor<Publisher> DESCRIPTOR =
+                new BuildStepDescriptor<Publisher>(ClaimingPublisher.class) {
+                    @Override
+                    public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+                        return true;
+                    }
+
+                    @Override
+                    public String getDisplayName() {
+                        return "Claim a tag";
+                    }
+                };
+
+        public BuildStepMonitor getRequiredMonitorService() {
+            return BuildStepMonitor.NONE;
+        }
+
+        @Override
+        public boolean needsToRunAfterFinalized() {
+            return true;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                throws IOException {
+            TagTarget target;
+            try {
+                target = new TagTarget(null, SVNURL.parseURIEncoded("http://svn/trunk"), 10,
+                        SVNURL.parseURIEncoded(TAG), "", "", build.getFullDisplayName());
+            } catch (SVNException e) {
+                throw new IOException(e);
+            }
+            String key = TagDeduplicator.key(build);
+            if (TagDeduplicator.get().claim(key, target).getOwner() == target) {
+                claimed.add(key);
+            }
+            return true;
+        }
+
+        @Override
+        public BuildStepDescriptor<Publisher> getDescriptor() {
+            return DESCRIPTOR;
+        }
+    }
+
+    @Test public void testTagRequest() throws Throwable {
+        TestJenkins.run(new TestJenkins.Body() {
+            public void run(JenkinsRule j) throws Exception {
+                FreeStyleProject project = j.createFreeStyleProject();
+                FreeStyleBuild build = j.buildAndAssertSuccess(project);
+                SVNURL source = SVNURL.parseURIEncoded("http://svn/trunk");
+                SVNURL tag = SVNURL.parseURIEncoded("http://svn/tags/a/b1");
+                final int[] evaluations = new int[1];
+                TagTarget target = new TagTarget(new SubversionSCM.ModuleLocation(source.toString(),
+                        "creds", ".", "infinity", false), source, 10, tag, "tag", new TagTarget.Comment() {
+                            public String evaluate() {
+                                evaluations[0]++;
+                                return "delete b1";
+                            }
+                        }, "job #1");
+                target.setLogicalTagURL(SVNURL.parseURIEncoded("http://svn/tags/b1"));
+
+                // the delete comment is evaluated when the request is made, while the build is at hand
+                TagRequest request = new TagRequest(build, Collections.singletonList(target), 5, true, false, 2);
+                assert evaluations[0] == 1;
+
+                File file = new File(j.jenkins.getRootDir(), "svn-tag/queue/" + request.getId() + ".xml");
+                new XmlFile(Jenkins.XSTREAM, file).write(request);
+                TagRequest read = (TagRequest) new XmlFile(Jenkins.XSTREAM, file).read();
+                assert read.getId().equals(request.getId());
+                assert read.resolveBuild() == build;
+                assert read.getWaitBeforeTagging() == 5 && read.isPollForRevision();
+                assert !read.isAtomicTagging() && read.getParallelism() == 2;
+                TagTarget copy = read.getTargets().get(0);
+                assert copy.getLocation().credentialsId.equals("creds");
+                assert copy.getSourceURL().equals(source) && copy.getRevision() == 10;
+                assert copy.getTagURL().equals(tag);
+                assert copy.getLogicalTagURL().equals(target.getLogicalTagURL());
+                assert copy.getComment().equals("tag") && copy.getDeleteComment().equals("delete b1");
+                assert copy.getRequester().equals("job #1");
+                assert evaluations[0] == 1;
+
+                // a request left over from the previous run is carried out, then deleted
+                TagService.resume();
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (file.exists()) {
+                    assert System.nanoTime() < deadline : file + " kept";
+                    Thread.sleep(50);
+                }
+                SvnTagAction action = build.getAction(SvnTagAction.class);
+                assert action != null && action.getStatus() == SvnTagAction.Status.FAILURE;
+
+                // the queued tickets are withdrawn although nothing was tagged
+                TagRequest failing = new TagRequest(build, Collections.singletonList(
+                        new TagTarget(null, source, 10, tag, "", "", "job #1")), 0, false, false, 1);
+                for (TagTarget t : failing.getTargets()) {
+                    TagCoalescer.get().enqueue(t);
+                }
+                TagService.get().process(failing);
+                // an older revision would be superseded by a ticket still pending
+                TagCoalescer.Ticket older = TagCoalescer.get().enqueue(
+                        new TagTarget(null, source, 9, tag, "", "", "job #0"));
+                assert older.getSupersededBy() == null;
+                TagCoalescer.get().withdraw(older);
+            }
+        });
+    }
+
+    @Test public void testRetagSelectsLatestBuild() throws Exception {
+        SVNURL source = SVNURL.parseURIEncoded("http://svn/trunk");
+        SVNURL latest = SVNURL.parseURIEncoded("http://svn/tags/latest");
+        TagRetagger.Entry b1 = new TagRetagger.Entry(1, new TagTarget(null, source, 10,
+                SVNURL.parseURIEncoded("http://svn/tags/b1"), "", "", "job #1"));
+        TagRetagger.Entry latest1 = new TagRetagger.Entry(1, new TagTarget(null, source, 10, latest, "", "", "job #1"));
+        TagRetagger.Entry b2 = new TagRetagger.Entry(2, new TagTarget(null, source, 11,
+                SVNURL.parseURIEncoded("http://svn/tags/b2"), "", "", "job #2"));
+        TagRetagger.Entry latest2 = new TagRetagger.Entry(2, new TagTarget(null, source, 11, latest, "", "", "job #2"));
+
+        List<TagRetagger.Entry> selected = TagRetagger.selectLatest(Arrays.asList(b1, latest1, b2, latest2));
+        assert selected.equals(Arrays.asList(b1, b2, latest2)) : selected;
+        assert selected.get(2).toTarget().getRevision() == 11;
+    }
+
+    @Test public void testTagMetrics() throws Exception {
+        TagMetrics metrics = new TagMetrics();
+        metrics.record(TagPhase.COPY, TimeUnit.MILLISECONDS.toNanos(30));
+        metrics.record(TagPhase.COPY, TimeUnit.MINUTES.toNanos(5));
+        long[] counts = metrics.getHistogram(TagPhase.COPY).getCounts();
+        assert counts[2] == 1 && counts[TagMetrics.BUCKETS.length] == 1;
+        assert metrics.getHistogram(TagPhase.COPY).getCount() == 2;
+
+        metrics.failed(SVNErrorMessage.create(SVNErrorCode.RA_DAV_REQUEST_FAILED));
+        metrics.failed(SVNErrorMessage.create(SVNErrorCode.RA_DAV_REQUEST_FAILED));
+        assert metrics.getFailures().get(SVNErrorCode.RA_DAV_REQUEST_FAILED.getCode()) == 2;
+    }
+
+    @Test public void testTagTransaction() throws Exception {
+        LocalRepository repo = new LocalRepository();
+        try {
+            long r1 = repo.mkdir("trunk");
+            long r2 = repo.addFile("trunk/a.txt");
+            repo.mkdir("tags");
+            SVNURL trunk = repo.url("trunk");
+
+            // a missing parent directory is created by the same commit
+            TagTransaction transaction = new TagTransaction(repo.open());
+            assert transaction.add(repo.url("tags/release/1.0"), trunk, r1);
+            assert transaction.add(repo.url("tags/latest"), trunk, r1);
+            long created = transaction.commit("tag").getNewRevision();
+            assert repo.kind("tags/release") == SVNNodeKind.DIR;
+            assert repo.isCopyOf("tags/release/1.0", "trunk", r1);
+            assert repo.isCopyOf("tags/latest", "trunk", r1);
+
+            // an existing tag is replaced, one up to date is left alone
+            transaction = new TagTransaction(repo.open());
+            assert transaction.add(repo.url("tags/latest"), trunk, r2);
+            assert transaction.add(repo.url("tags/release/1.0"), trunk, r1);
+            long replaced = transaction.commit("tag").getNewRevision();
+            assert replaced == created + 1;
+            assert repo.isCopyOf("tags/latest", "trunk", r2);
+            assert transaction.getUpToDate().equals(
+                    Collections.singletonList(repo.url("tags/release/1.0")));
+
+            // nothing is committed when all tags are up to date
+            transaction = new TagTransaction(repo.open());
+            assert transaction.add(repo.url("tags/latest"), trunk, r2);
+            assert transaction.commit("tag") == null;
+            assert transaction.getUpToDate().size() == 1;
+
+            // a tag nested in another one is left to a later commit
+            transaction = new TagTransaction(repo.open());
+            assert transaction.add(repo.url("tags/nested"), trunk, r1);
+            assert !transaction.add(repo.url("tags/nested/inner"), trunk, r2);
+            assert !transaction.add(SVNURL.parseURIEncoded("file:///elsewhere/tags/x"), trunk, r1);
+            transaction.commit("tag");
+            assert repo.kind("tags/nested/inner") == SVNNodeKind.NONE;
+            TagTransaction later = new TagTransaction(repo.open());
+            assert later.add(repo.url("tags/nested/inner"), trunk, r2);
+            later.commit("tag");
+            assert repo.kind("tags/nested/a.txt") == SVNNodeKind.NONE;
+            assert repo.isCopyOf("tags/nested/inner", "trunk", r2);
+        } finally {
+            repo.delete();
+        }
+    }
+
+    @Test public void testTagSession() throws Exception {
+        LocalRepository repo = new LocalRepository();
+        try {
+            long r1 = repo.mkdir("trunk");
+            repo.mkdir("tags");
+            repo.mkdir("tags/made");
+            SVNURL trunk = repo.url("trunk");
+            BuildListener listener = new StreamBuildListener(System.out, Charset.forName("UTF-8"));
+            RevisionGate gate = new RevisionGate(0, false);
+            SvnSessionPool pool = new SvnSessionPool(1, 60000, 0);
+            SvnSessionPool.Session session = pool.acquire("a", repo.getRoot(), LocalRepository.AUTHENTICATION);
+            try {
+                // a missing tag is copied
+                TagTarget missing = new TagTarget(null, trunk, r1, repo.url("tags/missing"), "tag", "delete", "#1");
+                assert SvnTagPlugin.tag(session, listener, missing, null, gate);
+                assert missing.getCommitRevision() == repo.getLatestRevision();
+                assert repo.isCopyOf("tags/missing", "trunk", r1);
+
+                // an existing tag is deleted, then copied
+                long before = repo.getLatestRevision();
+                TagTarget existing = new TagTarget(null, trunk, r1, repo.url("tags/made"), "tag", "delete", "#2");
+                assert SvnTagPlugin.tag(session, listener, existing, Boolean.TRUE, gate);
+                assert existing.getCommitRevision() == before + 2;
+                assert repo.isCopyOf("tags/made", "trunk", r1);
+
+                // a failed delete fails the tag
+                TagTarget gone = new TagTarget(null, trunk, r1, repo.url("tags/gone"), "tag", "delete", "#3");
+                assert !SvnTagPlugin.tag(session, listener, gone, Boolean.TRUE, gate);
+                assert gone.getError() != null;
+                assert gone.getCommitRevision() < 0;
+                assert repo.kind("tags/gone") == SVNNodeKind.NONE;
+
+                // so does a delete that went through but reported an error
+                repo.mkdir("tags/reported");
+                if (repo.failPostCommit(true)) {
+                    before = repo.getLatestRevision();
+                    TagTarget reported = new TagTarget(null, trunk, r1, repo.url("tags/reported"),
+                            "tag", "delete", "#4");
+                    assert !SvnTagPlugin.tag(session, listener, reported, Boolean.TRUE, gate);
+                    assert reported.getError() != null;
+                    assert reported.getCommitRevision() < 0;
+                    assert repo.getLatestRevision() == before + 1;
+                    assert repo.kind("tags/reported") == SVNNodeKind.NONE;
+                    repo.failPostCommit(false);
+                }
+
+                // a retry after the response of the copy was lost finds the tag up to date
+                before = repo.getLatestRevision();
+                TagTarget retry = new TagTarget(null, trunk, r1, repo.url("tags/missing"), "tag", "delete", "#1");
+                assert SvnTagPlugin.tag(session, listener, retry, null, gate);
+                assert retry.getCommitRevision() == 0;
+                assert repo.getLatestRevision() == before;
+            } finally {
+                pool.release(session, false);
+            }
+        } finally {
+            repo.delete();
+        }
+    }
+
+    @Test public void testTagUpToDate() throws Exception {
+        LocalRepository repo = new LocalRepository();
+        try {
+            long r1 = repo.mkdir("trunk");
+            long r2 = repo.addFile("trunk/a.txt");
+            repo.mkdir("tags");
+            repo.mkdir("tags/made");
+            SVNURL trunk = repo.url("trunk");
+            BuildListener listener = new StreamBuildListener(System.out, Charset.forName("UTF-8"));
+            RevisionGate gate = new RevisionGate(0, false);
+            SvnSessionPool pool = new SvnSessionPool(1, 60000, 0);
+            SvnSessionPool.Session session = pool.acquire("a", repo.getRoot(), LocalRepository.AUTHENTICATION);
+            try {
+                TagTarget first = new TagTarget(null, trunk, r1, repo.url("tags/copy"), "tag", "delete", "#1");
+                assert SvnTagPlugin.tag(session, listener, first, Boolean.FALSE, gate);
+
+                // a copy of the same source and revision is skipped
+                long before = repo.getLatestRevision();
+                TagTarget same = new TagTarget(null, trunk, r1, repo.url("tags/copy"), "tag", "delete", "#2");
+                assert SvnTagPlugin.tag(session, listener, same, Boolean.TRUE, gate);
+                assert same.getCommitRevision() == 0;
+                assert repo.getLatestRevision() == before;
+
+                // a copy of another revision is tagged again
+                TagTarget newer = new TagTarget(null, trunk, r2, repo.url("tags/copy"), "tag", "delete", "#3");
+                assert SvnTagPlugin.tag(session, listener, newer, Boolean.TRUE, gate);
+                assert newer.getCommitRevision() == before + 2;
+                assert repo.isCopyOf("tags/copy", "trunk", r2);
+
+                // so is a tag that was not created by a copy
+                before = repo.getLatestRevision();
+                assert !repo.isCopyOf("tags/made", "trunk", r2);
+                TagTarget made = new TagTarget(null, trunk, r2, repo.url("tags/made"), "tag", "delete", "#4");
+                assert SvnTagPlugin.tag(session, listener, made, Boolean.TRUE, gate);
+                assert made.getCommitRevision() == before + 2;
+                assert repo.isCopyOf("tags/made", "trunk", r2);
+            } finally {
+                pool.release(session, false);
+            }
+        } finally {
+            repo.delete();
+        }
+    }
+
+    @Test public void testParallelTagger() throws Exception {
+        // with one thread of the pool, the second task can only run on the calling thread
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final Thread[] threads = new Thread[2];
+        ParallelTagger tagger = new ParallelTagger();
+        for (int i = 0; i < 2; i++) {
+            final int task = i;
+            tagger.add("task" + i, new ParallelTagger.Task() {
+                public boolean run(BuildListener listener) throws InterruptedException {
+                    threads[task] = Thread.currentThread();
+                    listener.getLogger().println("start " + task);
+                    try {
+                        barrier.await(10, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        return false;
+                    }
+                    listener.getLogger().println("end " + task);
+                    return true;
+                }
+            });
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assert tagger.run(new StreamBuildListener(out, Charset.forName("UTF-8")), 2);
+        assert threads[0] != threads[1];
+        assert threads[0] == Thread.currentThread() || threads[1] == Thread.currentThread();
+        // the output of each task is kept together, in the order the tasks were added
+        String log = out.toString("UTF-8");
+        String nl = System.getProperty("line.separator");
+        assert log.contains("start 0" + nl + "end 0" + nl + "start 1" + nl + "end 1" + nl) : log;
+
+        // a failing task does not stop the others, which log as usual
+        tagger = new ParallelTagger();
+        String[] outcomes = {"ok", "false", "throw", "ok"};
+        for (int i = 0; i < outcomes.length; i++) {
+            final int task = i;
+            final String outcome = outcomes[i];
+            tagger.add("task" + i, new ParallelTagger.Task() {
+                public boolean run(BuildListener listener) {
+                    listener.getLogger().println("task " + task);
+                    if (outcome.equals("throw")) {
+                        throw new IllegalStateException("boom " + task);
+                    }
+                    return outcome.equals("ok");
+                }
+            });
+        }
+        out = new ByteArrayOutputStream();
+        assert !tagger.run(new StreamBuildListener(out, Charset.forName("UTF-8")), 3);
+        log = out.toString("UTF-8");
+        assert log.indexOf("task 0") < log.indexOf("task 1") : log;
+        assert log.indexOf("task 1") < log.indexOf("task 2") : log;
+        assert log.indexOf("task 2") < log.indexOf("boom 2") : log;
+        assert log.indexOf("boom 2") < log.indexOf("task 3") : log;
+        assert log.contains(Messages.TaggingSummary(2, 4)) : log;
+        assert log.contains(Messages.TaggingFailedFor("task1")) : log;
+        assert log.contains(Messages.TaggingFailedFor("task2")) : log;
+        assert !log.contains(Messages.TaggingFailedFor("task3")) : log;
+    }
+
+    @Test public void testTagPrunerDelete() throws Exception {
+        LocalRepository repo = new LocalRepository();
+        try {
+            repo.mkdir("tags");
+            repo.mkdir("tags/a");
+            repo.mkdir("tags/b");
+            repo.mkdir("tags/c");
+            repo.mkdir("tags/c/d");
+            repo.mkdir("tags/release");
+            long before = repo.mkdir("tags/release/1.0");
+
+            // one commit for all paths, those inside a deleted directory are skipped
+            SVNRepository repository = repo.open();
+            try {
+                long revision = TagPruner.delete(repository,
+                        Arrays.asList("tags/a", "tags/c", "tags/c/d", "tags/release/1.0"), "prune")
+                        .getNewRevision();
+                assert revision == before + 1;
+            } finally {
+                repository.closeSession();
+            }
+            assert repo.kind("tags/a") == SVNNodeKind.NONE;
+            assert repo.kind("tags/c") == SVNNodeKind.NONE;
+            assert repo.kind("tags/release/1.0") == SVNNodeKind.NONE;
+            assert repo.kind("tags/b") == SVNNodeKind.DIR;
+            assert repo.kind("tags/release") == SVNNodeKind.DIR;
+
+            // a path that is gone fails the whole commit
+            repository = repo.open();
+            try {
+                TagPruner.delete(repository, Arrays.asList("tags/a", "tags/b"), "prune");
+                assert false;
+            } catch (SVNException e) {
+                // expected
+            } finally {
+                repository.closeSession();
+            }
+            assert repo.kind("tags/b") == SVNNodeKind.DIR;
+        } finally {
+            repo.delete();
+        }
+    }
+
+    @Test public void testRevisionGate() throws Exception {
+        LocalRepository repo = new LocalRepository();
+        try {
+            long r1 = repo.mkdir("trunk");
+            long r2 = repo.mkdir("tags");
+            SvnSessionPool pool = new SvnSessionPool(1, 60000, 0);
+            SvnSessionPool.Session session = pool.acquire("a", repo.getRoot(), LocalRepository.AUTHENTICATION);
+            try {
+                // the fixed wait covers the revisions committed before it started
+                RevisionGate gate = new RevisionGate(1, false);
+                long start = System.nanoTime();
+                gate.await(session, r1, System.out);
+                assert System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1);
+                assert gate.getVisible(repo.getRoot()) == r2;
+                start = System.nanoTime();
+                gate.await(session, r2, System.out);
+                assert System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1);
+
+                // a revision committed later, e.g. by deleting a tag, waits again
+                long r3 = repo.mkdir("branches");
+                start = System.nanoTime();
+                gate.await(session, r3, System.out);
+                assert System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1);
+                assert gate.getVisible(repo.getRoot()) == r3;
+
+                // polling returns once the revision is visible, or gives up at the ceiling
+                gate = new RevisionGate(1, true);
+                start = System.nanoTime();
+                gate.await(session, r3, System.out);
+                assert System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1);
+                assert gate.getVisible(repo.getRoot()) == r3;
+                gate.await(session, r3 + 1, System.out);
+                assert gate.getVisible(repo.getRoot()) == r3;
+
+                // no wait configured
+                gate = new RevisionGate(0, false);
+                gate.await(session, r3 + 1, System.out);
+                assert gate.getVisible(repo.getRoot()) == -1;
+            } finally {
+                pool.release(session, false);
+            }
+        } finally {
+            repo.delete();
+        }
+    }
+
+    @Test public void testSvnSessionPool() throws Exception {
+        final LocalRepository repo = new LocalRepository();
+        try {
+            repo.mkdir("trunk");
+            final SvnSessionPool pool = new SvnSessionPool(1, 0, 2);
+
+            // a released session is reused for any URL of its repository, but not across credentials
+            SvnSessionPool.Session session = pool.acquire("a", repo.url("trunk"), LocalRepository.AUTHENTICATION);
+            assert session.getRoot().equals(repo.getRoot());
+            pool.release(session, true);
+            assert pool.acquire("a", repo.getRoot(), LocalRepository.AUTHENTICATION) == session;
+            assert pool.getHits() == 1 && pool.getOpens() == 1;
+            SvnSessionPool.Session other = pool.acquire("b", repo.getRoot(), LocalRepository.AUTHENTICATION);
+            assert other != session && pool.getOpens() == 2;
+
+            // a session released after a failure is closed, and so is a failed open
+            pool.release(other, false);
+            assert pool.getIdleCount() == 0 && pool.getActiveCount() == 1;
+            assert pool.acquire("c", repo.getRoot(), new SvnSessionPool.AuthenticationFactory() {
+                public ISVNAuthenticationManager create() {
+                    return null;
+                }
+            }) == null;
+            assert pool.getActiveCount(repo.getRoot()) == 1;
+
+            // a thread holding no session waits while the repository is at its limit
+            final SvnSessionPool.Session[] borrowed = new SvnSessionPool.Session[2];
+            Thread first = new Thread() {
+                public void run() {
+                    try {
+                        borrowed[0] = pool.acquire("a", repo.getRoot(), LocalRepository.AUTHENTICATION);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            first.start();
+            first.join();
+            assert pool.getActiveCount(repo.getRoot()) == 2;
+            Thread second = new Thread() {
+                public void run() {
+                    try {
+                        borrowed[1] = pool.acquire("a", repo.getRoot(), LocalRepository.AUTHENTICATION);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            second.start();
+            second.join(200);
+            assert second.isAlive() && borrowed[1] == null;
+            // the thread holding a session is never held back
+            SvnSessionPool.Session third = pool.acquire("a", repo.getRoot(), LocalRepository.AUTHENTICATION);
+            pool.release(third, true);
+            pool.release(session, true);
+            second.join(10000);
+            assert borrowed[1] != null;
+
+            // an idle session is closed once idle for longer than the timeout, the pool keeps at most one
+            pool.release(borrowed[0], true);
+            pool.release(borrowed[1], true);
+            assert pool.getIdleCount() == 1 && pool.getActiveCount() == 0;
+            Thread.sleep(10);
+            long evictions = pool.getEvictions();
+            pool.evictIdle();
+            assert pool.getIdleCount() == 0 && pool.getEvictions() == evictions + 1;
+        } finally {
+            repo.delete();
+        }
+    }
+
+    @Test public void testTagPreparation() throws Exception {
+        LocalRepository repo = new LocalRepository();
+        try {
+            long r1 = repo.mkdir("trunk");
+            SVNURL source = repo.url("trunk");
+            SVNURL tag = repo.url("tags/1");
+            SvnSessionPool pool = new SvnSessionPool(1, 60000, 0);
+            SvnSessionPool.Session session = pool.acquire("a", repo.getRoot(), LocalRepository.AUTHENTICATION);
+            try {
+                final TagPreparation.Probe probe = new TagPreparation.Probe(repo.getRoot(), r1,
+                        source, r1, false, false);
+                TagPreparation preparation = new TagPreparation();
+
+                // the probe goes only to the target of the same tag URL, source and revision
+                final Map<String, TagPreparation.Probe> probes = new HashMap<String, TagPreparation.Probe>();
+                probes.put(tag.toString(), probe);
+                preparation.start("job#2", new Callable<Map<String, TagPreparation.Probe>>() {
+                    public Map<String, TagPreparation.Probe> call() {
+                        return probes;
+                    }
+                }).get();
+                TagTarget prepared = new TagTarget(null, source, r1, tag, "", "", "#2");
+                TagTarget older = new TagTarget(null, source, r1 - 1, tag, "", "", "#2");
+                assert preparation.apply("job#2", Arrays.asList(prepared, older)) == 1;
+                assert prepared.getPrepared() == probe;
+                assert older.getPrepared() == null;
+
+                // the probe holds while HEAD stays, and is discarded once HEAD moved
+                assert probe.isCurrent(session, new HashMap<SVNURL, Long>());
+                repo.mkdir("tags");
+                Map<SVNURL, Long> heads = new HashMap<SVNURL, Long>();
+                assert !probe.isCurrent(session, heads);
+                assert heads.get(repo.getRoot()) == r1 + 1;
+            } finally {
+                pool.release(session, false);
+            }
+
+            // a preparation still running when the publisher applies it is cancelled
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch interrupted = new CountDownLatch(1);
+            TagPreparation preparation = new TagPreparation();
+            FutureTask<Map<String, TagPreparation.Probe>> running = preparation.start("job#3",
+                    new Callable<Map<String, TagPreparation.Probe>>() {
+                        public Map<String, TagPreparation.Probe> call() throws Exception {
+                            started.countDown();
+                            try {
+                                new CountDownLatch(1).await();
+                            } catch (InterruptedException e) {
+                                interrupted.countDown();
+                                throw e;
+                            }
+                            return Collections.emptyMap();
+                        }
+                    });
+            assert started.await(10, TimeUnit.SECONDS);
+            TagTarget target = new TagTarget(null, source, r1, tag, "", "", "#3");
+            assert preparation.apply("job#3", Collections.singletonList(target)) == 0;
+            assert running.isCancelled();
+            assert interrupted.await(10, TimeUnit.SECONDS);
+            assert target.getPrepared() == null;
+            assert preparation.size() == 0;
+        } finally {
+            repo.delete();
+        }
+    }
+
+    @Test public void testSvnTagStep() throws Exception {
+        SvnTagStep step = new SvnTagStep("http://svn/tags/${BUILD_NUMBER}");
+        step.setTagComment("  ");
+        step.setModules("");
+        step.setCredentialsId(" id ");
+        step.setTagLayout(null);
+        assert step.getTagComment() == null && step.getModules() == null;
+        assert step.getCredentialsId().equals("id");
+        assert step.getTagLayout() == TagLayout.FLAT;
+
+        // all module locations of the checkout unless given
+        RevisionIndex revisions = RevisionIndex.parse(new BufferedReader(new StringReader(
+                "http://svn/trunk/a/10\nhttp://svn/trunk/b/11\n")));
+        assert SvnTagStep.moduleLines(null, revisions).equals(
+                Arrays.asList("http://svn/trunk/a", "http://svn/trunk/b"));
+        assert SvnTagStep.moduleLines(" http://svn/trunk/a@12 \r\n\n  \nhttp://svn/trunk/c\n", revisions)
+                .equals(Arrays.asList("http://svn/trunk/a@12", "http://svn/trunk/c"));
+
+        assert SvnTagStep.parseRemote("http://svn/trunk/a@12").equals("http://svn/trunk/a");
+        assert SvnTagStep.parseRevision("http://svn/trunk/a@12") == 12;
+        assert SvnTagStep.parseRevision("http://svn/trunk/a") == RevisionIndex.NONE;
+        // the user info of the URL is no revision
+        assert SvnTagStep.parseRemote("svn+ssh://user@svn/trunk").equals("svn+ssh://user@svn/trunk");
+        assert SvnTagStep.parseRevision("svn+ssh://user@svn/trunk") == RevisionIndex.NONE;
+        try {
+            SvnTagStep.parseRevision("http://svn/trunk@HEAD");
+            assert false;
+        } catch (AbortException e) {
+            // expected
+        }
+    }
+
+    @Test public void testTagLayout() throws Exception {
+        SVNURL tag = SVNURL.parseURIEncoded("http://svn/tags/job-42");
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2024, Calendar.MARCH, 5);
+
+        assert TagLayout.FLAT.apply(tag, calendar.getTimeInMillis()) == tag;
+        assert TagLayout.DATE.apply(tag, calendar.getTimeInMillis()).toString()
+                .equals("http://svn/tags/2024/03/job-42");
+        String hashed = TagLayout.HASH.apply(tag, 0).toString();
+        assert hashed.matches("http://svn/tags/[0-9a-f]{2}/job-42") : hashed;
+        assert hashed.equals(TagLayout.HASH.apply(tag, 1).toString());
+
+        TagRegistry registry = new TagRegistry();
+        TagHistory.Entry entry = new TagHistory.Entry(1, "http://svn/trunk", 10, hashed,
+                tag.toString(), 11, 0);
+        registry.add("job", Collections.singleton(entry));
+        assert registry.findByTag(hashed).size() == 1;
+        assert registry.findByTag(tag.toString()).get(0).getEntry() == entry;
+        registry.removeJob("job");
+        assert registry.findByTag(tag.toString()).isEmpty();
+    }
+
 }
@@ -0,0 +1,39 @@
+package hudson.plugins.svn_tag;
+
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+
+
+/**
+ * Jenkins instance of the test harness, for tests that run builds. The
+ * tests are TestNG tests, so the {@link JenkinsRule} is applied by hand.
+ */
+final class TestJenkins {
+
+    private TestJenkins() {
+    }
+
+    /**
+     * Starts Jenkins, runs the body and shuts Jenkins down.
+     *
+     * @param body the test
+     * @throws Throwable when the test fails
+     */
+    static void run(final Body body) throws Throwable {
+        final JenkinsRule j = new JenkinsRule();
+        j.apply(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                body.run(j);
+            }
+        }, Description.createTestDescription(TestJenkins.class, "run")).evaluate();
+    }
+
+    /**
+     * A test run against Jenkins.
+     */
+    interface Body {
+        void run(JenkinsRule j) throws Exception;
+    }
+}